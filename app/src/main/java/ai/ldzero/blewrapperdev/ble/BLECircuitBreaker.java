@@ -0,0 +1,87 @@
+package ai.ldzero.blewrapperdev.ble;
+
+import android.os.SystemClock;
+
+/**
+ * 单个设备的熔断器
+ * 连续失败达到阈值后断开(OPEN)，期间该设备的操作直接失败，不占用任务队列；
+ * 断开一段时间后半开(HALF_OPEN)，只放行一个试探操作，成功则闭合(CLOSED)，失败则重新断开。
+ * 试探操作超过断开时长仍没有结果时再放行下一个
+ *
+ * Created on 2017/12/30.
+ *
+ * @author ldzero
+ */
+
+class BLECircuitBreaker {
+
+    static final int STATE_CLOSED = 0;
+    static final int STATE_OPEN = 1;
+    static final int STATE_HALF_OPEN = 2;
+
+    private int mState = STATE_CLOSED;
+
+    /* 连续失败次数 */
+    private int mFailures = 0;
+
+    /* 断开或放行试探操作的时间 */
+    private long mStateTime;
+
+    private int mFailureThreshold;
+
+    private long mOpenMillis;
+
+    BLECircuitBreaker(int failureThreshold, long openMillis) {
+        mFailureThreshold = failureThreshold;
+        mOpenMillis = openMillis;
+    }
+
+    synchronized void configure(int failureThreshold, long openMillis) {
+        mFailureThreshold = failureThreshold;
+        mOpenMillis = openMillis;
+    }
+
+    /**
+     * 判断是否放行一个操作，半开状态下放行的操作即为试探操作
+     *
+     * @return 是否放行
+     */
+    synchronized boolean allowRequest() {
+        if (mFailureThreshold <= 0 || mState == STATE_CLOSED) {
+            return true;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (now - mStateTime < mOpenMillis) {
+            return false;
+        }
+        mState = STATE_HALF_OPEN;
+        mStateTime = now;
+        return true;
+    }
+
+    /**
+     * 返回是否处于断开状态，不放行试探操作
+     *
+     * @return 是否断开
+     */
+    synchronized boolean isOpen() {
+        return mState != STATE_CLOSED && SystemClock.elapsedRealtime() - mStateTime < mOpenMillis;
+    }
+
+    synchronized void onSuccess() {
+        mFailures = 0;
+        mState = STATE_CLOSED;
+    }
+
+    synchronized void onFailure() {
+        mFailures++;
+        if (mState == STATE_HALF_OPEN || (mFailureThreshold > 0 && mFailures >= mFailureThreshold)) {
+            mState = STATE_OPEN;
+            mStateTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    synchronized int getState() {
+        return mState;
+    }
+}
@@ -0,0 +1,402 @@
+package ai.ldzero.blewrapperdev.ble;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 监听器回调的执行方式
+ * 默认在事件发生的线程直接回调，可能是蓝牙binder线程、主线程或扫描结果处理线程，
+ * 监听器耗时过长会拖慢蓝牙回调。设置其他执行方式后回调交给主线程、线程池或调用方的Executor，
+ * 同一设备的回调按发生顺序依次执行；未执行的回调超过上限时丢弃新的回调，不阻塞蓝牙回调
+ *
+ * Created on 2018/01/04.
+ *
+ * @author ldzero
+ */
+
+public class BLEDelivery {
+
+    private final String LOG_TAG = this.getClass().getSimpleName();
+
+    /* 每个设备一次连续执行的最大回调数，之后让出执行线程给其他设备 */
+    private static final int DRAIN_BATCH = 16;
+
+    /* 线程池空闲线程的存活时间 */
+    private static final long POOL_KEEP_ALIVE_SECONDS = 30;
+
+    private static final BLEDelivery INLINE = new BLEDelivery(null, 0);
+
+    /* 为空表示在事件发生的线程直接回调 */
+    private final Executor mExecutor;
+
+    private final int mMaxPending;
+
+    private final AtomicInteger mPending = new AtomicInteger(0);
+
+    private final AtomicLong mDropped = new AtomicLong(0);
+
+    /* 各设备待执行的回调，key为mac，队列执行完后移除 */
+    private final ConcurrentMap<String, DeviceQueue> mQueues = new ConcurrentHashMap<>();
+
+    private BLEDelivery(Executor executor, int maxPending) {
+        mExecutor = executor;
+        mMaxPending = maxPending;
+    }
+
+    /**
+     * 在事件发生的线程直接回调
+     *
+     * @return 执行方式
+     */
+    public static BLEDelivery inline() {
+        return INLINE;
+    }
+
+    /**
+     * 在主线程回调
+     *
+     * @param maxPending 未执行回调的上限
+     * @return 执行方式
+     */
+    public static BLEDelivery main(int maxPending) {
+        final Handler handler = new Handler(Looper.getMainLooper());
+        return new BLEDelivery(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if (!handler.post(command)) {
+                    throw new RejectedExecutionException("main looper exited");
+                }
+            }
+        }, maxPending);
+    }
+
+    /**
+     * 在有界线程池中回调，线程空闲一段时间后退出
+     *
+     * @param threads 线程数
+     * @param maxPending 未执行回调的上限
+     * @return 执行方式
+     */
+    public static BLEDelivery pool(int threads, int maxPending) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, POOL_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "BLEDelivery-" + mCount.incrementAndGet());
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return new BLEDelivery(executor, maxPending);
+    }
+
+    /**
+     * 使用调用方的Executor回调
+     *
+     * @param executor Executor
+     * @param maxPending 未执行回调的上限
+     * @return 执行方式
+     */
+    public static BLEDelivery executor(Executor executor, int maxPending) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor is null");
+        }
+        return new BLEDelivery(executor, maxPending);
+    }
+
+    /**
+     * 返回因超过上限被丢弃的回调数
+     *
+     * @return 丢弃数
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    boolean isInline() {
+        return mExecutor == null;
+    }
+
+    /**
+     * 执行回调，同一设备的回调按调用顺序执行
+     *
+     * @param mac 设备mac，为空的回调归为一组
+     * @param callback 回调
+     */
+    void deliver(String mac, Runnable callback) {
+        if (mExecutor == null) {
+            callback.run();
+            return;
+        }
+        if (mPending.incrementAndGet() > mMaxPending) {
+            mPending.decrementAndGet();
+            long dropped = mDropped.incrementAndGet();
+            if ((dropped & (dropped - 1)) == 0) {
+                Log.w(LOG_TAG, "delivery saturated, dropped " + dropped + " callbacks");
+            }
+            return;
+        }
+        String key = mac == null ? "" : mac;
+        while (true) {
+            DeviceQueue queue = mQueues.get(key);
+            if (queue == null) {
+                queue = new DeviceQueue(key);
+                DeviceQueue existing = mQueues.putIfAbsent(key, queue);
+                if (existing != null) {
+                    queue = existing;
+                }
+            }
+            if (queue.offer(callback)) {
+                return;
+            }
+            // 队列已执行完并退出，移除后换新队列，旧队列中已没有回调，顺序不受影响
+            mQueues.remove(key, queue);
+        }
+    }
+
+    /**
+     * 一个设备的回调队列，同一时间最多在一个线程中执行
+     * 回调全部执行完后退出并从mQueues中移除，之后的回调使用新队列，设备不再有回调时不占用内存
+     *
+     */
+    private class DeviceQueue implements Runnable {
+
+        private final String mKey;
+
+        /* 只在持有锁时访问 */
+        private final Queue<Runnable> mCallbacks = new ArrayDeque<>();
+
+        private boolean mScheduled = false;
+
+        /* 是否已退出，退出后不再接受回调 */
+        private boolean mRetired = false;
+
+        DeviceQueue(String key) {
+            mKey = key;
+        }
+
+        /**
+         * @return 队列已退出时返回false
+         */
+        boolean offer(Runnable callback) {
+            synchronized (this) {
+                if (mRetired) {
+                    return false;
+                }
+                mCallbacks.offer(callback);
+                if (mScheduled) {
+                    return true;
+                }
+                mScheduled = true;
+            }
+            schedule();
+            return true;
+        }
+
+        private void schedule() {
+            try {
+                mExecutor.execute(this);
+            } catch (RejectedExecutionException e) {
+                int dropped;
+                synchronized (this) {
+                    dropped = mCallbacks.size();
+                    mCallbacks.clear();
+                    mScheduled = false;
+                    mRetired = true;
+                }
+                mQueues.remove(mKey, this);
+                mPending.addAndGet(-dropped);
+                mDropped.addAndGet(dropped);
+                Log.w(LOG_TAG, "delivery rejected, dropped " + dropped + " callbacks");
+            }
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < DRAIN_BATCH; i++) {
+                Runnable callback;
+                synchronized (this) {
+                    callback = mCallbacks.poll();
+                    if (callback == null) {
+                        mScheduled = false;
+                        mRetired = true;
+                    }
+                }
+                if (callback == null) {
+                    mQueues.remove(mKey, this);
+                    return;
+                }
+                mPending.decrementAndGet();
+                try {
+                    callback.run();
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "listener threw", e);
+                }
+            }
+            // 还有回调时重新排队，不长时间占用执行线程
+            boolean retired;
+            synchronized (this) {
+                retired = mCallbacks.isEmpty();
+                if (retired) {
+                    mScheduled = false;
+                    mRetired = true;
+                }
+            }
+            if (retired) {
+                mQueues.remove(mKey, this);
+                return;
+            }
+            schedule();
+        }
+    }
+
+    /* -------------- Listener wrappers -------------- */
+
+    static BLEWrapper.OnDataListener wrap(final BLEWrapper.OnDataListener listener, final BLEDelivery delivery) {
+        if (listener == null || delivery == null || delivery.isInline()) {
+            return listener;
+        }
+        return new BLEWrapper.OnDataListener() {
+            @Override
+            public void onRead(final String mac, final boolean success, final byte[] data) {
+                delivery.deliver(mac, new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onRead(mac, success, data);
+                    }
+                });
+            }
+
+            @Override
+            public void onWrite(final String mac, final boolean success) {
+                delivery.deliver(mac, new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onWrite(mac, success);
+                    }
+                });
+            }
+
+            @Override
+            public void onCharacteristicChanged(final String mac, final UUID characteristicUUID, final byte[] data) {
+                delivery.deliver(mac, new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onCharacteristicChanged(mac, characteristicUUID, data);
+                    }
+                });
+            }
+        };
+    }
+
+    static BLEWrapper.OnDeviceStateListener wrap(final BLEWrapper.OnDeviceStateListener listener,
+                                                 final BLEDelivery delivery) {
+        if (listener == null || delivery == null || delivery.isInline()) {
+            return listener;
+        }
+        return new BLEWrapper.OnDeviceStateListener() {
+            @Override
+            public void onConnectComplete(final String mac, final boolean success) {
+                delivery.deliver(mac, new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onConnectComplete(mac, success);
+                    }
+                });
+            }
+
+            @Override
+            public void onServiceDiscover(final String mac) {
+                delivery.deliver(mac, new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onServiceDiscover(mac);
+                    }
+                });
+            }
+
+            @Override
+            public void onDisconnect(final String mac) {
+                delivery.deliver(mac, new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onDisconnect(mac);
+                    }
+                });
+            }
+
+            @Override
+            public void onClose(final String mac) {
+                delivery.deliver(mac, new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onClose(mac);
+                    }
+                });
+            }
+        };
+    }
+
+    static BLEWrapper.OnScanListener wrap(final BLEWrapper.OnScanListener listener, final BLEDelivery delivery) {
+        if (listener == null || delivery == null || delivery.isInline()) {
+            return listener;
+        }
+        return new BLEWrapper.OnScanListener() {
+            @Override
+            public void onDeviceScan(final BluetoothDevice device) {
+                // 扫描结果和超时放在同一组，保证超时在结果之后回调
+                delivery.deliver(null, new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onDeviceScan(device);
+                    }
+                });
+            }
+
+            @Override
+            public void onTimeout() {
+                delivery.deliver(null, new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onTimeout();
+                    }
+                });
+            }
+        };
+    }
+
+    static BLEWrapper.OnNotificationListener wrap(final BLEWrapper.OnNotificationListener listener,
+                                                  final BLEDelivery delivery) {
+        if (listener == null || delivery == null || delivery.isInline()) {
+            return listener;
+        }
+        return new BLEWrapper.OnNotificationListener() {
+            @Override
+            public void onNotification(final String mac, final UUID characteristicUUID, final byte[] data) {
+                delivery.deliver(mac, new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onNotification(mac, characteristicUUID, data);
+                    }
+                });
+            }
+        };
+    }
+}
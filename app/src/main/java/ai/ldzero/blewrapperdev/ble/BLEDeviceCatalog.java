@@ -0,0 +1,294 @@
+package ai.ldzero.blewrapperdev.ble;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import ai.ldzero.blewrapperdev.ble.utils.ConcurrentLongMap;
+
+/**
+ * 持久化的设备目录
+ * 记录连接过的设备的mac、最近信号强度、最近出现时间和连接成功次数，
+ * 存放在内存映射的定长记录文件中，更新只写内存，由系统回写文件；
+ * 重启后据此直接连接最近活跃的设备，不必先扫描。
+ * 只扫描到没有连接过的设备不记录，满后先替换没有连接成功过的设备，扫描大量设备不会挤掉连接过的设备。
+ * 文件在第一次使用时才打开，通常在扫描线程、任务执行线程或启动连接线程中，不在调用start()的线程中
+ *
+ * Created on 2017/12/29.
+ *
+ * @author ldzero
+ */
+
+class BLEDeviceCatalog {
+
+    private final String LOG_TAG = this.getClass().getSimpleName();
+
+    private static final int MAGIC = 0x424C4543;
+    private static final int VERSION = 1;
+
+    /* 文件头：magic、版本、记录数、保留 */
+    private static final int HEADER_SIZE = 16;
+
+    /* 记录：mac(8)、最近出现时间(8)、信号强度(4)、连接次数(4)、成功次数(4)、保留(4) */
+    private static final int RECORD_SIZE = 32;
+
+    private static final int OFFSET_MAC = 0;
+    private static final int OFFSET_LAST_SEEN = 8;
+    private static final int OFFSET_RSSI = 16;
+    private static final int OFFSET_ATTEMPTS = 20;
+    private static final int OFFSET_SUCCESSES = 24;
+
+    /* 同一设备两次扫描记录的最小间隔，避免每个广播包都写一次 */
+    private static final long SEEN_UPDATE_INTERVAL_MILLIS = 5 * 1000;
+
+    private final int mCapacity;
+
+    private final File mPath;
+
+    /* 是否已尝试打开，打开失败或关闭后不再打开 */
+    private boolean mOpenAttempted = false;
+
+    private RandomAccessFile mFile;
+
+    private MappedByteBuffer mBuffer;
+
+    private int mCount = 0;
+
+    /* mac到记录序号的索引 */
+    private final ConcurrentLongMap<Integer> mIndex = new ConcurrentLongMap<>();
+
+    /**
+     * @param file 目录文件
+     * @param capacity 最多记录的设备数
+     */
+    BLEDeviceCatalog(File file, int capacity) {
+        mPath = file;
+        mCapacity = capacity;
+    }
+
+    /**
+     * 第一次使用时打开目录文件
+     *
+     * @return 是否可用
+     */
+    private boolean ensureOpen() {
+        if (mBuffer != null) {
+            return true;
+        }
+        if (mOpenAttempted) {
+            return false;
+        }
+        mOpenAttempted = true;
+        try {
+            open();
+            return true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "open device catalog failed", e);
+            mBuffer = null;
+            closeFile();
+            return false;
+        }
+    }
+
+    /**
+     * 打开目录文件，文件不存在或格式不符时重新创建
+     *
+     */
+    private void open() throws IOException {
+        int capacity = mCapacity;
+        mFile = new RandomAccessFile(mPath, "rw");
+        long size = HEADER_SIZE + (long) RECORD_SIZE * capacity;
+        boolean valid = mFile.length() == size;
+        mFile.setLength(size);
+        mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (valid && mBuffer.getInt(0) == MAGIC && mBuffer.getInt(4) == VERSION) {
+            mCount = Math.min(mBuffer.getInt(8), capacity);
+            for (int i = 0; i < mCount; i++) {
+                mIndex.put(mBuffer.getLong(recordOffset(i) + OFFSET_MAC), i);
+            }
+        } else {
+            mBuffer.putInt(0, MAGIC);
+            mBuffer.putInt(4, VERSION);
+            mBuffer.putInt(8, 0);
+        }
+        Log.d(LOG_TAG, "device catalog loaded, " + mCount + " devices");
+    }
+
+    /**
+     * 扫描到设备时调用，只更新已有记录
+     *
+     * @param address 48位mac
+     * @param rssi 信号强度
+     */
+    synchronized void onSeen(long address, int rssi) {
+        if (!ensureOpen()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Integer slot = mIndex.get(address);
+        if (slot == null || now - mBuffer.getLong(recordOffset(slot) + OFFSET_LAST_SEEN) < SEEN_UPDATE_INTERVAL_MILLIS) {
+            return;
+        }
+        int offset = recordOffset(slot);
+        mBuffer.putLong(offset + OFFSET_LAST_SEEN, now);
+        mBuffer.putInt(offset + OFFSET_RSSI, rssi);
+    }
+
+    /**
+     * 开始连接设备时调用
+     *
+     * @param address 48位mac
+     */
+    synchronized void onConnectAttempt(long address) {
+        if (!ensureOpen()) {
+            return;
+        }
+        Integer slot = mIndex.get(address);
+        int offset = recordOffset(slot == null ? obtainSlot(address) : slot);
+        mBuffer.putInt(offset + OFFSET_ATTEMPTS, mBuffer.getInt(offset + OFFSET_ATTEMPTS) + 1);
+    }
+
+    /**
+     * 连接成功时调用
+     *
+     * @param address 48位mac
+     */
+    synchronized void onConnectSuccess(long address) {
+        if (!ensureOpen()) {
+            return;
+        }
+        Integer slot = mIndex.get(address);
+        int offset = recordOffset(slot == null ? obtainSlot(address) : slot);
+        mBuffer.putInt(offset + OFFSET_SUCCESSES, mBuffer.getInt(offset + OFFSET_SUCCESSES) + 1);
+        mBuffer.putLong(offset + OFFSET_LAST_SEEN, System.currentTimeMillis());
+    }
+
+    /**
+     * 返回最近活跃且连接成功过的设备，按最近出现时间倒序
+     *
+     * @param maxDevices 最多返回的设备数
+     * @param maxAgeMillis 最近出现时间距今不超过该值
+     * @return 48位mac列表
+     */
+    synchronized List<Long> getRecentDevices(int maxDevices, long maxAgeMillis) {
+        if (!ensureOpen()) {
+            return new ArrayList<>();
+        }
+        List<long[]> candidates = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < mCount; i++) {
+            int offset = recordOffset(i);
+            long lastSeen = mBuffer.getLong(offset + OFFSET_LAST_SEEN);
+            if (mBuffer.getInt(offset + OFFSET_SUCCESSES) > 0 && now - lastSeen <= maxAgeMillis) {
+                candidates.add(new long[] {mBuffer.getLong(offset + OFFSET_MAC), lastSeen});
+            }
+        }
+        Collections.sort(candidates, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] r1, long[] r2) {
+                return r1[1] > r2[1] ? -1 : (r1[1] == r2[1] ? 0 : 1);
+            }
+        });
+        List<Long> devices = new ArrayList<>();
+        for (int i = 0; i < candidates.size() && i < maxDevices; i++) {
+            devices.add(candidates.get(i)[0]);
+        }
+        return devices;
+    }
+
+    /**
+     * 返回设备连接成功率
+     *
+     * @param address 48位mac
+     * @return 成功率，没有连接记录时返回-1
+     */
+    synchronized float getSuccessRate(long address) {
+        if (!ensureOpen()) {
+            return -1;
+        }
+        Integer slot = mIndex.get(address);
+        if (slot == null) {
+            return -1;
+        }
+        int offset = recordOffset(slot);
+        int attempts = mBuffer.getInt(offset + OFFSET_ATTEMPTS);
+        return attempts == 0 ? -1 : (float) mBuffer.getInt(offset + OFFSET_SUCCESSES) / attempts;
+    }
+
+    /**
+     * 为新设备分配记录，目录已满时替换最久未出现的没有连接成功过的设备，
+     * 全部设备都连接成功过时替换最久未出现的设备
+     *
+     * @param address 48位mac
+     * @return 记录序号
+     */
+    private int obtainSlot(long address) {
+        int slot;
+        if (mCount < mCapacity) {
+            slot = mCount++;
+            mBuffer.putInt(8, mCount);
+        } else {
+            slot = 0;
+            boolean connected = true;
+            long oldest = Long.MAX_VALUE;
+            for (int i = 0; i < mCount; i++) {
+                int offset = recordOffset(i);
+                boolean iConnected = mBuffer.getInt(offset + OFFSET_SUCCESSES) > 0;
+                long lastSeen = mBuffer.getLong(offset + OFFSET_LAST_SEEN);
+                // 没有连接成功过的记录优先，同类中取最久未出现的
+                if ((connected && !iConnected) || (connected == iConnected && lastSeen < oldest)) {
+                    connected = iConnected;
+                    oldest = lastSeen;
+                    slot = i;
+                }
+            }
+            mIndex.remove(mBuffer.getLong(recordOffset(slot) + OFFSET_MAC));
+        }
+        int offset = recordOffset(slot);
+        mBuffer.putLong(offset + OFFSET_MAC, address);
+        mBuffer.putLong(offset + OFFSET_LAST_SEEN, 0);
+        mBuffer.putInt(offset + OFFSET_RSSI, 0);
+        mBuffer.putInt(offset + OFFSET_ATTEMPTS, 0);
+        mBuffer.putInt(offset + OFFSET_SUCCESSES, 0);
+        mIndex.put(address, slot);
+        return slot;
+    }
+
+    private static int recordOffset(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    /**
+     * 写回文件并关闭
+     *
+     */
+    synchronized void close() {
+        mOpenAttempted = true;
+        if (mBuffer == null) {
+            return;
+        }
+        mBuffer.force();
+        mBuffer = null;
+        closeFile();
+    }
+
+    private void closeFile() {
+        if (mFile == null) {
+            return;
+        }
+        try {
+            mFile.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "close device catalog failed", e);
+        }
+        mFile = null;
+    }
+}
@@ -0,0 +1,170 @@
+package ai.ldzero.blewrapperdev.ble;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ai.ldzero.blewrapperdev.ble.utils.MacAddress;
+
+/**
+ * 设备组
+ * 对组内设备的读、写、订阅作为一个任务加入任务队列，执行时同时操作多个设备，
+ * 同时进行的设备数不超过maxParallel，全部设备结束后回调汇总结果。
+ * 组操作执行期间其他任务不会插入，同一设备同一时间只有一个操作
+ *
+ * Created on 2018/01/02.
+ *
+ * @author ldzero
+ */
+
+public class BLEDeviceGroup {
+
+    /* 组内设备，key为48位地址，value为第一次添加时的mac，大小写不同的mac视为同一设备 */
+    private final Map<Long, String> mMacs = new LinkedHashMap<>();
+
+    /* 同时操作的最大设备数 */
+    private int mMaxParallel = 4;
+
+    /**
+     * 添加设备，已在组内时忽略
+     *
+     * @param mac 设备mac
+     * @return this
+     */
+    public synchronized BLEDeviceGroup add(String mac) {
+        long address = MacAddress.parse(mac);
+        if (address == MacAddress.INVALID) {
+            throw new IllegalArgumentException("invalid mac " + mac);
+        }
+        if (!mMacs.containsKey(address)) {
+            mMacs.put(address, mac);
+        }
+        return this;
+    }
+
+    public synchronized BLEDeviceGroup remove(String mac) {
+        mMacs.remove(MacAddress.parse(mac));
+        return this;
+    }
+
+    public synchronized BLEDeviceGroup setMaxParallel(int maxParallel) {
+        mMaxParallel = Math.max(1, maxParallel);
+        return this;
+    }
+
+    public synchronized int size() {
+        return mMacs.size();
+    }
+
+    public synchronized List<String> getMacs() {
+        return new ArrayList<>(mMacs.values());
+    }
+
+    synchronized int getMaxParallel() {
+        return mMaxParallel;
+    }
+
+    /**
+     * 单个设备的操作结果
+     *
+     */
+    public static class DeviceResult {
+
+        private final String mMac;
+
+        private final boolean mSuccess;
+
+        private final String mMessage;
+
+        private final byte[] mData;
+
+        private final long mElapsedMillis;
+
+        DeviceResult(String mac, boolean success, String message, byte[] data, long elapsedMillis) {
+            mMac = mac;
+            mSuccess = success;
+            mMessage = message;
+            mData = data;
+            mElapsedMillis = elapsedMillis;
+        }
+
+        public String getMac() {
+            return mMac;
+        }
+
+        public boolean isSuccess() {
+            return mSuccess;
+        }
+
+        public String getMessage() {
+            return mMessage;
+        }
+
+        /**
+         * 返回读操作读到的数据
+         *
+         * @return 数据，写、订阅和失败的操作返回null
+         */
+        public byte[] getData() {
+            return mData;
+        }
+
+        /**
+         * 返回从开始操作该设备到结束的时间
+         *
+         * @return 单位毫秒，没有开始操作的设备为0
+         */
+        public long getElapsedMillis() {
+            return mElapsedMillis;
+        }
+    }
+
+    /**
+     * 组操作汇总结果
+     *
+     */
+    public static class Result {
+
+        private final List<DeviceResult> mResults;
+
+        private final long mElapsedMillis;
+
+        Result(List<DeviceResult> results, long elapsedMillis) {
+            mResults = Collections.unmodifiableList(results);
+            mElapsedMillis = elapsedMillis;
+        }
+
+        /**
+         * 返回各设备结果，顺序与设备加入组的顺序相同
+         *
+         * @return 设备结果列表
+         */
+        public List<DeviceResult> getResults() {
+            return mResults;
+        }
+
+        public int getSuccessCount() {
+            int count = 0;
+            for (DeviceResult result : mResults) {
+                if (result.mSuccess) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        public boolean isAllSuccess() {
+            return getSuccessCount() == mResults.size();
+        }
+
+        public long getElapsedMillis() {
+            return mElapsedMillis;
+        }
+    }
+
+    public interface OnGroupListener {
+        void onComplete(Result result);
+    }
+}
@@ -1,5 +1,6 @@
 package ai.ldzero.blewrapperdev.ble;
 
+import android.annotation.TargetApi;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
@@ -8,11 +9,17 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.content.Context;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import ai.ldzero.blewrapperdev.ble.utils.LogUtils;
 
@@ -33,15 +40,67 @@ class BLEDeviceOperator {
 
     private BluetoothAdapter mBluetoothAdapter;
 
-    private BluetoothGatt mGatt;
+    private volatile BluetoothGatt mGatt;
 
     private Handler mHandler;
 
-    private boolean mIsConnect = false;
+    private volatile boolean mIsConnect = false;
 
     private final int MSG_CONN_TIMEOUT = 200;
     private final int MSG_WRITE_TIMEOUT = 201;
     private final int MSG_READ_TIMEOUT = 202;
+    private final int MSG_PRIORITY_CHECK = 203;
+    private final int MSG_DESCRIPTOR_TIMEOUT = 204;
+
+    /* 连接优先级检查周期 */
+    private static final long PRIORITY_CHECK_INTERVAL_MILLIS = 1000;
+
+    /* 排队任务数达到该值时提高连接优先级 */
+    private static final int HIGH_PRIORITY_QUEUE_DEPTH = 3;
+
+    /* 传输速率达到该值时提高连接优先级，单位字节每秒 */
+    private static final long HIGH_PRIORITY_BYTES_PER_SECOND = 2000;
+
+    /* 高优先级至少保持的时间，避免频繁切换 */
+    private static final long HIGH_PRIORITY_HOLD_MILLIS = 3000;
+
+    /* 空闲超过该时间后切换到低功耗 */
+    private static final long LOW_POWER_IDLE_MILLIS = 10 * 1000;
+
+    /* 是否根据负载自动调整连接优先级 */
+    private volatile boolean mAutoPriority = true;
+
+    /* 是否根据往返时间自动计算超时时间 */
+    private volatile boolean mAdaptiveTimeout = false;
+
+    private final BLERttEstimator mRttEstimator = new BLERttEstimator();
+
+    /* 默认不熔断，由BLEWrapper配置 */
+    private final BLECircuitBreaker mCircuitBreaker = new BLECircuitBreaker(0, 0);
+
+    /* 各特征的通知过滤状态，在回调中最先执行 */
+    private final ConcurrentMap<UUID, BLENotificationFilter.Reducer> mNotificationFilters = new ConcurrentHashMap<>();
+
+    /* 进行中的操作开始时间，0表示没有需要统计往返时间的操作 */
+    private volatile long mConnStartTime = 0;
+    private volatile long mReadStartTime = 0;
+    private volatile long mWriteStartTime = 0;
+
+    /* 当前连接优先级，只在主线程访问 */
+    private int mPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+
+    /* 任务队列中该设备的任务数 */
+    private final AtomicInteger mQueuedOps = new AtomicInteger();
+
+    /* 累计传输字节数 */
+    private final AtomicLong mTransferredBytes = new AtomicLong();
+
+    /* 上一次检查时的累计传输字节数，只在主线程访问 */
+    private long mLastCheckBytes;
+
+    /* 最近一次有负载的时间和切换到高优先级的时间，只在主线程访问 */
+    private long mLastActiveTime;
+    private long mHighPriorityTime;
 
     // TODO: 增加动作编号
     // TODO: 读写操作超时，resultListener被置空，新的读写操作进来，设置了resultListener，若此时上次操作的回调回来了，会被当作本次操作的结果回调给外部
@@ -57,6 +116,7 @@ class BLEDeviceOperator {
                         mIsConnect = true;
                         // 已与设备建立连接
                         Log.d(LOG_TAG, mMac + " connect successfully");
+                        mConnStartTime = onRttSample(BLERttEstimator.OP_CONNECT, mConnStartTime);
                         if (mOnStateListener != null) {
                             mOnStateListener.onConnectComplete(true);
                         }
@@ -65,6 +125,7 @@ class BLEDeviceOperator {
                             mOnConnResultListener = null;
                         }
                         mHandler.removeMessages(MSG_CONN_TIMEOUT);
+                        startPriorityCheck();
                         // 在主线程发现设备服务
                         mHandler.post(new Runnable() {
                             @Override
@@ -76,6 +137,7 @@ class BLEDeviceOperator {
                     case BluetoothGatt.STATE_DISCONNECTED:
                         Log.d(LOG_TAG, mMac + " device disconnected");
                         mIsConnect = false;
+                        mHandler.removeMessages(MSG_PRIORITY_CHECK);
                         // 已与设备断开连接
                         if (mOnStateListener != null) {
                             mOnStateListener.onDisconnect();
@@ -90,7 +152,9 @@ class BLEDeviceOperator {
                 // 若设备主动断开蓝牙，也会回到这个回调里
                 Log.d(LOG_TAG, mMac + " connect failed");
                 mIsConnect = false;
+                mConnStartTime = 0;
                 mHandler.removeMessages(MSG_CONN_TIMEOUT);
+                mHandler.removeMessages(MSG_PRIORITY_CHECK);
                 if (mOnStateListener != null) {
                     mOnStateListener.onConnectComplete(false);
                 }
@@ -119,14 +183,19 @@ class BLEDeviceOperator {
         public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
             mHandler.removeMessages(MSG_READ_TIMEOUT);
             boolean success = status == BluetoothGatt.GATT_SUCCESS;
+            mReadStartTime = success ? onRttSample(BLERttEstimator.OP_READ, mReadStartTime) : 0;
+            countTransferred(characteristic);
             Log.d(LOG_TAG, mMac + " read " + (success ? "success" : "failed") + ", data = " +
                     LogUtils.byteArray2Str(characteristic == null ? null : characteristic.getValue()));
             if (mOnDataListener != null) {
-                mOnDataListener.onRead(success, characteristic == null ? null : characteristic.getValue());
+                mOnDataListener.onRead(success, characteristic == null ? null : characteristic.getUuid(),
+                        characteristic == null ? null : characteristic.getValue());
             }
-            if (mOnReadResultListener != null) {
-                mOnReadResultListener.onResult(success, success ? "success" : "failed");
-                mOnReadResultListener = null;
+            OnReadResultListener readListener = mOnReadResultListener;
+            mOnReadResultListener = null;
+            if (readListener != null) {
+                readListener.onResult(success, success ? "success" : "failed",
+                        characteristic == null ? null : characteristic.getValue());
             }
         }
 
@@ -134,26 +203,65 @@ class BLEDeviceOperator {
         public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
             mHandler.removeMessages(MSG_WRITE_TIMEOUT);
             boolean success = status == BluetoothGatt.GATT_SUCCESS;
+            mWriteStartTime = success ? onRttSample(BLERttEstimator.OP_WRITE, mWriteStartTime) : 0;
+            countTransferred(characteristic);
             Log.d(LOG_TAG, mMac + " write " + (success ? "success" : "failed") + ", data = " +
                     LogUtils.byteArray2Str(characteristic == null ? null : characteristic.getValue()));
             if (mOnDataListener != null) {
                 mOnDataListener.onWrite(success);
             }
-            if (mOnWriteResultListener != null) {
-                mOnWriteResultListener.onResult(success, success ? "success" : "failed");
-                mOnWriteResultListener = null;
+            OnResultListener writeListener = mOnWriteResultListener;
+            mOnWriteResultListener = null;
+            if (writeListener != null) {
+                writeListener.onResult(success, success ? "success" : "failed");
+            }
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            mHandler.removeMessages(MSG_DESCRIPTOR_TIMEOUT);
+            boolean success = status == BluetoothGatt.GATT_SUCCESS;
+            Log.d(LOG_TAG, mMac + " descriptor write " + (success ? "success" : "failed"));
+            OnResultListener listener = mOnDescriptorResultListener;
+            mOnDescriptorResultListener = null;
+            if (listener != null) {
+                listener.onResult(success, success ? "success" : "failed");
             }
         }
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            Log.d(LOG_TAG, mMac + " characteristic changed, data = " + LogUtils.byteArray2Str(characteristic.getValue()));
-            if (mOnDataListener != null) {
-                mOnDataListener.onCharacteristicChanged(characteristic.getUuid(), characteristic.getValue());
+            countTransferred(characteristic);
+            // 没有监听器关心的通知在打印日志和分发前丢弃
+            if (mOnDataListener == null || !mOnDataListener.isNotificationWanted(characteristic.getUuid())) {
+                return;
+            }
+            byte[] data = characteristic.getValue();
+            if (!mNotificationFilters.isEmpty()) {
+                BLENotificationFilter.Reducer reducer = mNotificationFilters.get(characteristic.getUuid());
+                if (reducer != null && (data = reducer.reduce(data)) == null) {
+                    return;
+                }
             }
+            deliverNotification(characteristic.getUuid(), data);
         }
     };
 
+    /**
+     * 打印日志并分发通知，通知过滤条件的定时回调也从这里分发
+     *
+     * @param characteristicUUID 特征UUID
+     * @param data 数据
+     */
+    private void deliverNotification(UUID characteristicUUID, byte[] data) {
+        OnDataListener listener = mOnDataListener;
+        if (listener == null) {
+            return;
+        }
+        Log.d(LOG_TAG, mMac + " characteristic changed, data = " + LogUtils.byteArray2Str(data));
+        listener.onCharacteristicChanged(characteristicUUID, data);
+    }
+
     BLEDeviceOperator(Context context, String mac, BluetoothAdapter bluetoothAdapter) {
         Log.d(LOG_TAG, "Init " + mac + "'s operator");
         mMac = mac;
@@ -164,6 +272,8 @@ class BLEDeviceOperator {
                 switch (msg.what) {
                     case MSG_CONN_TIMEOUT:
                         Log.d(LOG_TAG, mMac + " conn timeout");
+                        onRttTimeout(BLERttEstimator.OP_CONNECT);
+                        mConnStartTime = 0;
                         if (mOnConnResultListener != null) {
                             mOnConnResultListener.onResult(false, "timeout");
                             mOnConnResultListener = null;
@@ -172,16 +282,33 @@ class BLEDeviceOperator {
                         break;
                     case MSG_WRITE_TIMEOUT:
                         Log.d(LOG_TAG, mMac + " write timeout");
-                        if (mOnWriteResultListener != null) {
-                            mOnWriteResultListener.onResult(false, "timeout");
-                            mOnWriteResultListener = null;
+                        onRttTimeout(BLERttEstimator.OP_WRITE);
+                        mWriteStartTime = 0;
+                        OnResultListener writeListener = mOnWriteResultListener;
+                        mOnWriteResultListener = null;
+                        if (writeListener != null) {
+                            writeListener.onResult(false, "timeout");
                         }
                         break;
                     case MSG_READ_TIMEOUT:
                         Log.d(LOG_TAG, mMac + " read timeout");
-                        if (mOnReadResultListener != null) {
-                            mOnReadResultListener.onResult(false, "timeout");
-                            mOnReadResultListener = null;
+                        onRttTimeout(BLERttEstimator.OP_READ);
+                        mReadStartTime = 0;
+                        OnReadResultListener readListener = mOnReadResultListener;
+                        mOnReadResultListener = null;
+                        if (readListener != null) {
+                            readListener.onResult(false, "timeout", null);
+                        }
+                        break;
+                    case MSG_PRIORITY_CHECK:
+                        checkPriority();
+                        break;
+                    case MSG_DESCRIPTOR_TIMEOUT:
+                        Log.d(LOG_TAG, mMac + " descriptor write timeout");
+                        OnResultListener listener = mOnDescriptorResultListener;
+                        mOnDescriptorResultListener = null;
+                        if (listener != null) {
+                            listener.onResult(false, "timeout");
                         }
                         break;
                 }
@@ -210,7 +337,8 @@ class BLEDeviceOperator {
                 Log.d(LOG_TAG, "connect device " + mMac);
                 BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(mMac);
                 mOnConnResultListener = listener;
-                mHandler.sendEmptyMessageDelayed(MSG_CONN_TIMEOUT, timeoutMillis);
+                mConnStartTime = SystemClock.elapsedRealtime();
+                mHandler.sendEmptyMessageDelayed(MSG_CONN_TIMEOUT, getTimeout(BLERttEstimator.OP_CONNECT, timeoutMillis));
                 mGatt = device.connectGatt(context, false, mGattCallback);
             }
         });
@@ -269,16 +397,17 @@ class BLEDeviceOperator {
      * @param listener 本次操作结果回调
      * @param timeoutMillis 超时时间，单位毫秒
      */
-    void read(UUID serviceUUID, UUID characteristicUUID, OnResultListener listener, long timeoutMillis) {
+    void read(UUID serviceUUID, UUID characteristicUUID, OnReadResultListener listener, long timeoutMillis) {
         if (!mIsConnect) {
             if (listener != null) {
-                listener.onResult(false, "not connected");
+                listener.onResult(false, "not connected", null);
             }
             return;
         }
         BluetoothGattCharacteristic characteristic = getCharacteristicByUUID(serviceUUID, characteristicUUID);
         mOnReadResultListener = listener;
-        mHandler.sendEmptyMessageDelayed(MSG_READ_TIMEOUT, timeoutMillis);
+        mReadStartTime = SystemClock.elapsedRealtime();
+        mHandler.sendEmptyMessageDelayed(MSG_READ_TIMEOUT, getTimeout(BLERttEstimator.OP_READ, timeoutMillis));
         if (mGatt != null && characteristic != null) {
             Log.d(LOG_TAG, mMac + "read with timeout " + timeoutMillis);
             mGatt.readCharacteristic(characteristic);
@@ -295,6 +424,21 @@ class BLEDeviceOperator {
      * @param timeoutMillis 超时时间，单位毫秒
      */
     void write(UUID serviceUUID, UUID characteristicUUID, byte[] data, OnResultListener listener, long timeoutMillis) {
+        write(serviceUUID, characteristicUUID, data, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT, listener, timeoutMillis);
+    }
+
+    /**
+     * 按指定写类型写入数据
+     *
+     * @param serviceUUID 服务UUID
+     * @param characteristicUUID 特征UUID
+     * @param data 数据，回调返回前不能修改
+     * @param writeType 写类型，WRITE_TYPE_DEFAULT需要设备应答，WRITE_TYPE_NO_RESPONSE不需要
+     * @param listener 本次操作结果回调
+     * @param timeoutMillis 超时时间，单位毫秒
+     */
+    void write(UUID serviceUUID, UUID characteristicUUID, byte[] data, int writeType,
+               OnResultListener listener, long timeoutMillis) {
         if (!mIsConnect) {
             if (listener != null) {
                 listener.onResult(false, "not connected");
@@ -303,9 +447,17 @@ class BLEDeviceOperator {
         }
         BluetoothGattCharacteristic characteristic = getCharacteristicByUUID(serviceUUID, characteristicUUID);
         mOnWriteResultListener = listener;
-        mHandler.sendEmptyMessageDelayed(MSG_WRITE_TIMEOUT, timeoutMillis);
+        if (writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
+            // 不需要应答的写在本地发送完就回调，不能反映设备往返时间
+            mWriteStartTime = 0;
+            mHandler.sendEmptyMessageDelayed(MSG_WRITE_TIMEOUT, timeoutMillis);
+        } else {
+            mWriteStartTime = SystemClock.elapsedRealtime();
+            mHandler.sendEmptyMessageDelayed(MSG_WRITE_TIMEOUT, getTimeout(BLERttEstimator.OP_WRITE, timeoutMillis));
+        }
         if (mGatt != null && characteristic != null) {
             Log.d(LOG_TAG, mMac + "read with timeout " + timeoutMillis + ", data = " + LogUtils.byteArray2Str(data));
+            characteristic.setWriteType(writeType);
             characteristic.setValue(data);
             mGatt.writeCharacteristic(characteristic);
         }
@@ -319,20 +471,48 @@ class BLEDeviceOperator {
      * @param descriptorUUID 描述UUID
      */
     void subscribe(UUID serviceUUID, UUID characteristicUUID, UUID descriptorUUID) {
+        subscribe(serviceUUID, characteristicUUID, descriptorUUID, null, 0);
+    }
+
+    /**
+     * 订阅设备的对应Descriptor，描述写入完成后回调
+     *
+     * @param serviceUUID 服务UUID
+     * @param characteristicUUID 特征UUID
+     * @param descriptorUUID 描述UUID
+     * @param listener 本次操作结果回调，可为空
+     * @param timeoutMillis 超时时间，单位毫秒，listener为空时不使用
+     */
+    void subscribe(UUID serviceUUID, UUID characteristicUUID, UUID descriptorUUID,
+                   OnResultListener listener, long timeoutMillis) {
         if (!mIsConnect) {
+            if (listener != null) {
+                listener.onResult(false, "not connected");
+            }
             return;
         }
         BluetoothGattCharacteristic characteristic = getCharacteristicByUUID(serviceUUID, characteristicUUID);
         if (mGatt == null || characteristic == null) {
+            if (listener != null) {
+                listener.onResult(false, "no characteristic");
+            }
             return;
         }
         mGatt.setCharacteristicNotification(characteristic, true);
         BluetoothGattDescriptor descriptor = characteristic.getDescriptor(descriptorUUID);
-        if (descriptor != null) {
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mGatt.writeDescriptor(descriptor);
-            Log.d(LOG_TAG, mMac + "subscribe device");
+        if (descriptor == null) {
+            if (listener != null) {
+                listener.onResult(false, "no descriptor");
+            }
+            return;
         }
+        descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        if (listener != null) {
+            mOnDescriptorResultListener = listener;
+            mHandler.sendEmptyMessageDelayed(MSG_DESCRIPTOR_TIMEOUT, timeoutMillis);
+        }
+        mGatt.writeDescriptor(descriptor);
+        Log.d(LOG_TAG, mMac + "subscribe device");
     }
 
     /**
@@ -374,6 +554,149 @@ class BLEDeviceOperator {
         return service.getCharacteristic(characteristicUUID);
     }
 
+    /**
+     * 设置是否根据负载自动调整连接优先级，仅Android 5.0及以上有效
+     *
+     * @param enabled 是否开启
+     */
+    void setAutoPriority(boolean enabled) {
+        mAutoPriority = enabled;
+    }
+
+    /**
+     * 任务队列中加入了该设备的任务
+     *
+     */
+    void onTaskQueued() {
+        if (mQueuedOps.incrementAndGet() == HIGH_PRIORITY_QUEUE_DEPTH && mIsConnect
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            // 排队任务突增时立即检查，不等下一个周期
+            Handler handler = mHandler;
+            if (handler != null) {
+                handler.removeMessages(MSG_PRIORITY_CHECK);
+                handler.sendEmptyMessage(MSG_PRIORITY_CHECK);
+            }
+        }
+    }
+
+    /**
+     * 该设备的任务离开任务队列
+     *
+     */
+    void onTaskDequeued() {
+        mQueuedOps.decrementAndGet();
+    }
+
+    private void countTransferred(BluetoothGattCharacteristic characteristic) {
+        byte[] value = characteristic == null ? null : characteristic.getValue();
+        if (value != null) {
+            mTransferredBytes.addAndGet(value.length);
+        }
+    }
+
+    /**
+     * 连接建立后开始周期检查连接优先级，新连接默认为平衡模式
+     *
+     */
+    private void startPriorityCheck() {
+        mPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        mLastCheckBytes = mTransferredBytes.get();
+        mLastActiveTime = SystemClock.elapsedRealtime();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            mHandler.sendEmptyMessageDelayed(MSG_PRIORITY_CHECK, PRIORITY_CHECK_INTERVAL_MILLIS);
+        }
+    }
+
+    /**
+     * 在主线程根据排队任务数和传输速率调整连接优先级
+     *
+     */
+    private void checkPriority() {
+        // Android 5.0以下不能调整连接优先级
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || !mIsConnect || mGatt == null) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        long bytes = mTransferredBytes.get();
+        long bytesPerSecond = (bytes - mLastCheckBytes) * 1000 / PRIORITY_CHECK_INTERVAL_MILLIS;
+        mLastCheckBytes = bytes;
+        int queued = mQueuedOps.get();
+        if (bytesPerSecond > 0 || queued > 0) {
+            mLastActiveTime = now;
+        }
+        int target;
+        if (queued >= HIGH_PRIORITY_QUEUE_DEPTH || bytesPerSecond >= HIGH_PRIORITY_BYTES_PER_SECOND) {
+            target = BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+            mHighPriorityTime = now;
+        } else if (mPriority == BluetoothGatt.CONNECTION_PRIORITY_HIGH
+                && now - mHighPriorityTime < HIGH_PRIORITY_HOLD_MILLIS) {
+            target = BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+        } else if (now - mLastActiveTime >= LOW_POWER_IDLE_MILLIS) {
+            target = BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER;
+        } else {
+            target = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        }
+        if (mAutoPriority && target != mPriority) {
+            Log.d(LOG_TAG, mMac + " queued = " + queued + ", rate = " + bytesPerSecond + "B/s, change priority to "
+                    + target);
+            requestPriority(target);
+        }
+        mHandler.removeMessages(MSG_PRIORITY_CHECK);
+        mHandler.sendEmptyMessageDelayed(MSG_PRIORITY_CHECK, PRIORITY_CHECK_INTERVAL_MILLIS);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void requestPriority(int priority) {
+        if (!mGatt.requestConnectionPriority(priority)) {
+            return;
+        }
+        mPriority = priority;
+        if (mOnPriorityListener != null) {
+            mOnPriorityListener.onPriorityChanged(priority, getMinIntervalMillis(priority),
+                    getMaxIntervalMillis(priority));
+        }
+    }
+
+    /**
+     * 返回连接优先级对应的最小连接间隔，取自系统蓝牙栈的默认参数
+     *
+     * @param priority 连接优先级
+     * @return 连接间隔，单位毫秒，Android 5.0以下未知，返回-1
+     */
+    static float getMinIntervalMillis(int priority) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return -1;
+        }
+        switch (priority) {
+            case BluetoothGatt.CONNECTION_PRIORITY_HIGH:
+                return 11.25f;
+            case BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER:
+                return 100f;
+            default:
+                return 30f;
+        }
+    }
+
+    /**
+     * 返回连接优先级对应的最大连接间隔，取自系统蓝牙栈的默认参数
+     *
+     * @param priority 连接优先级
+     * @return 连接间隔，单位毫秒，Android 5.0以下未知，返回-1
+     */
+    static float getMaxIntervalMillis(int priority) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return -1;
+        }
+        switch (priority) {
+            case BluetoothGatt.CONNECTION_PRIORITY_HIGH:
+                return 15f;
+            case BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER:
+                return 125f;
+            default:
+                return 50f;
+        }
+    }
+
     /**
      * 停止工作
      *
@@ -383,6 +706,12 @@ class BLEDeviceOperator {
         mHandler.removeMessages(MSG_CONN_TIMEOUT);
         mHandler.removeMessages(MSG_WRITE_TIMEOUT);
         mHandler.removeMessages(MSG_READ_TIMEOUT);
+        mHandler.removeMessages(MSG_DESCRIPTOR_TIMEOUT);
+        mHandler.removeMessages(MSG_PRIORITY_CHECK);
+        for (BLENotificationFilter.Reducer reducer : mNotificationFilters.values()) {
+            reducer.cancel();
+        }
+        mNotificationFilters.clear();
         release();
     }
 
@@ -398,6 +727,89 @@ class BLEDeviceOperator {
         mHandler = null;
     }
 
+    /**
+     * 设置是否根据往返时间自动计算超时时间
+     * 开启后每次操作的超时时间由该设备同类操作的往返时间估算，调用方给出的超时时间作为上限
+     *
+     * @param enabled 是否开启
+     */
+    void setAdaptiveTimeout(boolean enabled) {
+        mAdaptiveTimeout = enabled;
+    }
+
+    /**
+     * 返回操作的超时时间
+     *
+     * @param op 操作类型
+     * @param timeoutMillis 调用方给出的超时时间
+     * @return 超时时间，单位毫秒
+     */
+    private long getTimeout(int op, long timeoutMillis) {
+        return mAdaptiveTimeout ? mRttEstimator.getTimeout(op, timeoutMillis) : timeoutMillis;
+    }
+
+    /**
+     * 操作成功时记录往返时间
+     *
+     * @param op 操作类型
+     * @param startTime 操作开始时间，0表示不统计
+     * @return 0，用于清除开始时间
+     */
+    private long onRttSample(int op, long startTime) {
+        if (startTime > 0) {
+            mRttEstimator.onSample(op, SystemClock.elapsedRealtime() - startTime);
+        }
+        return 0;
+    }
+
+    private void onRttTimeout(int op) {
+        mRttEstimator.onTimeout(op);
+        Log.d(LOG_TAG, mMac + " op " + op + " timeout, srtt = " + mRttEstimator.getSmoothedRtt(op)
+                + ", next timeout = " + mRttEstimator.getTimeout(op, Long.MAX_VALUE));
+    }
+
+    /**
+     * 返回平滑往返时间
+     *
+     * @param op 操作类型，见BLERttEstimator
+     * @return 平滑往返时间，单位毫秒，还没有样本时返回-1
+     */
+    long getSmoothedRtt(int op) {
+        return mRttEstimator.getSmoothedRtt(op);
+    }
+
+    BLECircuitBreaker getCircuitBreaker() {
+        return mCircuitBreaker;
+    }
+
+    String getMac() {
+        return mMac;
+    }
+
+    /**
+     * 设置特征的通知过滤条件，重新设置时过滤状态从头开始
+     *
+     * @param characteristicUUID 特征UUID
+     * @param filter 过滤条件，为空表示不过滤
+     */
+    void setNotificationFilter(final UUID characteristicUUID, BLENotificationFilter filter) {
+        BLENotificationFilter.Reducer old;
+        if (filter == null) {
+            old = mNotificationFilters.remove(characteristicUUID);
+        } else {
+            old = mNotificationFilters.put(characteristicUUID, filter.newReducer(mHandler,
+                    new BLENotificationFilter.OnFlushListener() {
+                        @Override
+                        public void onFlush(byte[] data) {
+                            deliverNotification(characteristicUUID, data);
+                        }
+                    }));
+        }
+        if (old != null) {
+            old.cancel();
+        }
+    }
+
     /* -------------- Listener and setter -------------- */
     private OnStateListener mOnStateListener;
 
@@ -415,6 +827,16 @@ class BLEDeviceOperator {
         void onClose();
     }
 
+    private OnPriorityListener mOnPriorityListener;
+
+    void setOnPriorityListener(OnPriorityListener onPriorityListener) {
+        mOnPriorityListener = onPriorityListener;
+    }
+
+    interface OnPriorityListener {
+        void onPriorityChanged(int priority, float minIntervalMillis, float maxIntervalMillis);
+    }
+
     private OnDataListener mOnDataListener;
 
     void setOnDataListener(OnDataListener onDataListener) {
@@ -423,15 +845,21 @@ class BLEDeviceOperator {
 
     interface OnDataListener {
         void onWrite(boolean success);
-        void onRead(boolean success, byte[] data);
+        void onRead(boolean success, UUID characteristicUUID, byte[] data);
         void onCharacteristicChanged(UUID characteristicUUID, byte[] data);
+        boolean isNotificationWanted(UUID characteristicUUID);
     }
 
     private OnResultListener mOnConnResultListener;
-    private OnResultListener mOnWriteResultListener;
-    private OnResultListener mOnReadResultListener;
+    private volatile OnResultListener mOnWriteResultListener;
+    private volatile OnReadResultListener mOnReadResultListener;
+    private volatile OnResultListener mOnDescriptorResultListener;
 
     interface OnResultListener {
         void onResult(boolean success, String msg);
     }
+
+    interface OnReadResultListener {
+        void onResult(boolean success, String msg, byte[] data);
+    }
 }
@@ -0,0 +1,347 @@
+package ai.ldzero.blewrapperdev.ble;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+
+/**
+ * 把设备通知数据直接写入文件的下载接收器
+ * 数据先写入堆外缓冲区，写满后再写入文件，整个下载过程中数据不经过堆内存累积。
+ * 可选按通知中的序号字节检测丢包，下载在收到结束标志或达到预期字节数时结束，
+ * 结束标志本身不写入文件
+ *
+ * Created on 2017/12/27.
+ *
+ * @author ldzero
+ */
+
+public class BLEDownloadSink implements BLEWrapper.OnNotificationListener {
+
+    private final String LOG_TAG = this.getClass().getSimpleName();
+
+    /* 默认缓冲区大小 */
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /* 每写入该字节数回调一次进度 */
+    private static final int PROGRESS_STEP_BYTES = 16 * 1024;
+
+    private final File mFile;
+
+    private int mBufferSize = DEFAULT_BUFFER_SIZE;
+
+    /* 序号字节位置，-1表示不检测 */
+    private int mSequenceIndex = -1;
+
+    /* 写入文件时是否去掉序号字节 */
+    private boolean mStripSequence = false;
+
+    /* 结束标志，为空表示不检测 */
+    private byte[] mTerminator;
+
+    /* 结束标志的KMP失配表 */
+    private int[] mTerminatorFailure;
+
+    /* 预期字节数，-1表示不限制 */
+    private long mExpectedBytes = -1;
+
+    private OnDownloadListener mListener;
+
+    private String mMac;
+
+    private UUID mCharacteristicUUID;
+
+    private BLEWrapper mWrapper;
+
+    private FileChannel mChannel;
+
+    private ByteBuffer mBuffer;
+
+    /* 已写入的字节数，包括还在缓冲区中的 */
+    private long mBytesWritten = 0;
+
+    private long mLastProgressBytes = 0;
+
+    /* 上一个序号，-1表示还没有收到 */
+    private int mLastSequence = -1;
+
+    /* 丢失的通知数 */
+    private int mGapCount = 0;
+
+    /* 结束标志已匹配的字节数 */
+    private int mTerminatorMatched = 0;
+
+    private boolean mFinished = false;
+
+    /**
+     * @param file 目标文件，已存在时覆盖
+     */
+    public BLEDownloadSink(File file) {
+        mFile = file;
+    }
+
+    /**
+     * 设置写文件缓冲区大小
+     *
+     * @param bufferSize 字节数，大于0
+     * @return this
+     */
+    public BLEDownloadSink setBufferSize(int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("invalid buffer size " + bufferSize);
+        }
+        mBufferSize = bufferSize;
+        return this;
+    }
+
+    /**
+     * 设置通知中序号字节的位置，序号按0~255循环递增，用于检测丢失的通知
+     *
+     * @param index 序号字节位置
+     * @param strip 写入文件时是否去掉序号字节
+     * @return this
+     */
+    public BLEDownloadSink setSequenceByte(int index, boolean strip) {
+        mSequenceIndex = index;
+        mStripSequence = strip;
+        return this;
+    }
+
+    /**
+     * 设置结束标志，收到该字节序列后下载结束
+     *
+     * @param terminator 结束标志
+     * @return this
+     */
+    public BLEDownloadSink setTerminator(byte[] terminator) {
+        mTerminator = terminator == null || terminator.length == 0 ? null : terminator.clone();
+        mTerminatorFailure = mTerminator == null ? null : buildFailure(mTerminator);
+        return this;
+    }
+
+    /**
+     * 设置预期字节数，写入该字节数后下载结束
+     *
+     * @param expectedBytes 字节数
+     * @return this
+     */
+    public BLEDownloadSink setExpectedBytes(long expectedBytes) {
+        mExpectedBytes = expectedBytes;
+        return this;
+    }
+
+    public BLEDownloadSink setOnDownloadListener(OnDownloadListener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    /**
+     * 打开文件，开始接收
+     * 上一次下载结束后可以再次打开，接收状态全部重置；下载进行中时不能再次打开
+     *
+     */
+    synchronized void open(BLEWrapper wrapper, String mac, UUID characteristicUUID) throws IOException {
+        if (mChannel != null && !mFinished) {
+            throw new IOException("download already in progress");
+        }
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(0);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        mWrapper = wrapper;
+        mMac = mac;
+        mCharacteristicUUID = characteristicUUID;
+        mChannel = file.getChannel();
+        if (mBuffer == null || mBuffer.capacity() != mBufferSize) {
+            mBuffer = ByteBuffer.allocateDirect(mBufferSize);
+        }
+        mBuffer.clear();
+        mBytesWritten = 0;
+        mLastProgressBytes = 0;
+        mLastSequence = -1;
+        mGapCount = 0;
+        mTerminatorMatched = 0;
+        mFinished = false;
+        Log.d(LOG_TAG, mac + " start download " + characteristicUUID + " to " + mFile);
+    }
+
+    @Override
+    public synchronized void onNotification(String mac, UUID characteristicUUID, byte[] data) {
+        if (mFinished || data == null) {
+            return;
+        }
+        try {
+            boolean done;
+            if (mSequenceIndex >= 0 && mSequenceIndex < data.length) {
+                checkSequence(data[mSequenceIndex] & 0xFF);
+            }
+            if (mStripSequence && mSequenceIndex >= 0 && mSequenceIndex < data.length) {
+                done = append(data, 0, mSequenceIndex) || append(data, mSequenceIndex + 1, data.length);
+            } else {
+                done = append(data, 0, data.length);
+            }
+            if (done) {
+                return;
+            }
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+        if (mListener != null && mBytesWritten - mLastProgressBytes >= PROGRESS_STEP_BYTES) {
+            mLastProgressBytes = mBytesWritten;
+            mListener.onProgress(mMac, mBytesWritten, mExpectedBytes, mGapCount);
+        }
+    }
+
+    /**
+     * 主动结束下载，已接收的数据写入文件
+     *
+     */
+    synchronized void stop() {
+        if (mFinished) {
+            return;
+        }
+        try {
+            finish(mBytesWritten);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * 写入一段数据，遇到结束标志或达到预期字节数时结束下载
+     *
+     * @return 下载是否已结束
+     */
+    private boolean append(byte[] data, int from, int to) throws IOException {
+        int end = to;
+        long finalLength = -1;
+        if (mTerminator != null) {
+            for (int i = from; i < to; i++) {
+                if (matchTerminator(data[i])) {
+                    end = i + 1;
+                    finalLength = mBytesWritten + (end - from) - mTerminator.length;
+                    break;
+                }
+            }
+        }
+        if (mExpectedBytes >= 0 && mBytesWritten + (end - from) >= mExpectedBytes) {
+            end = from + (int) (mExpectedBytes - mBytesWritten);
+            finalLength = mExpectedBytes;
+        }
+        int offset = from;
+        while (offset < end) {
+            if (!mBuffer.hasRemaining()) {
+                flush();
+            }
+            int length = Math.min(end - offset, mBuffer.remaining());
+            mBuffer.put(data, offset, length);
+            offset += length;
+        }
+        mBytesWritten += end - from;
+        if (finalLength >= 0) {
+            finish(Math.max(0, finalLength));
+            return true;
+        }
+        return false;
+    }
+
+    private void checkSequence(int sequence) {
+        if (mLastSequence >= 0) {
+            int gap = (sequence - mLastSequence - 1) & 0xFF;
+            if (gap > 0) {
+                mGapCount += gap;
+                Log.w(LOG_TAG, mMac + " download sequence gap, expect " + ((mLastSequence + 1) & 0xFF)
+                        + ", got " + sequence);
+            }
+        }
+        mLastSequence = sequence;
+    }
+
+    private boolean matchTerminator(byte b) {
+        while (mTerminatorMatched > 0 && mTerminator[mTerminatorMatched] != b) {
+            mTerminatorMatched = mTerminatorFailure[mTerminatorMatched - 1];
+        }
+        if (mTerminator[mTerminatorMatched] == b) {
+            mTerminatorMatched++;
+        }
+        return mTerminatorMatched == mTerminator.length;
+    }
+
+    private static int[] buildFailure(byte[] pattern) {
+        int[] failure = new int[pattern.length];
+        int k = 0;
+        for (int i = 1; i < pattern.length; i++) {
+            while (k > 0 && pattern[k] != pattern[i]) {
+                k = failure[k - 1];
+            }
+            if (pattern[k] == pattern[i]) {
+                k++;
+            }
+            failure[i] = k;
+        }
+        return failure;
+    }
+
+    private void flush() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+
+    /**
+     * 写入剩余数据，截断到指定长度并关闭文件
+     *
+     * @param length 文件最终长度
+     */
+    private void finish(long length) throws IOException {
+        mFinished = true;
+        flush();
+        mChannel.truncate(length);
+        mChannel.force(false);
+        mChannel.close();
+        mWrapper.onDownloadEnd(this);
+        Log.d(LOG_TAG, mMac + " download complete, " + length + " bytes, gaps = " + mGapCount);
+        if (mListener != null) {
+            mListener.onComplete(mMac, mFile, length, mGapCount);
+        }
+    }
+
+    private void fail(IOException e) {
+        Log.e(LOG_TAG, mMac + " download failed", e);
+        mFinished = true;
+        try {
+            mChannel.close();
+        } catch (IOException ignored) {
+        }
+        mWrapper.onDownloadEnd(this);
+        if (mListener != null) {
+            mListener.onError(mMac, e);
+        }
+    }
+
+    String getMac() {
+        return mMac;
+    }
+
+    UUID getCharacteristicUUID() {
+        return mCharacteristicUUID;
+    }
+
+    public interface OnDownloadListener {
+        void onProgress(String mac, long bytesWritten, long expectedBytes, int gapCount);
+
+        void onComplete(String mac, File file, long totalBytes, int gapCount);
+
+        void onError(String mac, IOException e);
+    }
+}
@@ -0,0 +1,201 @@
+package ai.ldzero.blewrapperdev.ble;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import ai.ldzero.blewrapperdev.ble.taskqueue.WrappedAsyncTask;
+import ai.ldzero.blewrapperdev.ble.utils.MacAddress;
+
+/**
+ * 设备组操作任务
+ * 任务占用执行线程期间同时操作最多maxParallel个设备，某个设备结束后在其回调中开始下一个设备，
+ * 总耗时接近最慢的几个设备而不是全部设备之和。
+ * 熔断的设备直接记为失败，不重试
+ *
+ * Created on 2018/01/02.
+ *
+ * @author ldzero
+ */
+
+class BLEGroupOperation extends WrappedAsyncTask {
+
+    private final String LOG_TAG = this.getClass().getSimpleName();
+
+    static final int OP_READ = 0;
+    static final int OP_WRITE = 1;
+    static final int OP_SUBSCRIBE = 2;
+
+    private final BLEWrapper mWrapper;
+
+    private final int mOp;
+
+    private final List<String> mMacs;
+
+    private final int mMaxParallel;
+
+    private final UUID mServiceUUID;
+
+    private final UUID mCharacteristicUUID;
+
+    /* 订阅操作的描述UUID */
+    private final UUID mDescriptorUUID;
+
+    private final byte[] mData;
+
+    private final long mTimeoutMillis;
+
+    private final BLEDeviceGroup.OnGroupListener mListener;
+
+    /* 各设备结果，与mMacs对应，只在持有锁时访问 */
+    private final BLEDeviceGroup.DeviceResult[] mResults;
+
+    /* 下一个要开始的设备序号 */
+    private int mNext = 0;
+
+    private int mDone = 0;
+
+    private boolean mFinished = false;
+
+    private long mStartTime;
+
+    BLEGroupOperation(BLEWrapper wrapper, int op, BLEDeviceGroup group, UUID serviceUUID, UUID characteristicUUID,
+                      UUID descriptorUUID, byte[] data, long timeoutMillis, BLEDeviceGroup.OnGroupListener listener) {
+        mWrapper = wrapper;
+        mOp = op;
+        mMacs = group.getMacs();
+        mMaxParallel = group.getMaxParallel();
+        mServiceUUID = serviceUUID;
+        mCharacteristicUUID = characteristicUUID;
+        mDescriptorUUID = descriptorUUID;
+        mData = data;
+        mTimeoutMillis = timeoutMillis;
+        mListener = listener;
+        mResults = new BLEDeviceGroup.DeviceResult[mMacs.size()];
+        // 最坏情况下每批设备都用满超时时间
+        long rounds = (mMacs.size() + mMaxParallel - 1) / mMaxParallel;
+        setDeadlineMillis(rounds * timeoutMillis + DeviceTask.TASK_DEADLINE_GRACE_MILLIS);
+    }
+
+    @Override
+    public void _run() {
+        mStartTime = SystemClock.elapsedRealtime();
+        Log.d(LOG_TAG, "group op " + mOp + " on " + mMacs.size() + " devices, parallel " + mMaxParallel);
+        if (mMacs.isEmpty()) {
+            finish();
+            return;
+        }
+        for (int i = 0; i < mMaxParallel; i++) {
+            startNext();
+        }
+    }
+
+    /**
+     * 开始下一个设备的操作
+     *
+     */
+    private void startNext() {
+        int index;
+        synchronized (this) {
+            if (mFinished || mNext >= mMacs.size()) {
+                return;
+            }
+            index = mNext++;
+        }
+        final int deviceIndex = index;
+        final String mac = mMacs.get(index);
+        final long start = SystemClock.elapsedRealtime();
+        final BLEDeviceOperator operator = mWrapper.getOperator(MacAddress.parse(mac));
+        if (operator == null) {
+            onDeviceResult(deviceIndex, false, "not connected", null, start);
+            return;
+        }
+        if (!operator.getCircuitBreaker().allowRequest()) {
+            onDeviceResult(deviceIndex, false, "circuit open", null, start);
+            return;
+        }
+        BLEDeviceOperator.OnResultListener resultListener = new BLEDeviceOperator.OnResultListener() {
+            @Override
+            public void onResult(boolean success, String msg) {
+                updateBreaker(operator, success);
+                onDeviceResult(deviceIndex, success, msg, null, start);
+            }
+        };
+        switch (mOp) {
+            case OP_READ:
+                operator.read(mServiceUUID, mCharacteristicUUID, new BLEDeviceOperator.OnReadResultListener() {
+                    @Override
+                    public void onResult(boolean success, String msg, byte[] data) {
+                        updateBreaker(operator, success);
+                        onDeviceResult(deviceIndex, success, msg, data, start);
+                    }
+                }, mTimeoutMillis);
+                break;
+            case OP_WRITE:
+                operator.write(mServiceUUID, mCharacteristicUUID, mData, resultListener, mTimeoutMillis);
+                break;
+            case OP_SUBSCRIBE:
+                operator.subscribe(mServiceUUID, mCharacteristicUUID, mDescriptorUUID, resultListener, mTimeoutMillis);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void updateBreaker(BLEDeviceOperator operator, boolean success) {
+        if (success) {
+            operator.getCircuitBreaker().onSuccess();
+        } else {
+            operator.getCircuitBreaker().onFailure();
+        }
+    }
+
+    private void onDeviceResult(int index, boolean success, String msg, byte[] data, long start) {
+        boolean all;
+        synchronized (this) {
+            if (mFinished || mResults[index] != null) {
+                return;
+            }
+            mResults[index] = new BLEDeviceGroup.DeviceResult(mMacs.get(index), success, msg, data,
+                    SystemClock.elapsedRealtime() - start);
+            all = ++mDone == mMacs.size();
+        }
+        if (all) {
+            finish();
+        } else {
+            startNext();
+        }
+    }
+
+    private void finish() {
+        List<BLEDeviceGroup.DeviceResult> results;
+        long elapsed;
+        synchronized (this) {
+            if (mFinished) {
+                return;
+            }
+            mFinished = true;
+            elapsed = SystemClock.elapsedRealtime() - mStartTime;
+            results = new ArrayList<>(mResults.length);
+            for (int i = 0; i < mResults.length; i++) {
+                results.add(mResults[i] != null ? mResults[i]
+                        : new BLEDeviceGroup.DeviceResult(mMacs.get(i), false, "stalled", null, 0));
+            }
+        }
+        BLEDeviceGroup.Result result = new BLEDeviceGroup.Result(results, elapsed);
+        Log.d(LOG_TAG, "group op " + mOp + " complete, " + result.getSuccessCount() + "/" + results.size()
+                + " success in " + elapsed + "ms");
+        if (mListener != null) {
+            mListener.onComplete(result);
+        }
+        finishTask();
+    }
+
+    @Override
+    protected void onStalled() {
+        finish();
+    }
+}
@@ -0,0 +1,238 @@
+package ai.ldzero.blewrapperdev.ble;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import ai.ldzero.blewrapperdev.ble.utils.ConcurrentLongMap;
+import ai.ldzero.blewrapperdev.ble.utils.MacAddress;
+
+/**
+ * 按特征分发设备通知
+ * 监听器可以注册到某个设备的某个特征，也可以注册到所有设备的某个特征，设备用48位地址表示。
+ * 每次注册或注销时重新生成只读的查找表，分发时只做查表，不加锁；
+ * 查不到路由的通知直接丢弃
+ *
+ * Created on 2017/12/23.
+ *
+ * @author ldzero
+ */
+
+class BLENotificationDispatcher {
+
+    private static final BLEWrapper.OnNotificationListener[] EMPTY = new BLEWrapper.OnNotificationListener[0];
+
+    /* 表示所有设备的地址 */
+    static final long ANY_DEVICE = MacAddress.INVALID;
+
+    /* 全部注册项，只在持有锁时修改 */
+    private final List<Registration> mRegistrations = new ArrayList<>();
+
+    /* 查找表，key为特征UUID */
+    private volatile Map<UUID, Route> mRouteTable = Collections.emptyMap();
+
+    /**
+     * 注册监听器
+     *
+     * @param address 48位设备地址，ANY_DEVICE表示所有设备
+     * @param characteristicUUID 特征UUID
+     * @param listener 监听器
+     */
+    synchronized void addListener(long address, UUID characteristicUUID, BLEWrapper.OnNotificationListener listener) {
+        if (characteristicUUID == null || listener == null) {
+            return;
+        }
+        for (Registration registration : mRegistrations) {
+            if (registration.matches(address, characteristicUUID, listener)) {
+                return;
+            }
+        }
+        mRegistrations.add(new Registration(address, characteristicUUID, listener));
+        rebuild();
+    }
+
+    /**
+     * 注销监听器的全部注册项
+     *
+     * @param listener 监听器
+     */
+    synchronized void removeListener(BLEWrapper.OnNotificationListener listener) {
+        boolean changed = false;
+        for (int i = mRegistrations.size() - 1; i >= 0; i--) {
+            if (mRegistrations.get(i).mListener == listener) {
+                mRegistrations.remove(i);
+                changed = true;
+            }
+        }
+        if (changed) {
+            rebuild();
+        }
+    }
+
+    /**
+     * 注销监听器在指定设备特征上的注册项
+     *
+     * @param address 48位设备地址，ANY_DEVICE表示所有设备
+     * @param characteristicUUID 特征UUID
+     * @param listener 监听器
+     */
+    synchronized void removeListener(long address, UUID characteristicUUID,
+                                     BLEWrapper.OnNotificationListener listener) {
+        for (int i = mRegistrations.size() - 1; i >= 0; i--) {
+            if (mRegistrations.get(i).matches(address, characteristicUUID, listener)) {
+                mRegistrations.remove(i);
+                rebuild();
+                return;
+            }
+        }
+    }
+
+    /**
+     * 判断监听器是否还有注册项
+     *
+     * @param listener 监听器
+     * @return 是否有注册项
+     */
+    synchronized boolean isRegistered(BLEWrapper.OnNotificationListener listener) {
+        for (Registration registration : mRegistrations) {
+            if (registration.mListener == listener) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 清空全部注册项
+     *
+     */
+    synchronized void clear() {
+        mRegistrations.clear();
+        rebuild();
+    }
+
+    /**
+     * 判断是否有监听器关心该通知
+     *
+     * @param address 48位设备地址
+     * @param characteristicUUID 特征UUID
+     * @return 是否有监听器
+     */
+    boolean hasListener(long address, UUID characteristicUUID) {
+        Route route = mRouteTable.get(characteristicUUID);
+        return route != null && (route.mAnyDevice.length > 0 || route.mByAddress.containsKey(address));
+    }
+
+    /**
+     * 分发通知
+     *
+     * @param address 48位设备地址
+     * @param mac 设备mac，回调给监听器
+     * @param characteristicUUID 特征UUID
+     * @param data 数据
+     * @return 是否分发给了至少一个监听器
+     */
+    boolean dispatch(long address, String mac, UUID characteristicUUID, byte[] data) {
+        Route route = mRouteTable.get(characteristicUUID);
+        if (route == null) {
+            return false;
+        }
+        BLEWrapper.OnNotificationListener[] byMac = route.mByAddress.get(address);
+        if (byMac == null) {
+            byMac = EMPTY;
+        }
+        if (byMac.length == 0 && route.mAnyDevice.length == 0) {
+            return false;
+        }
+        for (BLEWrapper.OnNotificationListener listener : byMac) {
+            listener.onNotification(mac, characteristicUUID, data);
+        }
+        for (BLEWrapper.OnNotificationListener listener : route.mAnyDevice) {
+            listener.onNotification(mac, characteristicUUID, data);
+        }
+        return true;
+    }
+
+    /**
+     * 根据注册项重新生成查找表
+     *
+     */
+    private void rebuild() {
+        Map<UUID, List<Registration>> grouped = new HashMap<>();
+        for (Registration registration : mRegistrations) {
+            List<Registration> list = grouped.get(registration.mCharacteristicUUID);
+            if (list == null) {
+                list = new ArrayList<>();
+                grouped.put(registration.mCharacteristicUUID, list);
+            }
+            list.add(registration);
+        }
+        Map<UUID, Route> table = new HashMap<>();
+        for (Map.Entry<UUID, List<Registration>> entry : grouped.entrySet()) {
+            List<BLEWrapper.OnNotificationListener> anyDevice = new ArrayList<>();
+            Map<Long, List<BLEWrapper.OnNotificationListener>> byAddress = new HashMap<>();
+            for (Registration registration : entry.getValue()) {
+                if (registration.mAddress == ANY_DEVICE) {
+                    anyDevice.add(registration.mListener);
+                    continue;
+                }
+                List<BLEWrapper.OnNotificationListener> list = byAddress.get(registration.mAddress);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    byAddress.put(registration.mAddress, list);
+                }
+                list.add(registration.mListener);
+            }
+            ConcurrentLongMap<BLEWrapper.OnNotificationListener[]> byAddressArray = new ConcurrentLongMap<>();
+            for (Map.Entry<Long, List<BLEWrapper.OnNotificationListener>> addressEntry : byAddress.entrySet()) {
+                byAddressArray.put(addressEntry.getKey(), addressEntry.getValue().toArray(EMPTY));
+            }
+            table.put(entry.getKey(), new Route(anyDevice.toArray(EMPTY), byAddressArray));
+        }
+        mRouteTable = table;
+    }
+
+    /**
+     * 某个特征的路由，生成后不再修改
+     *
+     */
+    private static class Route {
+
+        private final BLEWrapper.OnNotificationListener[] mAnyDevice;
+
+        /* 分发时按地址查找，不做字符串比较 */
+        private final ConcurrentLongMap<BLEWrapper.OnNotificationListener[]> mByAddress;
+
+        Route(BLEWrapper.OnNotificationListener[] anyDevice,
+              ConcurrentLongMap<BLEWrapper.OnNotificationListener[]> byAddress) {
+            mAnyDevice = anyDevice;
+            mByAddress = byAddress;
+        }
+    }
+
+    /**
+     * 注册项
+     *
+     */
+    private static class Registration {
+
+        private final long mAddress;
+
+        private final UUID mCharacteristicUUID;
+
+        private final BLEWrapper.OnNotificationListener mListener;
+
+        Registration(long address, UUID characteristicUUID, BLEWrapper.OnNotificationListener listener) {
+            mAddress = address;
+            mCharacteristicUUID = characteristicUUID;
+            mListener = listener;
+        }
+
+        boolean matches(long address, UUID characteristicUUID, BLEWrapper.OnNotificationListener listener) {
+            return mListener == listener && mCharacteristicUUID.equals(characteristicUUID) && mAddress == address;
+        }
+    }
+}
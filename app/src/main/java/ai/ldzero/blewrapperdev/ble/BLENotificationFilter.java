@@ -0,0 +1,315 @@
+package ai.ldzero.blewrapperdev.ble;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.Arrays;
+
+import ai.ldzero.blewrapperdev.ble.codec.IntLECodec;
+
+/**
+ * 通知过滤条件
+ * 设置到某个设备的某个特征后，在设备回调中打印日志和分发之前执行，被丢弃的通知不再复制和分发。
+ * 按时间过滤的模式在间隔或窗口结束时还有没回调的数据时，由设备操作对象的Handler定时回调，
+ * 数据流停止后最后一个间隔或窗口的数据同样会送达。
+ * 每个设备特征使用各自的状态，同一个过滤条件可以设置到多个设备
+ *
+ * Created on 2018/01/03.
+ *
+ * @author ldzero
+ */
+
+public class BLENotificationFilter {
+
+    /* 节流，间隔开始时的通知立即回调，间隔内到达的通知只保留最新的一个，间隔结束时回调 */
+    private static final int MODE_LATEST = 0;
+
+    /* 每N个通知回调一个 */
+    private static final int MODE_EVERY_NTH = 1;
+
+    /* 去重，数据与上一次回调的数据不同时才回调，不等待数据稳定 */
+    private static final int MODE_DISTINCT = 2;
+
+    /* 在窗口内汇总一个整数字段，窗口结束时回调一次 */
+    private static final int MODE_AGGREGATE = 3;
+
+    public static final int AGGREGATE_MIN = 0;
+    public static final int AGGREGATE_MAX = 1;
+    public static final int AGGREGATE_MEAN = 2;
+
+    private final int mMode;
+
+    private long mIntervalMillis;
+
+    private int mN;
+
+    private int mAggregate;
+
+    /* 汇总字段的位置、字节数和符号 */
+    private int mOffset;
+
+    private int mBytes;
+
+    private boolean mSigned;
+
+    private BLENotificationFilter(int mode) {
+        mMode = mode;
+    }
+
+    /**
+     * 每个间隔最多回调一次，间隔开始时的通知立即回调，间隔内后到达的通知只在间隔结束时回调最新的一个
+     *
+     * @param intervalMillis 间隔，单位毫秒
+     * @return 过滤条件
+     */
+    public static BLENotificationFilter latest(long intervalMillis) {
+        BLENotificationFilter filter = new BLENotificationFilter(MODE_LATEST);
+        filter.mIntervalMillis = intervalMillis;
+        return filter;
+    }
+
+    /**
+     * 每n个通知回调一个，从第一个开始
+     *
+     * @param n 间隔个数
+     * @return 过滤条件
+     */
+    public static BLENotificationFilter everyNth(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("n must be positive");
+        }
+        BLENotificationFilter filter = new BLENotificationFilter(MODE_EVERY_NTH);
+        filter.mN = n;
+        return filter;
+    }
+
+    /**
+     * 去掉与上一次回调的数据相同的通知，数据变化时立即回调
+     *
+     * @return 过滤条件
+     */
+    public static BLENotificationFilter distinctUntilChanged() {
+        return new BLENotificationFilter(MODE_DISTINCT);
+    }
+
+    /**
+     * 把通知中的小端整数字段在窗口内汇总，窗口结束时回调一次，窗口从第一个通知到达时开始。
+     * 回调的数据格式与原通知相同，该字段替换为汇总值，其余字节取窗口内最后一个通知
+     *
+     * @param aggregate AGGREGATE_MIN、AGGREGATE_MAX或AGGREGATE_MEAN
+     * @param windowMillis 窗口长度，单位毫秒
+     * @param offset 字段起始位置
+     * @param bytes 字段字节数，1~4
+     * @param signed 是否有符号
+     * @return 过滤条件
+     */
+    public static BLENotificationFilter aggregate(int aggregate, long windowMillis, int offset, int bytes,
+                                                  boolean signed) {
+        if (bytes < 1 || bytes > 4) {
+            throw new IllegalArgumentException("bytes must be 1~4");
+        }
+        BLENotificationFilter filter = new BLENotificationFilter(MODE_AGGREGATE);
+        filter.mAggregate = aggregate;
+        filter.mIntervalMillis = windowMillis;
+        filter.mOffset = offset;
+        filter.mBytes = bytes;
+        filter.mSigned = signed;
+        return filter;
+    }
+
+    /**
+     * 为一个设备特征创建过滤状态
+     *
+     * @param handler 间隔或窗口结束时回调剩余数据使用的Handler，为空时不定时回调
+     * @param listener 定时回调的接收方
+     */
+    Reducer newReducer(Handler handler, OnFlushListener listener) {
+        return new Reducer(handler, listener);
+    }
+
+    /**
+     * 间隔或窗口结束时由定时器回调的数据，与reduce()返回的数据按同样的方式分发
+     *
+     */
+    interface OnFlushListener {
+        void onFlush(byte[] data);
+    }
+
+    /**
+     * 一个设备特征的过滤状态，自身作为间隔或窗口结束时的定时任务
+     *
+     */
+    class Reducer implements Runnable {
+
+        private final Handler mHandler;
+
+        private final OnFlushListener mListener;
+
+        /* 是否已安排定时回调 */
+        private boolean mScheduled = false;
+
+        private boolean mCancelled = false;
+
+        /* 节流模式下间隔内最新的还没回调的通知 */
+        private byte[] mPending;
+
+        private long mWindowStart = -1;
+
+        private int mCount = 0;
+
+        private byte[] mLast;
+
+        private long mMin;
+
+        private long mMax;
+
+        private long mSum;
+
+        Reducer(Handler handler, OnFlushListener listener) {
+            mHandler = handler;
+            mListener = listener;
+        }
+
+        /**
+         * 处理一个通知
+         *
+         * @param data 通知数据
+         * @return 需要回调的数据，为空表示丢弃
+         */
+        synchronized byte[] reduce(byte[] data) {
+            switch (mMode) {
+                case MODE_LATEST: {
+                    long now = SystemClock.elapsedRealtime();
+                    if (mWindowStart >= 0 && now - mWindowStart < mIntervalMillis) {
+                        mPending = data;
+                        schedule(mWindowStart + mIntervalMillis - now);
+                        return null;
+                    }
+                    // 定时回调还没执行时到达的通知比未回调的数据更新，直接替换
+                    mWindowStart = now;
+                    mPending = null;
+                    return data;
+                }
+                case MODE_EVERY_NTH:
+                    return mCount++ % mN == 0 ? data : null;
+                case MODE_DISTINCT:
+                    if (mLast != null && Arrays.equals(mLast, data)) {
+                        return null;
+                    }
+                    mLast = data;
+                    return data;
+                case MODE_AGGREGATE:
+                    return aggregate(data);
+                default:
+                    return data;
+            }
+        }
+
+        private byte[] aggregate(byte[] data) {
+            if (data == null || data.length < mOffset + mBytes) {
+                return data;
+            }
+            long now = SystemClock.elapsedRealtime();
+            long value = IntLECodec.readInt(data, mOffset, mBytes, mSigned);
+            if (!mSigned && mBytes == 4) {
+                value &= 0xFFFFFFFFL;
+            }
+            if (mCount == 0) {
+                mWindowStart = now;
+                mMin = value;
+                mMax = value;
+                mSum = 0;
+                schedule(mIntervalMillis);
+            }
+            mMin = Math.min(mMin, value);
+            mMax = Math.max(mMax, value);
+            mSum += value;
+            mCount++;
+            mLast = data;
+            if (now - mWindowStart < mIntervalMillis) {
+                return null;
+            }
+            return flushAggregate();
+        }
+
+        /**
+         * 结束当前窗口，返回汇总后的数据
+         *
+         */
+        private byte[] flushAggregate() {
+            long result;
+            switch (mAggregate) {
+                case AGGREGATE_MIN:
+                    result = mMin;
+                    break;
+                case AGGREGATE_MAX:
+                    result = mMax;
+                    break;
+                default:
+                    result = Math.round((double) mSum / mCount);
+                    break;
+            }
+            mCount = 0;
+            byte[] out = mLast.clone();
+            for (int i = 0; i < mBytes; i++) {
+                out[mOffset + i] = (byte) (result >> (8 * i));
+            }
+            return out;
+        }
+
+        /**
+         * 间隔或窗口结束时回调还没回调的数据，之后到达的通知已回调或还在新的窗口内时不回调
+         *
+         */
+        @Override
+        public void run() {
+            synchronized (this) {
+                mScheduled = false;
+                if (mCancelled) {
+                    return;
+                }
+                boolean latest = mMode == MODE_LATEST;
+                if (latest ? mPending == null : mCount == 0) {
+                    return;
+                }
+                long now = SystemClock.elapsedRealtime();
+                if (now - mWindowStart < mIntervalMillis) {
+                    // 为上一个间隔或窗口安排的定时任务，当前的还没结束
+                    schedule(mWindowStart + mIntervalMillis - now);
+                    return;
+                }
+                byte[] out;
+                if (latest) {
+                    out = mPending;
+                    mPending = null;
+                    // 回调的数据开始一个新的间隔，之后到达的通知继续节流
+                    mWindowStart = now;
+                } else {
+                    out = flushAggregate();
+                }
+                // 在锁内回调，之后到达的通知不会比这次回调先分发
+                mListener.onFlush(out);
+            }
+        }
+
+        private void schedule(long delayMillis) {
+            if (mScheduled || mCancelled || mHandler == null) {
+                return;
+            }
+            mScheduled = true;
+            mHandler.postDelayed(this, Math.max(0, delayMillis));
+        }
+
+        /**
+         * 取消定时回调，过滤条件被替换或设备停止时调用，之后不再回调
+         *
+         */
+        synchronized void cancel() {
+            mCancelled = true;
+            mPending = null;
+            if (mHandler != null) {
+                mHandler.removeCallbacks(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package ai.ldzero.blewrapperdev.ble;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import ai.ldzero.blewrapperdev.ble.utils.MacAddress;
+
+/**
+ * 周期轮询调度器
+ * 按(mac, 特征)设置的周期把读任务加入任务队列，
+ * 各轮询项带有随机相位，避免所有设备同时触发；上一次读任务仍在队列中时跳过本次轮询；
+ * 任务队列接近饱和或读任务因队列已满被拒绝时整体放慢轮询速度，队列空闲后逐步恢复；
+ * 设备未连接、mac无效或设备熔断导致的失败只影响该轮询项，不放慢其他设备
+ *
+ * Created on 2017/12/22.
+ *
+ * @author ldzero
+ */
+
+class BLEPollScheduler {
+
+    private final String LOG_TAG = this.getClass().getSimpleName();
+
+    /* 队列占用率达到该值时视为饱和，放慢轮询 */
+    private static final float SATURATED_LOAD = 0.8f;
+
+    /* 队列占用率低于该值时视为空闲，逐步恢复轮询速度 */
+    private static final float IDLE_LOAD = 0.5f;
+
+    /* 轮询周期最大放大倍数 */
+    private static final int MAX_BACKOFF_FACTOR = 8;
+
+    /* 每次轮询的随机抖动占周期的比例 */
+    private static final float JITTER_RATIO = 0.1f;
+
+    /* 以下字段只在持有锁时访问，轮询线程在锁内复制到局部变量后使用 */
+    private BLEWrapper mWrapper;
+
+    private HandlerThread mPollThread;
+
+    private Handler mHandler;
+
+    /* 轮询项，key为设备地址与特征UUID */
+    private final Map<CharacteristicKey, PollEntry> mEntryMap = new HashMap<>();
+
+    private final Random mRandom = new Random();
+
+    /* 当前轮询周期放大倍数，只在轮询线程中修改 */
+    private int mBackoffFactor = 1;
+
+    BLEPollScheduler(BLEWrapper wrapper) {
+        mWrapper = wrapper;
+    }
+
+    /**
+     * 开始轮询，若该(mac, 特征)已在轮询，则更新其参数
+     *
+     * @param mac 设备mac
+     * @param serviceUUID 服务UUID
+     * @param characteristicUUID 特征UUID
+     * @param intervalMillis 轮询周期，单位毫秒
+     * @param timeoutMillis 每次读操作超时时间，单位毫秒
+     */
+    synchronized void startPolling(String mac, UUID serviceUUID, UUID characteristicUUID,
+                                   long intervalMillis, long timeoutMillis) {
+        if (intervalMillis <= 0) {
+            return;
+        }
+        if (mPollThread == null) {
+            // 首次使用时才启动轮询线程
+            mPollThread = new HandlerThread("PollThread");
+            mPollThread.start();
+            mHandler = new Handler(mPollThread.getLooper());
+        }
+        CharacteristicKey key = new CharacteristicKey(MacAddress.parse(mac), characteristicUUID);
+        PollEntry old = mEntryMap.remove(key);
+        if (old != null) {
+            old.mCancelled = true;
+            mHandler.removeCallbacks(old);
+        }
+        PollEntry entry = new PollEntry(mac, serviceUUID, characteristicUUID, intervalMillis, timeoutMillis);
+        mEntryMap.put(key, entry);
+        // 首次触发时间在[0, interval)内随机，把各设备的轮询错开
+        long phase = (long) (mRandom.nextFloat() * intervalMillis);
+        Log.d(LOG_TAG, "start polling " + mac + "/" + characteristicUUID + " every " + intervalMillis + "ms, phase = " + phase);
+        mHandler.postDelayed(entry, phase);
+    }
+
+    /**
+     * 停止轮询
+     *
+     * @param mac 设备mac
+     * @param characteristicUUID 特征UUID
+     */
+    synchronized void stopPolling(String mac, UUID characteristicUUID) {
+        PollEntry entry = mEntryMap.remove(new CharacteristicKey(MacAddress.parse(mac), characteristicUUID));
+        if (entry != null && mHandler != null) {
+            Log.d(LOG_TAG, "stop polling " + mac + "/" + characteristicUUID);
+            entry.mCancelled = true;
+            mHandler.removeCallbacks(entry);
+        }
+    }
+
+    /**
+     * 停止工作
+     *
+     */
+    synchronized void stop() {
+        Log.d(LOG_TAG, "BLEPollScheduler stop working");
+        for (PollEntry entry : mEntryMap.values()) {
+            entry.mCancelled = true;
+        }
+        mEntryMap.clear();
+        if (mPollThread != null) {
+            mHandler.removeCallbacksAndMessages(null);
+            mPollThread.quit();
+        }
+        release();
+    }
+
+    /**
+     * 释放资源
+     *
+     */
+    private void release() {
+        Log.d(LOG_TAG, "BLEPollScheduler release resources");
+        mHandler = null;
+        mPollThread = null;
+        mWrapper = null;
+    }
+
+    /**
+     * 根据任务队列占用率调整轮询周期放大倍数
+     *
+     * @param wrapper wrapper
+     * @param queueFull 本次读任务是否因队列已满被拒绝
+     */
+    private void adjustBackoff(BLEWrapper wrapper, boolean queueFull) {
+        float load = wrapper.getTaskLoad();
+        if (queueFull || load >= SATURATED_LOAD) {
+            if (mBackoffFactor < MAX_BACKOFF_FACTOR) {
+                mBackoffFactor <<= 1;
+                Log.d(LOG_TAG, "task queue saturated, load = " + load + ", backoff = " + mBackoffFactor);
+            }
+        } else if (load < IDLE_LOAD && mBackoffFactor > 1) {
+            mBackoffFactor >>= 1;
+            Log.d(LOG_TAG, "task queue idle, load = " + load + ", backoff = " + mBackoffFactor);
+        }
+    }
+
+    /**
+     * 计算下一次轮询的延时
+     *
+     * @param intervalMillis 轮询周期
+     * @return 延时，单位毫秒
+     */
+    private long nextDelay(long intervalMillis) {
+        long base = intervalMillis * mBackoffFactor;
+        long jitter = (long) ((mRandom.nextFloat() * 2 - 1) * JITTER_RATIO * intervalMillis);
+        return Math.max(0, base + jitter);
+    }
+
+    /**
+     * 轮询项，在轮询线程中执行
+     *
+     */
+    private class PollEntry implements Runnable {
+
+        private final String mMac;
+
+        private final UUID mServiceUUID;
+
+        private final UUID mCharacteristicUUID;
+
+        private final long mIntervalMillis;
+
+        private final long mTimeoutMillis;
+
+        /* 上一次的读任务是否仍在队列中或执行中 */
+        private volatile boolean mQueued = false;
+
+        private volatile boolean mCancelled = false;
+
+        /* 读任务结束时回调 */
+        private final BLEWrapper.OnReadListener mOnReadFinish = new BLEWrapper.OnReadListener() {
+            @Override
+            public void onRead(String mac, UUID characteristicUUID, boolean success, byte[] data) {
+                mQueued = false;
+            }
+        };
+
+        PollEntry(String mac, UUID serviceUUID, UUID characteristicUUID, long intervalMillis, long timeoutMillis) {
+            mMac = mac;
+            mServiceUUID = serviceUUID;
+            mCharacteristicUUID = characteristicUUID;
+            mIntervalMillis = intervalMillis;
+            mTimeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public void run() {
+            BLEWrapper wrapper;
+            Handler handler;
+            synchronized (BLEPollScheduler.this) {
+                wrapper = mWrapper;
+                handler = mHandler;
+            }
+            if (mCancelled || wrapper == null || handler == null) {
+                return;
+            }
+            if (mQueued) {
+                // 上一次轮询尚未完成，跳过本次
+                Log.d(LOG_TAG, mMac + " skip polling " + mCharacteristicUUID + ", previous read still queued");
+                adjustBackoff(wrapper, false);
+            } else {
+                mQueued = true;
+                int result = wrapper.pollRead(mMac, mServiceUUID, mCharacteristicUUID, mTimeoutMillis,
+                        mOnReadFinish);
+                if (result != BLEWrapper.ADD_OK) {
+                    mQueued = false;
+                    if (result != BLEWrapper.ADD_QUEUE_FULL) {
+                        Log.d(LOG_TAG, mMac + " poll " + mCharacteristicUUID + " not queued, result = " + result);
+                    }
+                }
+                adjustBackoff(wrapper, result == BLEWrapper.ADD_QUEUE_FULL);
+            }
+            if (!mCancelled) {
+                handler.postDelayed(this, nextDelay(mIntervalMillis));
+            }
+        }
+    }
+}
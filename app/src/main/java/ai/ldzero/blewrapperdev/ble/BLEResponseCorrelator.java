@@ -0,0 +1,181 @@
+package ai.ldzero.blewrapperdev.ble;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import ai.ldzero.blewrapperdev.ble.utils.MacAddress;
+
+/**
+ * 把设备通知与等待应答的命令对应起来
+ * 同一设备同一应答特征可以有多个未完成的命令，收到通知时按发出顺序找第一个匹配的命令，
+ * 匹配条件由调用方给出，例如序号字节或操作码；每个命令有自己的截止时间。
+ * 只在有未完成的命令时向通知分发器注册，注册和注销都在持有锁时进行
+ *
+ * Created on 2018/01/01.
+ *
+ * @author ldzero
+ */
+
+class BLEResponseCorrelator implements BLEWrapper.OnNotificationListener {
+
+    private final String LOG_TAG = this.getClass().getSimpleName();
+
+    private final BLEWrapper mWrapper;
+
+    private final BLENotificationDispatcher mDispatcher;
+
+    /* 未完成的命令，key为设备地址与应答特征UUID，按发出顺序排列，只在持有锁时访问 */
+    private final Map<CharacteristicKey, List<Pending>> mPending = new HashMap<>();
+
+    BLEResponseCorrelator(BLEWrapper wrapper, BLENotificationDispatcher dispatcher) {
+        mWrapper = wrapper;
+        mDispatcher = dispatcher;
+    }
+
+    /**
+     * 登记等待应答的命令，需在写命令之前调用，避免漏掉很快到达的应答
+     *
+     * @param mac 设备mac，需为合法地址
+     * @param responseUUID 应答特征UUID
+     * @param matcher 匹配条件，为空表示该特征的下一个通知
+     * @param timeoutMillis 从登记开始计算的超时时间，单位毫秒
+     * @param listener 结果回调
+     * @return 登记的命令，Wrapper已停止时返回null
+     */
+    Pending register(String mac, UUID responseUUID, BLETransaction.Matcher matcher, long timeoutMillis,
+                     BLEWrapper.OnResponseListener listener) {
+        final Pending pending = new Pending(mac, responseUUID, matcher, listener);
+        synchronized (this) {
+            List<Pending> list = mPending.get(pending.mKey);
+            if (list == null) {
+                list = new ArrayList<>();
+                mPending.put(pending.mKey, list);
+                mDispatcher.addListener(pending.mKey.getAddress(), responseUUID, this);
+            }
+            list.add(pending);
+        }
+        if (!mWrapper.postDelayed(pending.mTimeoutRunnable, timeoutMillis)) {
+            complete(pending, false, "stopped", null);
+            return null;
+        }
+        return pending;
+    }
+
+    /**
+     * 命令没有发出或写失败时调用，结束等待
+     *
+     * @param pending 登记的命令
+     * @param msg 失败原因
+     */
+    void fail(Pending pending, String msg) {
+        complete(pending, false, msg, null);
+    }
+
+    /**
+     * 结束全部未完成的命令
+     *
+     */
+    void clear() {
+        List<Pending> all = new ArrayList<>();
+        synchronized (this) {
+            for (List<Pending> list : mPending.values()) {
+                all.addAll(list);
+            }
+        }
+        for (Pending pending : all) {
+            complete(pending, false, "stopped", null);
+        }
+    }
+
+    @Override
+    public void onNotification(String mac, UUID characteristicUUID, byte[] data) {
+        Pending matched = null;
+        synchronized (this) {
+            List<Pending> list = mPending.get(new CharacteristicKey(MacAddress.parse(mac), characteristicUUID));
+            if (list == null) {
+                return;
+            }
+            for (Pending pending : list) {
+                if (pending.mMatcher == null || pending.mMatcher.matches(data)) {
+                    matched = pending;
+                    break;
+                }
+            }
+        }
+        if (matched != null) {
+            complete(matched, true, "success", data);
+        }
+    }
+
+    private void complete(Pending pending, boolean success, String msg, byte[] data) {
+        synchronized (this) {
+            if (pending.mDone) {
+                return;
+            }
+            pending.mDone = true;
+            List<Pending> list = mPending.get(pending.mKey);
+            if (list != null) {
+                for (Iterator<Pending> iterator = list.iterator(); iterator.hasNext(); ) {
+                    if (iterator.next() == pending) {
+                        iterator.remove();
+                        break;
+                    }
+                }
+                if (list.isEmpty()) {
+                    mPending.remove(pending.mKey);
+                    mDispatcher.removeListener(pending.mKey.getAddress(), pending.mResponseUUID, this);
+                }
+            }
+        }
+        mWrapper.removeCallbacks(pending.mTimeoutRunnable);
+        long elapsed = SystemClock.elapsedRealtime() - pending.mStartTime;
+        Log.d(LOG_TAG, pending.mMac + " response " + (success ? "received" : "failed: " + msg) + " in " + elapsed + "ms");
+        if (pending.mListener != null) {
+            pending.mListener.onResponse(pending.mMac, success, msg, data);
+        }
+    }
+
+    /**
+     * 等待应答的命令
+     *
+     */
+    class Pending {
+
+        private final String mMac;
+
+        private final UUID mResponseUUID;
+
+        private final CharacteristicKey mKey;
+
+        private final BLETransaction.Matcher mMatcher;
+
+        private final BLEWrapper.OnResponseListener mListener;
+
+        private final long mStartTime = SystemClock.elapsedRealtime();
+
+        /* 是否已结束，只在持有锁时访问 */
+        private boolean mDone = false;
+
+        private final Runnable mTimeoutRunnable = new Runnable() {
+            @Override
+            public void run() {
+                complete(Pending.this, false, "timeout", null);
+            }
+        };
+
+        Pending(String mac, UUID responseUUID, BLETransaction.Matcher matcher, BLEWrapper.OnResponseListener listener) {
+            mMac = mac;
+            mResponseUUID = responseUUID;
+            mKey = new CharacteristicKey(MacAddress.parse(mac), responseUUID);
+            mMatcher = matcher;
+            mListener = listener;
+        }
+    }
+}
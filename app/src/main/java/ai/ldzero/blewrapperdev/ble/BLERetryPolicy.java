@@ -0,0 +1,80 @@
+package ai.ldzero.blewrapperdev.ble;
+
+import java.util.Random;
+
+/**
+ * 设备操作的重试策略
+ * 失败的操作在退避时间后重新加入任务队列，不占用执行线程等待；
+ * 退避时间按倍数增长，不超过最大值，并按抖动比例随机缩短，避免多个设备同时重试
+ *
+ * Created on 2017/12/30.
+ *
+ * @author ldzero
+ */
+
+public class BLERetryPolicy {
+
+    private int mMaxAttempts = 1;
+
+    private long mInitialBackoffMillis = 500;
+
+    private long mMaxBackoffMillis = 10 * 1000;
+
+    private float mMultiplier = 2;
+
+    private float mJitter = 0.2f;
+
+    /**
+     * 设置最多尝试次数，包括第一次
+     *
+     * @param maxAttempts 次数，1表示不重试
+     * @return this
+     */
+    public BLERetryPolicy setMaxAttempts(int maxAttempts) {
+        mMaxAttempts = Math.max(1, maxAttempts);
+        return this;
+    }
+
+    /**
+     * 设置退避时间
+     *
+     * @param initialBackoffMillis 第一次重试前的等待时间，单位毫秒
+     * @param maxBackoffMillis 等待时间上限，单位毫秒
+     * @param multiplier 每次重试等待时间的增长倍数
+     * @return this
+     */
+    public BLERetryPolicy setBackoff(long initialBackoffMillis, long maxBackoffMillis, float multiplier) {
+        mInitialBackoffMillis = initialBackoffMillis;
+        mMaxBackoffMillis = maxBackoffMillis;
+        mMultiplier = Math.max(1, multiplier);
+        return this;
+    }
+
+    /**
+     * 设置抖动比例，实际等待时间在[1 - jitter, 1]倍之间随机
+     *
+     * @param jitter 0~1
+     * @return this
+     */
+    public BLERetryPolicy setJitter(float jitter) {
+        mJitter = Math.min(1, Math.max(0, jitter));
+        return this;
+    }
+
+    int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * 返回第attempt次尝试失败后的等待时间
+     *
+     * @param attempt 已尝试次数，从1开始
+     * @param random 随机数
+     * @return 等待时间，单位毫秒
+     */
+    long getBackoffMillis(int attempt, Random random) {
+        double backoff = mInitialBackoffMillis * Math.pow(mMultiplier, attempt - 1);
+        backoff = Math.min(backoff, mMaxBackoffMillis);
+        return (long) (backoff * (1 - mJitter * random.nextFloat()));
+    }
+}
@@ -0,0 +1,86 @@
+package ai.ldzero.blewrapperdev.ble;
+
+/**
+ * 按操作类型统计设备往返时间，估算超时时间
+ * 与TCP重传超时的算法相同：平滑往返时间SRTT和偏差RTTVAR按1/8和1/4的权重更新，
+ * 超时时间为SRTT + 4 * RTTVAR，每次超时翻倍，收到新样本后恢复；
+ * 超时的操作不产生样本。结果限制在最小值和调用方给出的超时时间之间
+ *
+ * Created on 2017/12/30.
+ *
+ * @author ldzero
+ */
+
+class BLERttEstimator {
+
+    static final int OP_CONNECT = 0;
+    static final int OP_READ = 1;
+    static final int OP_WRITE = 2;
+
+    private static final int OP_COUNT = 3;
+
+    /* 各操作类型超时时间的下限，单位毫秒 */
+    private static final long[] MIN_TIMEOUT_MILLIS = {2000, 300, 300};
+
+    /* 超时翻倍的最大倍数 */
+    private static final int MAX_BACKOFF = 64;
+
+    /* 平滑往返时间，单位毫秒，0表示还没有样本 */
+    private final double[] mSrtt = new double[OP_COUNT];
+
+    private final double[] mRttVar = new double[OP_COUNT];
+
+    private final int[] mBackoff = {1, 1, 1};
+
+    /**
+     * 记录一次成功操作的往返时间
+     *
+     * @param op 操作类型
+     * @param rttMillis 往返时间，单位毫秒
+     */
+    synchronized void onSample(int op, long rttMillis) {
+        double rtt = Math.max(1, rttMillis);
+        if (mSrtt[op] == 0) {
+            mSrtt[op] = rtt;
+            mRttVar[op] = rtt / 2;
+        } else {
+            mRttVar[op] = 0.75 * mRttVar[op] + 0.25 * Math.abs(mSrtt[op] - rtt);
+            mSrtt[op] = 0.875 * mSrtt[op] + 0.125 * rtt;
+        }
+        mBackoff[op] = 1;
+    }
+
+    /**
+     * 记录一次超时，下一次超时时间翻倍
+     *
+     * @param op 操作类型
+     */
+    synchronized void onTimeout(int op) {
+        mBackoff[op] = Math.min(mBackoff[op] * 2, MAX_BACKOFF);
+    }
+
+    /**
+     * 返回超时时间
+     *
+     * @param op 操作类型
+     * @param maxTimeoutMillis 调用方给出的超时时间，作为上限，没有样本时直接使用
+     * @return 超时时间，单位毫秒
+     */
+    synchronized long getTimeout(int op, long maxTimeoutMillis) {
+        if (mSrtt[op] == 0) {
+            return maxTimeoutMillis;
+        }
+        long timeout = (long) ((mSrtt[op] + 4 * mRttVar[op]) * mBackoff[op]);
+        return Math.min(Math.max(timeout, MIN_TIMEOUT_MILLIS[op]), maxTimeoutMillis);
+    }
+
+    /**
+     * 返回平滑往返时间
+     *
+     * @param op 操作类型
+     * @return 平滑往返时间，单位毫秒，还没有样本时返回-1
+     */
+    synchronized long getSmoothedRtt(int op) {
+        return mSrtt[op] == 0 ? -1 : Math.round(mSrtt[op]);
+    }
+}
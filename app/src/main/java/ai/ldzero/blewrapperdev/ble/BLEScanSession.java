@@ -0,0 +1,210 @@
+package ai.ldzero.blewrapperdev.ble;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import ai.ldzero.blewrapperdev.ble.utils.MacAddress;
+
+/**
+ * 扫描会话
+ * 多个会话共用同一个硬件扫描，每个会话有自己的过滤条件、超时时间和回调，
+ * 最后一个会话结束时硬件扫描才停止
+ *
+ * Created on 2017/12/28.
+ *
+ * @author ldzero
+ */
+
+public class BLEScanSession {
+
+    /* 只接收该mac的设备，MacAddress.INVALID表示不过滤 */
+    private long mAddress = MacAddress.INVALID;
+
+    /* 只接收名称以该前缀开头的设备，为空表示不过滤 */
+    private String mNamePrefix;
+
+    /* 只接收信号强度不低于该值的设备 */
+    private int mMinRssi = Integer.MIN_VALUE;
+
+    private boolean mFilterRepeatDevice = false;
+
+    private long mTimeoutMillis = 10 * 1000;
+
+    /* 扫描窗口时长和扫描周期，窗口不小于周期或为0时要求连续扫描 */
+    private long mWindowMillis = 0;
+    private long mIntervalMillis = 0;
+
+    private OnScanResultListener mListener;
+
+    /* 记录本会话已回调的设备地址，用于过滤重复设备 */
+    private final Set<Long> mScannedAddressSet = new HashSet<>();
+
+    private BLEScanner mScanner;
+
+    private volatile boolean mActive = false;
+
+    public BLEScanSession setMac(String mac) {
+        long address = MacAddress.parse(mac);
+        if (mac != null && address == MacAddress.INVALID) {
+            throw new IllegalArgumentException("invalid mac " + mac);
+        }
+        mAddress = address;
+        return this;
+    }
+
+    public BLEScanSession setMac(long address) {
+        mAddress = address;
+        return this;
+    }
+
+    public BLEScanSession setNamePrefix(String namePrefix) {
+        mNamePrefix = namePrefix;
+        return this;
+    }
+
+    public BLEScanSession setMinRssi(int minRssi) {
+        mMinRssi = minRssi;
+        return this;
+    }
+
+    public BLEScanSession setFilterRepeatDevice(boolean filterRepeatDevice) {
+        mFilterRepeatDevice = filterRepeatDevice;
+        return this;
+    }
+
+    /**
+     * 设置超时时间
+     *
+     * @param timeoutMillis 从会话开始计算的超时时间，单位毫秒
+     * @return this
+     */
+    public BLEScanSession setTimeoutMillis(long timeoutMillis) {
+        mTimeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    /**
+     * 设置扫描窗口，每intervalMillis扫描windowMillis；
+     * 多个会话同时进行时硬件扫描按其中最积极的设置进行
+     *
+     * @param windowMillis 扫描窗口时长，单位毫秒，不小于intervalMillis或为0时为连续扫描
+     * @param intervalMillis 扫描周期，单位毫秒
+     * @return this
+     */
+    public BLEScanSession setScanWindow(long windowMillis, long intervalMillis) {
+        mWindowMillis = windowMillis;
+        mIntervalMillis = intervalMillis;
+        return this;
+    }
+
+    public BLEScanSession setOnScanResultListener(OnScanResultListener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    /**
+     * 结束会话，不回调onTimeout()
+     *
+     */
+    public void stop() {
+        BLEScanner scanner = mScanner;
+        if (scanner != null) {
+            scanner.endSession(this);
+        }
+    }
+
+    public boolean isActive() {
+        return mActive;
+    }
+
+    long getAddress() {
+        return mAddress;
+    }
+
+    String getNamePrefix() {
+        return mNamePrefix;
+    }
+
+    int getMinRssi() {
+        return mMinRssi;
+    }
+
+    long getTimeoutMillis() {
+        return mTimeoutMillis;
+    }
+
+    long getWindowMillis() {
+        return mWindowMillis;
+    }
+
+    long getIntervalMillis() {
+        return mIntervalMillis;
+    }
+
+    /**
+     * 是否要求连续扫描
+     *
+     */
+    boolean isContinuous() {
+        return mWindowMillis <= 0 || mWindowMillis >= mIntervalMillis;
+    }
+
+    OnScanResultListener getListener() {
+        return mListener;
+    }
+
+    /**
+     * 会话开始时由BLEScanner调用
+     *
+     */
+    void onStart(BLEScanner scanner) {
+        mScanner = scanner;
+        synchronized (mScannedAddressSet) {
+            mScannedAddressSet.clear();
+        }
+        mActive = true;
+    }
+
+    /**
+     * 会话结束时由BLEScanner调用
+     *
+     */
+    void onEnd() {
+        mActive = false;
+        mScanner = null;
+    }
+
+    /**
+     * 把扫描结果交给会话，mac和信号强度已在索引中匹配过
+     *
+     * @param address 设备的48位地址
+     * @return 是否为本会话新发现的设备
+     */
+    boolean offer(BluetoothDevice device, long address, String name, int rssi, byte[] scanRecord) {
+        if (!mActive) {
+            return false;
+        }
+        if (mNamePrefix != null && (name == null || !name.startsWith(mNamePrefix))) {
+            return false;
+        }
+        boolean isNew;
+        synchronized (mScannedAddressSet) {
+            isNew = mScannedAddressSet.add(address);
+        }
+        if (mFilterRepeatDevice && !isNew) {
+            return false;
+        }
+        if (mListener != null) {
+            mListener.onDeviceScan(device, rssi, scanRecord);
+        }
+        return isNew;
+    }
+
+    public interface OnScanResultListener {
+        void onDeviceScan(BluetoothDevice device, int rssi, byte[] scanRecord);
+
+        void onTimeout();
+    }
+}
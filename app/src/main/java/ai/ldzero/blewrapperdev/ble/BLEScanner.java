@@ -2,17 +2,25 @@ package ai.ldzero.blewrapperdev.ble;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import ai.ldzero.blewrapperdev.ble.utils.ConcurrentLongMap;
+import ai.ldzero.blewrapperdev.ble.utils.MacAddress;
 
 /**
  * 封装扫描BLE设备相关操作
+ * 多个扫描会话共用同一个硬件扫描，会话的过滤条件合并为索引，
+ * 每个扫描结果只查找一次索引即可分发给所有匹配的会话
  *
  * Created on 2017/7/20.
  *
@@ -25,35 +33,86 @@ class BLEScanner {
 
     private BluetoothAdapter mBluetoothAdapter;
 
-    /* 搜索到重复设备是否进行过滤 */
-    private boolean mFilterRepeatDevice;
+    /* 处理扫描结果的线程，第一个会话开始时创建，空闲超过mIdleTimeoutMillis后退出 */
+    private HandlerThread mHandleScanResultThread;
 
-    /* 记录搜索到到设备，用于过滤重复设备 */
-    private Set<String> mScanDeviceMacSet;
+    private volatile Handler mHandler;
 
-    private HandlerThread mHandleScanResultThread;
+    /* 默认空闲时间，单位毫秒 */
+    static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30 * 1000;
 
-    private Handler mHandler;
+    private long mIdleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
 
     private final int MSG_HANDLE_SCAN_RESULT = 100;
-    private final int MSG_SCAN_TIMEOUT = 101;
+    private final int MSG_SESSION_TIMEOUT = 101;
+    private final int MSG_WINDOW_START = 102;
+    private final int MSG_WINDOW_END = 103;
+    private final int MSG_IDLE_QUIT = 104;
+
+    /* 系统限制：SCAN_START_PERIOD_MILLIS内最多开始SCAN_START_LIMIT次扫描，超过后扫描不再返回结果 */
+    private static final int SCAN_START_LIMIT = 5;
+    private static final long SCAN_START_PERIOD_MILLIS = 30 * 1000;
+
+    /* 扫描周期最大放大倍数 */
+    private static final int MAX_BACKOFF_FACTOR = 8;
+
+    /* 一个扫描窗口内发现的新设备少于该值时放大扫描周期 */
+    private static final int MIN_WINDOW_RESULTS = 1;
+
+    /* 最近几次开始扫描的时间，环形存放 */
+    private final long[] mScanStartTimes = new long[SCAN_START_LIMIT];
+
+    private int mScanStartIndex = 0;
+
+    /* 硬件是否正在扫描 */
+    private boolean mScanning = false;
+
+    /* 进行中的会话 */
+    private final List<BLEScanSession> mSessions = new ArrayList<>();
+
+    /* 由会话过滤条件合并的索引，会话变化时整体替换 */
+    private volatile ScanIndex mIndex = new ScanIndex(Collections.<BLEScanSession>emptyList());
+
+    /* startScan()使用的默认会话 */
+    private BLEScanSession mDefaultSession;
+
+    /* 扫描窗口时长和基础扫描周期，由进行中的会话计算，窗口不小于周期时为连续扫描 */
+    private long mWindowMillis;
+    private long mBaseIntervalMillis;
+
+    /* 当前扫描周期，结果稀疏时在基础周期上放大 */
+    private long mIntervalMillis;
+
+    /* 当前窗口发现的新设备数 */
+    private int mWindowResultCount = 0;
+
+    /* 扫描到的设备记录到目录中，可为空 */
+    private volatile BLEDeviceCatalog mDeviceCatalog;
 
     private BluetoothAdapter.LeScanCallback mScanCallback = new BluetoothAdapter.LeScanCallback() {
         @Override
         public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
             // onLeScan回调中只做尽量少的工作，具体逻辑放在HandlerThread完成
-            Message message = Message.obtain();
-            message.what = MSG_HANDLE_SCAN_RESULT;
-            Bundle bundle = new Bundle();
-            bundle.putParcelable("BluetoothDevice", device);
-            message.setData(bundle);
-            mHandler.sendMessage(message);
+            Handler handler = mHandler;
+            if (handler != null) {
+                handler.obtainMessage(MSG_HANDLE_SCAN_RESULT, new ScanResult(device, rssi, scanRecord)).sendToTarget();
+            }
         }
     };
 
     BLEScanner(BluetoothAdapter bluetoothAdapter) {
-        mScanDeviceMacSet = new HashSet<>();
         mBluetoothAdapter = bluetoothAdapter;
+    }
+
+    /**
+     * 处理扫描结果的线程不存在时创建
+     *
+     */
+    private void ensureHandler() {
+        if (mHandler != null) {
+            return;
+        }
+        Log.d(LOG_TAG, "start scan result thread");
         mHandleScanResultThread = new HandlerThread("HandleScanResultThread");
         mHandleScanResultThread.start();
         mHandler = new Handler(mHandleScanResultThread.getLooper()) {
@@ -61,15 +120,19 @@ class BLEScanner {
             public void handleMessage(Message msg) {
                 switch (msg.what) {
                     case MSG_HANDLE_SCAN_RESULT:
-                        BluetoothDevice device = msg.getData().getParcelable("BluetoothDevice");
-                        handleScanResult(device);
+                        handleScanResult((ScanResult) msg.obj);
+                        break;
+                    case MSG_SESSION_TIMEOUT:
+                        onSessionTimeout((BLEScanSession) msg.obj);
+                        break;
+                    case MSG_WINDOW_START:
+                        onWindowStart();
+                        break;
+                    case MSG_WINDOW_END:
+                        onWindowEnd();
                         break;
-                    case MSG_SCAN_TIMEOUT:
-                        Log.d(LOG_TAG, "scan timeout");
-                        if (mOnScanListener != null) {
-                            mOnScanListener.onTimeout();
-                        }
-                        stopScan();
+                    case MSG_IDLE_QUIT:
+                        quitIfIdle();
                         break;
                     default:
                         break;
@@ -79,50 +142,283 @@ class BLEScanner {
     }
 
     /**
-     * 处理扫描设备结果
+     * 没有会话时退出处理扫描结果的线程
+     *
+     */
+    private synchronized void quitIfIdle() {
+        if (!mSessions.isEmpty() || mHandler == null) {
+            return;
+        }
+        Log.d(LOG_TAG, "scan result thread idle, quit");
+        mHandler.removeCallbacksAndMessages(null);
+        mHandleScanResultThread.quit();
+        mHandler = null;
+        mHandleScanResultThread = null;
+    }
+
+    /**
+     * 设置空闲时间，没有会话超过该时间后处理扫描结果的线程退出
+     *
+     * @param idleTimeoutMillis 空闲时间，单位毫秒
+     */
+    synchronized void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        mIdleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * 处理扫描设备结果，按mac和信号强度在索引中找出候选会话后分发
      *
-     * @param bluetoothDevice 设备
+     * @param result 扫描结果
      */
-    private void handleScanResult(BluetoothDevice bluetoothDevice) {
-        if (bluetoothDevice == null || bluetoothDevice.getAddress() == null) {
+    private void handleScanResult(ScanResult result) {
+        String mac = result.mDevice == null ? null : result.mDevice.getAddress();
+        if (mac == null) {
             return;
         }
-        if (mFilterRepeatDevice) {
-            for (String mac: mScanDeviceMacSet) {
-                if (bluetoothDevice.getAddress().equals(mac)) {
-                    return;
+        long address = MacAddress.parse(mac);
+        if (address == MacAddress.INVALID) {
+            return;
+        }
+        BLEDeviceCatalog catalog = mDeviceCatalog;
+        if (catalog != null) {
+            catalog.onSeen(address, result.mRssi);
+        }
+        ScanIndex index = mIndex;
+        boolean found = false;
+        BLEScanSession[] byMac = index.mByMac.get(address);
+        if (byMac != null) {
+            for (BLEScanSession session : byMac) {
+                if (result.mRssi >= session.getMinRssi()) {
+                    found |= session.offer(result.mDevice, address, result.getName(session), result.mRssi,
+                            result.mScanRecord);
                 }
             }
         }
-        Log.d(LOG_TAG, "Search device " + bluetoothDevice.getName() + " " + bluetoothDevice.getAddress());
-        if (mOnScanListener != null) {
-            mOnScanListener.onDeviceScan(bluetoothDevice);
+        // 按最低信号强度升序排列，遇到第一个不满足的会话即可停止
+        for (BLEScanSession session : index.mAnyMac) {
+            if (result.mRssi < session.getMinRssi()) {
+                break;
+            }
+            found |= session.offer(result.mDevice, address, result.getName(session), result.mRssi,
+                    result.mScanRecord);
+        }
+        if (found) {
+            Log.d(LOG_TAG, "Search device " + mac + " rssi " + result.mRssi);
+            synchronized (this) {
+                mWindowResultCount++;
+            }
         }
-        mScanDeviceMacSet.add(bluetoothDevice.getAddress());
     }
 
     /**
-     * 开始搜索
+     * 开始连续搜索，使用默认会话，结果回调给OnScanListener
      *
      * @param filterRepeatDevice 是否过滤相同设备
      * @param timeoutMillis 超时时间，单位毫秒
      */
     void startScan(boolean filterRepeatDevice, long timeoutMillis) {
-        stopScan();
-        Log.d(LOG_TAG, "Start scan with timeout " + timeoutMillis + ", filterRepeatDevice = " + filterRepeatDevice);
-        mFilterRepeatDevice = filterRepeatDevice;
-        mScanDeviceMacSet.clear();
-        mBluetoothAdapter.startLeScan(mScanCallback);
-        mHandler.sendEmptyMessageDelayed(MSG_SCAN_TIMEOUT, timeoutMillis);
+        startScan(filterRepeatDevice, timeoutMillis, 0, 0);
     }
 
     /**
-     * 停止搜索
+     * 开始按窗口搜索，每intervalMillis扫描windowMillis，使用默认会话
+     * 窗口内发现的新设备过少时扫描周期逐步放大，发现新设备后恢复；
+     * 开始扫描的次数受系统限制，超出限制时推迟到允许的时间再开始。
+     * 正在扫描时再次调用只替换默认会话和扫描参数，不重新开始硬件扫描
      *
+     * @param filterRepeatDevice 是否过滤相同设备
+     * @param timeoutMillis 超时时间，单位毫秒
+     * @param windowMillis 扫描窗口时长，单位毫秒，不小于intervalMillis时为连续扫描
+     * @param intervalMillis 扫描周期，单位毫秒
      */
-    void stopScan() {
+    synchronized void startScan(boolean filterRepeatDevice, long timeoutMillis, long windowMillis, long intervalMillis) {
+        Log.d(LOG_TAG, "Start scan with timeout " + timeoutMillis + ", filterRepeatDevice = " + filterRepeatDevice
+                + ", window = " + windowMillis + ", interval = " + intervalMillis);
+        if (mDefaultSession != null) {
+            removeSession(mDefaultSession);
+        }
+        mDefaultSession = new BLEScanSession()
+                .setFilterRepeatDevice(filterRepeatDevice)
+                .setTimeoutMillis(timeoutMillis)
+                .setScanWindow(windowMillis, intervalMillis)
+                .setOnScanResultListener(mDefaultListener);
+        startSession(mDefaultSession);
+    }
+
+    /**
+     * 停止默认会话的搜索，其他会话不受影响
+     *
+     */
+    synchronized void stopScan() {
         Log.d(LOG_TAG, "Stop scan");
-        mBluetoothAdapter.stopLeScan(mScanCallback);
+        if (mDefaultSession != null) {
+            endSession(mDefaultSession);
+        }
+    }
+
+    /**
+     * 开始扫描会话，硬件未在扫描时开始扫描
+     *
+     * @param session 会话
+     */
+    synchronized void startSession(BLEScanSession session) {
+        if (mBluetoothAdapter == null || mSessions.contains(session)) {
+            return;
+        }
+        ensureHandler();
+        mHandler.removeMessages(MSG_IDLE_QUIT);
+        session.onStart(this);
+        mSessions.add(session);
+        mIndex = new ScanIndex(mSessions);
+        updateDutyCycle();
+        mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_SESSION_TIMEOUT, session), session.getTimeoutMillis());
+        if (!mScanning) {
+            onWindowStart();
+        }
+    }
+
+    /**
+     * 结束扫描会话，最后一个会话结束时停止硬件扫描
+     *
+     * @param session 会话
+     */
+    synchronized void endSession(BLEScanSession session) {
+        if (!removeSession(session)) {
+            return;
+        }
+        if (mSessions.isEmpty()) {
+            mHandler.removeMessages(MSG_WINDOW_START);
+            mHandler.removeMessages(MSG_WINDOW_END);
+            stopHardwareScan();
+            mHandler.sendEmptyMessageDelayed(MSG_IDLE_QUIT, mIdleTimeoutMillis);
+        }
+    }
+
+    private boolean removeSession(BLEScanSession session) {
+        if (!mSessions.remove(session)) {
+            return false;
+        }
+        session.onEnd();
+        if (session == mDefaultSession) {
+            mDefaultSession = null;
+        }
+        mIndex = new ScanIndex(mSessions);
+        updateDutyCycle();
+        if (mHandler != null) {
+            mHandler.removeMessages(MSG_SESSION_TIMEOUT, session);
+        }
+        return true;
+    }
+
+    /**
+     * 根据进行中的会话重新计算扫描窗口和周期，取最积极的设置：
+     * 任一会话要求连续扫描时连续扫描，否则取最长的窗口和最短的周期。
+     * 设置变化时按新设置重新安排当前窗口
+     *
+     */
+    private void updateDutyCycle() {
+        long window = 0;
+        long interval = 0;
+        for (BLEScanSession session : mSessions) {
+            if (session.isContinuous()) {
+                window = 0;
+                interval = 0;
+                break;
+            }
+            window = Math.max(window, session.getWindowMillis());
+            interval = interval == 0 ? session.getIntervalMillis() : Math.min(interval, session.getIntervalMillis());
+        }
+        if (window == mWindowMillis && interval == mBaseIntervalMillis) {
+            return;
+        }
+        Log.d(LOG_TAG, "scan duty cycle changed, window = " + window + ", interval = " + interval);
+        mWindowMillis = window;
+        mBaseIntervalMillis = interval;
+        mIntervalMillis = interval;
+        if (mHandler == null || mSessions.isEmpty()) {
+            return;
+        }
+        if (mScanning) {
+            mHandler.removeMessages(MSG_WINDOW_END);
+            if (isDutyCycle()) {
+                mHandler.sendEmptyMessageDelayed(MSG_WINDOW_END, mWindowMillis);
+            }
+        } else if (mHandler.hasMessages(MSG_WINDOW_START)) {
+            // 正在等待下一个窗口，按新设置立即开始，开始次数限制仍由onWindowStart()检查
+            mHandler.removeMessages(MSG_WINDOW_START);
+            onWindowStart();
+        }
+    }
+
+    private void onSessionTimeout(BLEScanSession session) {
+        Log.d(LOG_TAG, "scan session timeout");
+        if (!session.isActive()) {
+            return;
+        }
+        BLEScanSession.OnScanResultListener listener = session.getListener();
+        endSession(session);
+        if (listener != null) {
+            listener.onTimeout();
+        }
+    }
+
+    private boolean isDutyCycle() {
+        return mWindowMillis > 0 && mWindowMillis < mBaseIntervalMillis;
+    }
+
+    /**
+     * 开始一个扫描窗口，超出开始次数限制时推迟
+     *
+     */
+    private synchronized void onWindowStart() {
+        if (mSessions.isEmpty() || mScanning) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        long oldest = mScanStartTimes[mScanStartIndex];
+        if (oldest > 0 && now - oldest < SCAN_START_PERIOD_MILLIS) {
+            long delay = SCAN_START_PERIOD_MILLIS - (now - oldest);
+            Log.d(LOG_TAG, "scan start budget exhausted, delay " + delay + "ms");
+            mHandler.sendEmptyMessageDelayed(MSG_WINDOW_START, delay);
+            return;
+        }
+        mScanStartTimes[mScanStartIndex] = now;
+        mScanStartIndex = (mScanStartIndex + 1) % SCAN_START_LIMIT;
+        mWindowResultCount = 0;
+        mScanning = true;
+        mBluetoothAdapter.startLeScan(mScanCallback);
+        if (isDutyCycle()) {
+            mHandler.sendEmptyMessageDelayed(MSG_WINDOW_END, mWindowMillis);
+        }
+    }
+
+    /**
+     * 结束一个扫描窗口，根据本窗口结果调整扫描周期后安排下一个窗口
+     *
+     */
+    private synchronized void onWindowEnd() {
+        if (mSessions.isEmpty()) {
+            return;
+        }
+        stopHardwareScan();
+        if (mWindowResultCount < MIN_WINDOW_RESULTS) {
+            mIntervalMillis = Math.min(mIntervalMillis * 2, mBaseIntervalMillis * MAX_BACKOFF_FACTOR);
+        } else {
+            mIntervalMillis = mBaseIntervalMillis;
+        }
+        Log.d(LOG_TAG, "scan window end, results = " + mWindowResultCount + ", next interval = " + mIntervalMillis);
+        mHandler.sendEmptyMessageDelayed(MSG_WINDOW_START, mIntervalMillis - mWindowMillis);
+    }
+
+    private void stopHardwareScan() {
+        if (mScanning) {
+            mScanning = false;
+            mBluetoothAdapter.stopLeScan(mScanCallback);
+        }
+    }
+
+    void setDeviceCatalog(BLEDeviceCatalog catalog) {
+        mDeviceCatalog = catalog;
     }
 
     /**
@@ -131,11 +427,18 @@ class BLEScanner {
      */
     void stop() {
         Log.d(LOG_TAG, "BLEScanner stop working");
-        stopScan();
-        mHandler.removeMessages(MSG_HANDLE_SCAN_RESULT);
-        mHandler.removeMessages(MSG_SCAN_TIMEOUT);
-        mHandleScanResultThread.quit();
-        release();
+        synchronized (this) {
+            while (!mSessions.isEmpty()) {
+                endSession(mSessions.get(mSessions.size() - 1));
+            }
+        }
+        synchronized (this) {
+            if (mHandler != null) {
+                mHandler.removeCallbacksAndMessages(null);
+                mHandleScanResultThread.quit();
+            }
+            release();
+        }
     }
 
     /**
@@ -144,14 +447,106 @@ class BLEScanner {
      */
     private void release() {
         Log.d(LOG_TAG, "BLEScanner release resources");
-        mScanDeviceMacSet = null;
         mHandler = null;
         mHandleScanResultThread = null;
         mBluetoothAdapter = null;
     }
 
+    /**
+     * 扫描结果，在扫描回调线程中创建，交给HandlerThread处理
+     *
+     */
+    private static class ScanResult {
+
+        final BluetoothDevice mDevice;
+
+        final int mRssi;
+
+        final byte[] mScanRecord;
+
+        /* 设备名称，只在有会话按名称过滤时才获取 */
+        private String mName;
+
+        private boolean mNameLoaded = false;
+
+        ScanResult(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            mDevice = device;
+            mRssi = rssi;
+            mScanRecord = scanRecord;
+        }
+
+        String getName(BLEScanSession session) {
+            if (session.getNamePrefix() == null) {
+                return null;
+            }
+            if (!mNameLoaded) {
+                mName = mDevice.getName();
+                mNameLoaded = true;
+            }
+            return mName;
+        }
+    }
+
+    /**
+     * 会话过滤条件合并的索引
+     * 指定mac的会话按mac分组，其余会话按最低信号强度升序排列
+     *
+     */
+    private static class ScanIndex {
+
+        final ConcurrentLongMap<BLEScanSession[]> mByMac = new ConcurrentLongMap<>();
+
+        final BLEScanSession[] mAnyMac;
+
+        ScanIndex(List<BLEScanSession> sessions) {
+            List<BLEScanSession> anyMac = new ArrayList<>();
+            for (BLEScanSession session : sessions) {
+                long address = session.getAddress();
+                if (address == MacAddress.INVALID) {
+                    anyMac.add(session);
+                    continue;
+                }
+                BLEScanSession[] old = mByMac.get(address);
+                BLEScanSession[] list;
+                if (old == null) {
+                    list = new BLEScanSession[] {session};
+                } else {
+                    list = Arrays.copyOf(old, old.length + 1);
+                    list[old.length] = session;
+                }
+                mByMac.put(address, list);
+            }
+            mAnyMac = anyMac.toArray(new BLEScanSession[anyMac.size()]);
+            Arrays.sort(mAnyMac, new Comparator<BLEScanSession>() {
+                @Override
+                public int compare(BLEScanSession s1, BLEScanSession s2) {
+                    return s1.getMinRssi() < s2.getMinRssi() ? -1 : (s1.getMinRssi() == s2.getMinRssi() ? 0 : 1);
+                }
+            });
+        }
+    }
+
     /* -------------- Listener and setter -------------- */
-    private BLEWrapper.OnScanListener mOnScanListener;
+    private volatile BLEWrapper.OnScanListener mOnScanListener;
+
+    /* 默认会话的回调，转发给OnScanListener */
+    private final BLEScanSession.OnScanResultListener mDefaultListener = new BLEScanSession.OnScanResultListener() {
+        @Override
+        public void onDeviceScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            BLEWrapper.OnScanListener listener = mOnScanListener;
+            if (listener != null) {
+                listener.onDeviceScan(device);
+            }
+        }
+
+        @Override
+        public void onTimeout() {
+            BLEWrapper.OnScanListener listener = mOnScanListener;
+            if (listener != null) {
+                listener.onTimeout();
+            }
+        }
+    };
 
     void setOnScanListener(BLEWrapper.OnScanListener onScanListener) {
         mOnScanListener = onScanListener;
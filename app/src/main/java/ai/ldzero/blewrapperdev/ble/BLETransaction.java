@@ -0,0 +1,512 @@
+package ai.ldzero.blewrapperdev.ble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import ai.ldzero.blewrapperdev.ble.utils.MacAddress;
+
+/**
+ * GATT事务
+ * 按顺序执行的读、写、订阅和等待通知步骤，作为一个任务加入任务队列，执行期间其他任务不会插入；
+ * 每一步在上一步的回调中直接开始，不再经过调用方。
+ * 等待通知的步骤在上一步开始时就开始监听，不会漏掉上一步触发的通知。
+ * 全部步骤结束后回调一个汇总结果
+ *
+ * Created on 2017/12/31.
+ *
+ * @author ldzero
+ */
+
+public class BLETransaction {
+
+    private final String LOG_TAG = this.getClass().getSimpleName();
+
+    private static final int STEP_READ = 0;
+    private static final int STEP_WRITE = 1;
+    private static final int STEP_SUBSCRIBE = 2;
+    private static final int STEP_AWAIT = 3;
+
+    private final String mMac;
+
+    private final List<Step> mSteps = new ArrayList<>();
+
+    /* 步骤失败时是否放弃后面的步骤 */
+    private boolean mAbortOnFailure = true;
+
+    /* 读、写、订阅步骤的超时时间 */
+    private long mStepTimeoutMillis = 5000;
+
+    private OnTransactionListener mListener;
+
+    public BLETransaction(String mac) {
+        if (MacAddress.parse(mac) == MacAddress.INVALID) {
+            throw new IllegalArgumentException("invalid mac " + mac);
+        }
+        mMac = mac;
+    }
+
+    /**
+     * 添加读步骤，读到的数据保存在结果中
+     *
+     * @return this
+     */
+    public BLETransaction read(UUID serviceUUID, UUID characteristicUUID) {
+        Step step = new Step(STEP_READ, serviceUUID, characteristicUUID);
+        mSteps.add(step);
+        return this;
+    }
+
+    /**
+     * 添加需要设备应答的写步骤
+     *
+     * @return this
+     */
+    public BLETransaction write(UUID serviceUUID, UUID characteristicUUID, byte[] data) {
+        return write(serviceUUID, characteristicUUID, data, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+    }
+
+    /**
+     * 添加写步骤
+     *
+     * @param writeType 写类型，WRITE_TYPE_DEFAULT或WRITE_TYPE_NO_RESPONSE
+     * @return this
+     */
+    public BLETransaction write(UUID serviceUUID, UUID characteristicUUID, byte[] data, int writeType) {
+        Step step = new Step(STEP_WRITE, serviceUUID, characteristicUUID);
+        step.mData = data;
+        step.mWriteType = writeType;
+        mSteps.add(step);
+        return this;
+    }
+
+    /**
+     * 添加订阅通知步骤，描述写入成功后才进行下一步
+     *
+     * @return this
+     */
+    public BLETransaction subscribe(UUID serviceUUID, UUID characteristicUUID, UUID descriptorUUID) {
+        Step step = new Step(STEP_SUBSCRIBE, serviceUUID, characteristicUUID);
+        step.mDescriptorUUID = descriptorUUID;
+        mSteps.add(step);
+        return this;
+    }
+
+    /**
+     * 添加等待通知步骤，收到的第一个满足条件的通知保存在结果中
+     *
+     * @param characteristicUUID 通知的特征UUID
+     * @param matcher 匹配条件，为空表示任意通知
+     * @param timeoutMillis 等待超时时间，单位毫秒
+     * @return this
+     */
+    public BLETransaction await(UUID characteristicUUID, Matcher matcher, long timeoutMillis) {
+        Step step = new Step(STEP_AWAIT, null, characteristicUUID);
+        step.mMatcher = matcher;
+        step.mTimeoutMillis = timeoutMillis;
+        mSteps.add(step);
+        return this;
+    }
+
+    public BLETransaction setAbortOnFailure(boolean abortOnFailure) {
+        mAbortOnFailure = abortOnFailure;
+        return this;
+    }
+
+    /**
+     * 设置读、写、订阅步骤的超时时间
+     *
+     * @param stepTimeoutMillis 超时时间，单位毫秒
+     * @return this
+     */
+    public BLETransaction setStepTimeoutMillis(long stepTimeoutMillis) {
+        mStepTimeoutMillis = stepTimeoutMillis;
+        return this;
+    }
+
+    public BLETransaction setOnTransactionListener(OnTransactionListener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    String getMac() {
+        return mMac;
+    }
+
+    /**
+     * 创建执行事务的任务，每次提交都是新的任务
+     *
+     */
+    DeviceTask newTask(BLEWrapper wrapper) {
+        List<Step> steps = new ArrayList<>(mSteps.size());
+        for (Step step : mSteps) {
+            steps.add(step.copy());
+        }
+        return new TransactionTask(wrapper, steps);
+    }
+
+    /**
+     * 执行事务的任务
+     *
+     */
+    private class TransactionTask extends DeviceTask {
+
+        private final BLEWrapper mWrapper;
+
+        private final List<Step> mTaskSteps;
+
+        private final Result mResult;
+
+        private BLEDeviceOperator mOperator;
+
+        /* 当前步骤序号，只在持有锁时访问 */
+        private int mCurrent = -1;
+
+        private boolean mFinished = false;
+
+        private long mStartTime;
+
+        TransactionTask(BLEWrapper wrapper, List<Step> steps) {
+            super(BLETransaction.this.mMac, mStepTimeoutMillis);
+            mWrapper = wrapper;
+            mTaskSteps = steps;
+            mResult = new Result(steps.size());
+            long deadline = 0;
+            for (Step step : steps) {
+                deadline += step.mType == STEP_AWAIT ? step.mTimeoutMillis : mStepTimeoutMillis;
+            }
+            setDeadlineMillis(deadline + TASK_DEADLINE_GRACE_MILLIS);
+        }
+
+        @Override
+        public void _run() {
+            mStartTime = SystemClock.elapsedRealtime();
+            mOperator = mWrapper.getOperator(mAddress);
+            if (mOperator == null) {
+                synchronized (this) {
+                    mResult.fail(0, "no operator");
+                }
+                finish();
+                return;
+            }
+            next(-1);
+        }
+
+        /**
+         * 结束一个步骤并开始下一步
+         *
+         * @param from 刚结束的步骤序号，与当前步骤不同时说明是过期的回调，忽略
+         */
+        private void next(int from) {
+            Step step;
+            int index;
+            synchronized (this) {
+                if (mFinished || from != mCurrent) {
+                    return;
+                }
+                if (from >= 0 && !mResult.mStepSuccess[from] && mAbortOnFailure) {
+                    index = -1;
+                } else {
+                    index = ++mCurrent;
+                }
+                step = index >= 0 && index < mTaskSteps.size() ? mTaskSteps.get(index) : null;
+            }
+            if (step == null) {
+                finish();
+                return;
+            }
+            // 下一步是等待通知时提前开始监听
+            if (index + 1 < mTaskSteps.size() && mTaskSteps.get(index + 1).mType == STEP_AWAIT) {
+                arm(index + 1);
+            }
+            execute(index, step);
+        }
+
+        private void execute(final int index, final Step step) {
+            switch (step.mType) {
+                case STEP_READ:
+                    mOperator.read(step.mServiceUUID, step.mCharacteristicUUID,
+                            new BLEDeviceOperator.OnReadResultListener() {
+                                @Override
+                                public void onResult(boolean success, String msg, byte[] data) {
+                                    onStepResult(index, success, msg, data);
+                                }
+                            }, mStepTimeoutMillis);
+                    break;
+                case STEP_WRITE:
+                    mOperator.write(step.mServiceUUID, step.mCharacteristicUUID, step.mData, step.mWriteType,
+                            new BLEDeviceOperator.OnResultListener() {
+                                @Override
+                                public void onResult(boolean success, String msg) {
+                                    onStepResult(index, success, msg, null);
+                                }
+                            }, mStepTimeoutMillis);
+                    break;
+                case STEP_SUBSCRIBE:
+                    mOperator.subscribe(step.mServiceUUID, step.mCharacteristicUUID, step.mDescriptorUUID,
+                            new BLEDeviceOperator.OnResultListener() {
+                                @Override
+                                public void onResult(boolean success, String msg) {
+                                    onStepResult(index, success, msg, null);
+                                }
+                            }, mStepTimeoutMillis);
+                    break;
+                case STEP_AWAIT:
+                    arm(index);
+                    byte[] matched;
+                    synchronized (this) {
+                        matched = step.mMatched;
+                    }
+                    if (matched != null) {
+                        onStepResult(index, true, "success", matched);
+                    } else if (!mWrapper.postDelayed(step.mTimeoutRunnable, step.mTimeoutMillis)) {
+                        onStepResult(index, false, "stopped", null);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        /**
+         * 开始监听等待步骤的通知
+         *
+         * @param index 等待步骤序号
+         */
+        private void arm(final int index) {
+            final Step step = mTaskSteps.get(index);
+            synchronized (this) {
+                if (step.mNotificationListener != null) {
+                    return;
+                }
+                step.mTimeoutRunnable = new Runnable() {
+                    @Override
+                    public void run() {
+                        onStepResult(index, false, "timeout", null);
+                    }
+                };
+                step.mNotificationListener = new BLEWrapper.OnNotificationListener() {
+                    @Override
+                    public void onNotification(String mac, UUID characteristicUUID, byte[] data) {
+                        if (step.mMatcher != null && !step.mMatcher.matches(data)) {
+                            return;
+                        }
+                        boolean current;
+                        synchronized (TransactionTask.this) {
+                            if (step.mMatched != null) {
+                                return;
+                            }
+                            step.mMatched = data;
+                            current = mCurrent == index;
+                        }
+                        if (current) {
+                            mWrapper.removeCallbacks(step.mTimeoutRunnable);
+                            onStepResult(index, true, "success", data);
+                        }
+                    }
+                };
+            }
+            mWrapper.addNotificationListener(mMac, step.mCharacteristicUUID, step.mNotificationListener);
+        }
+
+        private void onStepResult(int index, boolean success, String msg, byte[] data) {
+            synchronized (this) {
+                if (mFinished || index != mCurrent || mResult.mStepDone[index]) {
+                    return;
+                }
+                mResult.mStepDone[index] = true;
+                mResult.mStepSuccess[index] = success;
+                mResult.mData[index] = data;
+                if (!success) {
+                    mResult.fail(index, msg);
+                }
+            }
+            Step step = mTaskSteps.get(index);
+            if (step.mType == STEP_AWAIT) {
+                disarm(step);
+            }
+            Log.d(LOG_TAG, mMac + " transaction step " + index + " " + (success ? "success" : "failed: " + msg));
+            next(index);
+        }
+
+        private void disarm(Step step) {
+            if (step.mNotificationListener != null) {
+                mWrapper.removeNotificationListener(mMac, step.mCharacteristicUUID, step.mNotificationListener);
+            }
+            if (step.mTimeoutRunnable != null) {
+                mWrapper.removeCallbacks(step.mTimeoutRunnable);
+            }
+        }
+
+        private void finish() {
+            synchronized (this) {
+                if (mFinished) {
+                    return;
+                }
+                mFinished = true;
+                mResult.mElapsedMillis = SystemClock.elapsedRealtime() - mStartTime;
+            }
+            for (Step step : mTaskSteps) {
+                if (step.mType == STEP_AWAIT) {
+                    disarm(step);
+                }
+            }
+            Log.d(LOG_TAG, mMac + " transaction " + (mResult.mSuccess ? "success" : "failed at step "
+                    + mResult.mFailedStep + ": " + mResult.mMessage) + " in " + mResult.mElapsedMillis + "ms");
+            if (mListener != null) {
+                mListener.onComplete(mMac, mResult);
+            }
+            finishTask();
+        }
+
+        @Override
+        protected void onStalled() {
+            synchronized (this) {
+                mResult.fail(Math.max(0, mCurrent), "stalled");
+            }
+            finish();
+        }
+
+        @Override
+        void onRejected(String reason) {
+            synchronized (this) {
+                mResult.fail(0, reason);
+            }
+            finish();
+        }
+    }
+
+    /**
+     * 事务步骤
+     *
+     */
+    private static class Step {
+
+        final int mType;
+
+        final UUID mServiceUUID;
+
+        final UUID mCharacteristicUUID;
+
+        UUID mDescriptorUUID;
+
+        byte[] mData;
+
+        int mWriteType;
+
+        Matcher mMatcher;
+
+        long mTimeoutMillis;
+
+        /* 等待步骤的监听器、超时和已匹配的通知，每次执行时重新创建 */
+        BLEWrapper.OnNotificationListener mNotificationListener;
+
+        Runnable mTimeoutRunnable;
+
+        byte[] mMatched;
+
+        Step(int type, UUID serviceUUID, UUID characteristicUUID) {
+            mType = type;
+            mServiceUUID = serviceUUID;
+            mCharacteristicUUID = characteristicUUID;
+        }
+
+        /**
+         * 复制步骤定义，不复制执行状态
+         *
+         */
+        Step copy() {
+            Step step = new Step(mType, mServiceUUID, mCharacteristicUUID);
+            step.mDescriptorUUID = mDescriptorUUID;
+            step.mData = mData;
+            step.mWriteType = mWriteType;
+            step.mMatcher = mMatcher;
+            step.mTimeoutMillis = mTimeoutMillis;
+            return step;
+        }
+    }
+
+    /**
+     * 事务汇总结果
+     *
+     */
+    public static class Result {
+
+        private boolean mSuccess = true;
+
+        /* 第一个失败的步骤，-1表示全部成功 */
+        private int mFailedStep = -1;
+
+        private String mMessage = "success";
+
+        private final boolean[] mStepDone;
+
+        private final boolean[] mStepSuccess;
+
+        private final byte[][] mData;
+
+        private long mElapsedMillis;
+
+        Result(int steps) {
+            mStepDone = new boolean[steps];
+            mStepSuccess = new boolean[steps];
+            mData = new byte[steps][];
+        }
+
+        void fail(int step, String message) {
+            if (mSuccess) {
+                mSuccess = false;
+                mFailedStep = step;
+                mMessage = message;
+            }
+        }
+
+        public boolean isSuccess() {
+            return mSuccess;
+        }
+
+        public int getFailedStep() {
+            return mFailedStep;
+        }
+
+        public String getMessage() {
+            return mMessage;
+        }
+
+        /**
+         * 返回步骤是否成功，因放弃而没有执行的步骤返回false
+         *
+         * @param step 步骤序号
+         * @return 是否成功
+         */
+        public boolean isStepSuccess(int step) {
+            return mStepSuccess[step];
+        }
+
+        /**
+         * 返回读步骤读到的数据或等待步骤收到的通知
+         *
+         * @param step 步骤序号
+         * @return 数据，没有时返回null
+         */
+        public byte[] getData(int step) {
+            return mData[step];
+        }
+
+        public long getElapsedMillis() {
+            return mElapsedMillis;
+        }
+    }
+
+    public interface Matcher {
+        boolean matches(byte[] data);
+    }
+
+    public interface OnTransactionListener {
+        void onComplete(String mac, Result result);
+    }
+}
@@ -0,0 +1,345 @@
+package ai.ldzero.blewrapperdev.ble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.UUID;
+
+import ai.ldzero.blewrapperdev.ble.utils.MacAddress;
+
+/**
+ * 批量上传
+ * 从数据源按块读取数据写入设备特征，读缓冲区在整个传输过程中复用。
+ * 数据按窗口发送，每个窗口作为一个任务加入任务队列，窗口内前面的块不需要设备应答，
+ * 最后一块需要设备应答，应答成功后窗口内的数据才算确认；传输中断时回调已确认的偏移量，
+ * 调用方可以从该偏移量重新上传。
+ * 数据源预读一块，总长度未知时也能知道哪一块是最后一块，最后一块总是需要设备应答
+ *
+ * Created on 2017/12/26.
+ *
+ * @author ldzero
+ */
+
+class BLEUpload {
+
+    private final String LOG_TAG = this.getClass().getSimpleName();
+
+    private final BLEWrapper mWrapper;
+
+    private final String mMac;
+
+    private final UUID mServiceUUID;
+
+    private final UUID mCharacteristicUUID;
+
+    private final CharacteristicKey mKey;
+
+    private final ReadableByteChannel mChannel;
+
+    /* 数据总长度，未知时为-1 */
+    private final long mTotalBytes;
+
+    private final int mWindowSize;
+
+    private final long mTimeoutMillis;
+
+    private final BLEWrapper.OnUploadListener mListener;
+
+    /* 复用的块缓冲区，两个缓冲区交替使用，一个正在发送，另一个存放预读的下一块 */
+    private final byte[][] mChunks = new byte[2][];
+
+    private final ByteBuffer[] mChunkBuffers = new ByteBuffer[2];
+
+    /* 存放预读块的缓冲区序号 */
+    private int mNextIndex = 0;
+
+    /* 预读块的长度，0表示数据源已读完，-1表示还没有预读 */
+    private int mNextLength = -1;
+
+    /* 最后一块不足块大小时使用，只分配一次 */
+    private byte[] mTailChunk;
+
+    /* 已确认的偏移量 */
+    private long mAckedOffset;
+
+    /* 已发送的偏移量 */
+    private long mSentOffset;
+
+    /* 本次上传的起始偏移量和开始时间，用于计算吞吐量 */
+    private final long mStartOffset;
+
+    private long mStartTime;
+
+    /* 最近读取的块是否是最后一块 */
+    private boolean mEndOfSource = false;
+
+    private volatile boolean mCancelled = false;
+
+    /**
+     * @param startOffset 起始偏移量，数据源需已定位到该位置
+     * @param totalBytes 数据总长度，未知时为-1
+     * @param chunkSize 每块字节数，不超过MTU - 3
+     * @param windowSize 每个窗口的块数，窗口最后一块需要设备应答
+     */
+    BLEUpload(BLEWrapper wrapper, String mac, UUID serviceUUID, UUID characteristicUUID,
+              ReadableByteChannel channel, long startOffset, long totalBytes, int chunkSize, int windowSize,
+              long timeoutMillis, BLEWrapper.OnUploadListener listener) {
+        mWrapper = wrapper;
+        mMac = mac;
+        mServiceUUID = serviceUUID;
+        mCharacteristicUUID = characteristicUUID;
+        mKey = new CharacteristicKey(MacAddress.parse(mac), characteristicUUID);
+        mChannel = channel;
+        mStartOffset = startOffset;
+        mAckedOffset = startOffset;
+        mSentOffset = startOffset;
+        mTotalBytes = totalBytes;
+        mWindowSize = Math.max(1, windowSize);
+        mTimeoutMillis = timeoutMillis;
+        mListener = listener;
+        for (int i = 0; i < mChunks.length; i++) {
+            mChunks[i] = new byte[chunkSize];
+            mChunkBuffers[i] = ByteBuffer.wrap(mChunks[i]);
+        }
+    }
+
+    /**
+     * 开始上传
+     *
+     */
+    void start() {
+        Log.d(LOG_TAG, mMac + " start upload from " + mStartOffset + ", total = " + mTotalBytes);
+        mStartTime = SystemClock.elapsedRealtime();
+        if (mKey.getAddress() == MacAddress.INVALID) {
+            interrupt("invalid mac");
+            return;
+        }
+        enqueueNextWindow();
+    }
+
+    /**
+     * 取消上传，正在发送的窗口完成后停止
+     *
+     */
+    void cancel() {
+        mCancelled = true;
+    }
+
+    private void enqueueNextWindow() {
+        WindowTask task = new WindowTask();
+        if (!mWrapper.addTask(task)) {
+            interrupt(task.mRejectReason != null ? task.mRejectReason : "task queue full");
+        }
+    }
+
+    /**
+     * 取出下一块并预读之后的一块，取出的块是最后一块时设置mEndOfSource
+     *
+     * @return 块数据，数据源已读完时返回null
+     */
+    private byte[] readChunk() throws IOException {
+        if (mEndOfSource) {
+            return null;
+        }
+        if (mNextLength < 0) {
+            mNextLength = fill(mNextIndex);
+        }
+        int length = mNextLength;
+        if (length == 0) {
+            mEndOfSource = true;
+            return null;
+        }
+        byte[] chunk = mChunks[mNextIndex];
+        mNextIndex ^= 1;
+        if (mTotalBytes >= 0 && mSentOffset + length >= mTotalBytes) {
+            // 已知总长度时不需要再预读
+            mEndOfSource = true;
+        } else {
+            mNextLength = fill(mNextIndex);
+            mEndOfSource = mNextLength == 0;
+        }
+        if (length == chunk.length) {
+            return chunk;
+        }
+        if (mTailChunk == null || mTailChunk.length != length) {
+            mTailChunk = new byte[length];
+        }
+        System.arraycopy(chunk, 0, mTailChunk, 0, length);
+        return mTailChunk;
+    }
+
+    /**
+     * 从数据源读满一个缓冲区
+     *
+     * @param index 缓冲区序号
+     * @return 读取的字节数，数据源已读完时返回0
+     */
+    private int fill(int index) throws IOException {
+        ByteBuffer buffer = mChunkBuffers[index];
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer) < 0) {
+                break;
+            }
+        }
+        return buffer.position();
+    }
+
+    private void interrupt(String reason) {
+        Log.d(LOG_TAG, mMac + " upload interrupted at " + mAckedOffset + ", reason = " + reason);
+        mWrapper.onUploadEnd(this);
+        if (mListener != null) {
+            mListener.onInterrupted(mMac, mAckedOffset, reason);
+        }
+    }
+
+    private void complete() {
+        long elapsed = SystemClock.elapsedRealtime() - mStartTime;
+        Log.d(LOG_TAG, mMac + " upload complete, " + (mAckedOffset - mStartOffset) + " bytes in " + elapsed + "ms");
+        mWrapper.onUploadEnd(this);
+        if (mListener != null) {
+            mListener.onComplete(mMac, mAckedOffset, elapsed);
+        }
+    }
+
+    private void reportProgress() {
+        if (mListener == null) {
+            return;
+        }
+        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - mStartTime);
+        float bytesPerSecond = (mAckedOffset - mStartOffset) * 1000f / elapsed;
+        mListener.onProgress(mMac, mAckedOffset, mTotalBytes, bytesPerSecond);
+    }
+
+    String getMac() {
+        return mMac;
+    }
+
+    CharacteristicKey getKey() {
+        return mKey;
+    }
+
+    /**
+     * 发送一个窗口的任务，窗口内的块依次在写回调中发送
+     *
+     */
+    private class WindowTask extends DeviceTask implements BLEDeviceOperator.OnResultListener {
+
+        private BLEDeviceOperator mOperator;
+
+        /* 窗口内已发送的块数 */
+        private int mSentInWindow = 0;
+
+        /* 当前块是否需要设备应答 */
+        private boolean mAckRequired = false;
+
+        /* 加入队列时没能加入的原因 */
+        private String mRejectReason;
+
+        WindowTask() {
+            super(BLEUpload.this.mMac, BLEUpload.this.mTimeoutMillis);
+            long budget = mWindowSize * mTimeoutMillis;
+            setDeadlineMillis(budget + TASK_DEADLINE_GRACE_MILLIS);
+            // 截止时间按整个窗口计算，而不是单块的超时时间
+            mDeadline = SystemClock.elapsedRealtime() + budget;
+        }
+
+        @Override
+        public void _run() {
+            if (mCancelled) {
+                interrupt("cancelled");
+                finishTask();
+                return;
+            }
+            mOperator = mWrapper.getOperator(mAddress);
+            if (mOperator == null) {
+                interrupt("no operator");
+                finishTask();
+                return;
+            }
+            sendNextChunk();
+        }
+
+        /**
+         * 发送窗口内的下一块
+         *
+         */
+        private void sendNextChunk() {
+            byte[] chunk;
+            try {
+                chunk = readChunk();
+            } catch (IOException e) {
+                interrupt("read source failed: " + e.getMessage());
+                finishTask();
+                return;
+            }
+            if (chunk == null) {
+                // 只有数据源一开始就为空时才会走到这里，最后一块总是在需要应答的写操作中发送
+                complete();
+                finishTask();
+                return;
+            }
+            mSentInWindow++;
+            mAckRequired = mSentInWindow >= mWindowSize || mEndOfSource;
+            mSentOffset += chunk.length;
+            mOperator.write(mServiceUUID, mCharacteristicUUID, chunk,
+                    mAckRequired ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
+                            : BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE,
+                    this, mTimeoutMillis);
+        }
+
+        @Override
+        public void onResult(boolean success, String msg) {
+            if (isStalled()) {
+                return;
+            }
+            if (!success) {
+                // 回退到上一次确认的位置，未确认的块在续传时重新发送
+                mSentOffset = mAckedOffset;
+                interrupt(msg);
+                finishTask();
+                return;
+            }
+            if (!mAckRequired) {
+                sendNextChunk();
+                return;
+            }
+            mAckedOffset = mSentOffset;
+            reportProgress();
+            if (mEndOfSource) {
+                complete();
+            } else {
+                enqueueNextWindow();
+            }
+            finishTask();
+        }
+
+        @Override
+        protected void onStalled() {
+            interrupt("stalled");
+        }
+
+        /**
+         * 加入队列时同步回调，原因由enqueueNextWindow()处理
+         *
+         */
+        @Override
+        void onRejected(String reason) {
+            mRejectReason = reason;
+        }
+
+        /**
+         * 截止时间调度模式下窗口在队列中被丢弃，在执行线程中回调，此时已成功加入队列，需要在这里结束上传
+         *
+         */
+        @Override
+        public void onExpired(String reason) {
+            super.onExpired(reason);
+            interrupt(reason);
+        }
+    }
+}
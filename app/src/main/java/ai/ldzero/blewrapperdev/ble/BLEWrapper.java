@@ -6,14 +6,32 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import ai.ldzero.blewrapperdev.ble.codec.CodecRegistry;
+import ai.ldzero.blewrapperdev.ble.codec.ICodec;
+import ai.ldzero.blewrapperdev.ble.taskqueue.ITask;
 import ai.ldzero.blewrapperdev.ble.taskqueue.TaskExecutor;
 import ai.ldzero.blewrapperdev.ble.taskqueue.WrappedAsyncTask;
+import ai.ldzero.blewrapperdev.ble.utils.ConcurrentLongMap;
+import ai.ldzero.blewrapperdev.ble.utils.MacAddress;
 
 
 /**
@@ -29,20 +47,125 @@ public class BLEWrapper {
 
     private final String LOG_TAG = this.getClass().getSimpleName();
 
-    private static BLEWrapper mInstance;
+    private static volatile BLEWrapper mInstance;
 
-    private BLEScanner mBLEScanner;
+    /* 重试策略和熔断统计的操作类型 */
+    public static final int OP_CONNECT = 0;
+    public static final int OP_READ = 1;
+    public static final int OP_WRITE = 2;
 
-    private Map<String, BLEDeviceOperator> mDeviceMap;
+    /* 调度模式：任务按加入顺序执行 */
+    public static final int SCHEDULING_FIFO = TaskExecutor.SCHEDULING_FIFO;
 
-    private TaskExecutor mTaskExecutor;
+    /* 调度模式：各设备的任务按权重轮转执行，单个设备最多占用一半任务队列 */
+    public static final int SCHEDULING_FAIR = TaskExecutor.SCHEDULING_FAIR;
+
+    /* 调度模式：截止时间最早的设备任务先执行，已过截止时间或预计无法按时完成的任务不执行，按失败回调 */
+    public static final int SCHEDULING_DEADLINE = TaskExecutor.SCHEDULING_DEADLINE;
+
+    /* 超时模式：使用调用方给出的超时时间 */
+    public static final int TIMEOUT_MODE_FIXED = 0;
+
+    /* 超时模式：根据设备往返时间计算超时时间，调用方给出的超时时间作为上限 */
+    public static final int TIMEOUT_MODE_ADAPTIVE = 1;
+
+    /* 扫描器、任务执行器和轮询调度器在stop()时置空，其它线程读取前需先取局部变量并判空 */
+    private volatile BLEScanner mBLEScanner;
+
+    /* 设备表，以48位mac为键，会被调用方线程、任务队列线程和主线程同时访问 */
+    private ConcurrentLongMap<BLEDeviceOperator> mDeviceMap;
+
+    private volatile TaskExecutor mTaskExecutor;
+
+    private volatile BLEPollScheduler mPollScheduler;
+
+    private BLENotificationDispatcher mNotificationDispatcher;
+
+    /* 命令与应答通知的对应 */
+    private BLEResponseCorrelator mResponseCorrelator;
+
+    private CodecRegistry mCodecRegistry;
+
+    /* 未完成的读任务，key为设备地址、服务UUID和特征UUID */
+    private final ConcurrentMap<CharacteristicKey, ReadTask> mPendingReads = new ConcurrentHashMap<>();
+
+    /* 读写任务对象池大小，覆盖队列中、执行中和等待重试的任务 */
+    private static final int TASK_POOL_SIZE = 16;
+
+    /* 读写任务对象池，稳定运行时读写不再创建任务对象 */
+    private final DeviceTaskPool<WriteTask> mWriteTaskPool = new DeviceTaskPool<WriteTask>(TASK_POOL_SIZE) {
+        @Override
+        WriteTask create() {
+            return new WriteTask();
+        }
+    };
+
+    private final DeviceTaskPool<ReadTask> mReadTaskPool = new DeviceTaskPool<ReadTask>(TASK_POOL_SIZE) {
+        @Override
+        ReadTask create() {
+            return new ReadTask();
+        }
+    };
+
+    /* 最近一次成功读取的结果，key同mPendingReads */
+    private final ConcurrentMap<CharacteristicKey, CachedRead> mReadCache = new ConcurrentHashMap<>();
+
+    /* 各设备的通知过滤条件，设备连接前设置的在创建设备时生效 */
+    private final ConcurrentLongMap<Map<UUID, BLENotificationFilter>> mNotificationFilters = new ConcurrentLongMap<>();
+
+    /* 指定了执行方式的通知监听器，key为调用方的监听器，value为注册到分发器的包装，
+     * 包装在分发器中没有注册项时移除；只在持有该表的锁时访问，与分发器的注册和注销一起进行 */
+    private final Map<OnNotificationListener, OnNotificationListener> mDeliveredListeners = new HashMap<>();
+
+    /* 进行中的批量上传，key为设备地址与特征UUID */
+    private final ConcurrentMap<CharacteristicKey, BLEUpload> mUploads = new ConcurrentHashMap<>();
+
+    /* 进行中的通知下载，key为设备地址与特征UUID */
+    private final ConcurrentMap<CharacteristicKey, BLEDownloadSink> mDownloads = new ConcurrentHashMap<>();
+
+    /* 是否自动调整连接优先级 */
+    private volatile boolean mAutoConnectionPriority = true;
+
+    private volatile int mTimeoutMode = TIMEOUT_MODE_FIXED;
+
+    /* 各操作类型的重试策略，为空表示不重试 */
+    private final BLERetryPolicy[] mRetryPolicies = new BLERetryPolicy[3];
+
+    private final Random mRandom = new Random();
+
+    /* 主线程Handler，用于延时重新加入重试的任务和事务等待超时 */
+    private volatile Handler mMainHandler;
+
+    /* 熔断阈值，连续失败该次数后熔断，0表示不熔断 */
+    private volatile int mCircuitFailureThreshold = 0;
+
+    private volatile long mCircuitOpenMillis = 10 * 1000;
+
+    /* 任务执行线程和扫描结果处理线程的空闲时间，单位毫秒 */
+    private volatile long mIdleTimeoutMillis = TaskExecutor.DEFAULT_IDLE_TIMEOUT_MILLIS;
+
+    /* 持久化的设备目录，打开失败时为空 */
+    private volatile BLEDeviceCatalog mDeviceCatalog;
+
+    /* 启动时直接连接的最近活跃设备数，0表示不连接 */
+    private int mWarmStartDevices = 0;
+
+    /* 最近出现时间距今不超过该值的设备才在启动时连接 */
+    private long mWarmStartMaxAgeMillis;
+
+    private long mWarmStartTimeoutMillis;
 
     /* 标志Wrapper是否已被初始化 */
-    private boolean mIsInit = false;
+    private volatile boolean mIsInit = false;
 
     /* 任务队列长度 */
     private final int TASK_QUEUE_SIZE = 10;
 
+    /* 设备目录文件名和容量 */
+    private final String DEVICE_CATALOG_FILE = "ble_device_catalog";
+    private final int DEVICE_CATALOG_CAPACITY = 256;
+
+
     /* 蓝牙适配器 */
     private BluetoothAdapter mBluetoothAdapter;
 
@@ -58,8 +181,30 @@ public class BLEWrapper {
     }
 
     private BLEWrapper() {
-        mDeviceMap = new HashMap<>();
+        mDeviceMap = new ConcurrentLongMap<>();
         mTaskExecutor = new TaskExecutor(TASK_QUEUE_SIZE);
+        mTaskExecutor.setOnTaskStalledListener(new TaskExecutor.OnTaskStalledListener() {
+            @Override
+            public void onTaskStalled(ITask task) {
+                if (!(task instanceof DeviceTask)) {
+                    return;
+                }
+                String mac = ((DeviceTask) task).mMac;
+                Log.w(LOG_TAG, mac + " task stalled, executor reclaimed");
+                BLEDeviceOperator operator = mDeviceMap.get(((DeviceTask) task).mAddress);
+                if (operator != null) {
+                    operator.getCircuitBreaker().onFailure();
+                }
+                OnTaskStalledListener listener = mOnTaskStalledListener;
+                if (listener != null) {
+                    listener.onTaskStalled(mac);
+                }
+            }
+        });
+        mPollScheduler = new BLEPollScheduler(this);
+        mNotificationDispatcher = new BLENotificationDispatcher();
+        mResponseCorrelator = new BLEResponseCorrelator(this, mNotificationDispatcher);
+        mCodecRegistry = new CodecRegistry();
     }
 
     /**
@@ -73,9 +218,84 @@ public class BLEWrapper {
         if (mBluetoothAdapter == null) {
             //TODO: Throw Exception
         }
+        // 扫描线程和任务执行线程在第一次使用时才创建
         mBLEScanner = new BLEScanner(mBluetoothAdapter);
+        mBLEScanner.setIdleTimeoutMillis(mIdleTimeoutMillis);
         mTaskExecutor.startWorking();
+        mMainHandler = new Handler(context.getMainLooper());
         mIsInit = true;
+        openDeviceCatalog(context);
+    }
+
+    /**
+     * 创建设备目录，文件在第一次使用时才打开；
+     * 设置了启动连接时在后台线程中读取目录，直接连接最近活跃的设备，不在调用start()的线程中读文件
+     *
+     * @param context context
+     */
+    private void openDeviceCatalog(Context context) {
+        final BLEDeviceCatalog catalog = new BLEDeviceCatalog(new File(context.getFilesDir(), DEVICE_CATALOG_FILE),
+                DEVICE_CATALOG_CAPACITY);
+        mDeviceCatalog = catalog;
+        mBLEScanner.setDeviceCatalog(catalog);
+        if (mWarmStartDevices <= 0) {
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (long address : catalog.getRecentDevices(mWarmStartDevices, mWarmStartMaxAgeMillis)) {
+                    if (!mIsInit) {
+                        return;
+                    }
+                    Log.d(LOG_TAG, "warm start connect " + MacAddress.format(address));
+                    connect(appContext, address, mWarmStartTimeoutMillis);
+                }
+            }
+        }, "WarmStartThread").start();
+    }
+
+    /**
+     * 设置启动时直接连接最近活跃的设备，需在start()前调用
+     * 只连接连接成功过且最近出现时间距今不超过maxAgeMillis的设备，按最近出现时间倒序
+     *
+     * @param maxDevices 最多连接的设备数，0表示不连接
+     * @param maxAgeMillis 最近出现时间距今的最大值，单位毫秒
+     * @param timeoutMillis 连接超时时间，单位毫秒
+     */
+    public void setWarmStart(int maxDevices, long maxAgeMillis, long timeoutMillis) {
+        mWarmStartDevices = Math.min(maxDevices, TASK_QUEUE_SIZE);
+        mWarmStartMaxAgeMillis = maxAgeMillis;
+        mWarmStartTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * 返回设备历史连接成功率
+     *
+     * @param mac 设备mac
+     * @return 成功率，没有连接记录时返回-1
+     */
+    public float getConnectSuccessRate(String mac) {
+        BLEDeviceCatalog catalog = mDeviceCatalog;
+        return catalog == null ? -1 : catalog.getSuccessRate(MacAddress.parse(mac));
+    }
+
+    /**
+     * 设置空闲时间，任务队列或扫描空闲超过该时间后对应的线程退出，再次使用时重新创建
+     *
+     * @param idleTimeoutMillis 空闲时间，单位毫秒
+     */
+    public void setIdleTimeout(long idleTimeoutMillis) {
+        mIdleTimeoutMillis = idleTimeoutMillis;
+        TaskExecutor executor = mTaskExecutor;
+        if (executor != null) {
+            executor.setIdleTimeoutMillis(idleTimeoutMillis);
+        }
+        BLEScanner scanner = mBLEScanner;
+        if (scanner != null) {
+            scanner.setIdleTimeoutMillis(idleTimeoutMillis);
+        }
     }
 
     /**
@@ -120,6 +340,18 @@ public class BLEWrapper {
         mBLEScanner.startScan(filterRepeatDevice, timeoutMillis);
     }
 
+    /**
+     * 按窗口搜索设备，每intervalMillis扫描windowMillis，结果稀疏时自动放大扫描周期
+     *
+     * @param filterRepeatDevice 是否过滤相同的设备
+     * @param timeoutMillis 扫描超时时间，单位毫秒
+     * @param windowMillis 扫描窗口时长，单位毫秒
+     * @param intervalMillis 扫描周期，单位毫秒
+     */
+    public void startScan(boolean filterRepeatDevice, long timeoutMillis, long windowMillis, long intervalMillis) {
+        mBLEScanner.startScan(filterRepeatDevice, timeoutMillis, windowMillis, intervalMillis);
+    }
+
     /**
      * 停止搜索设备
      *
@@ -128,6 +360,16 @@ public class BLEWrapper {
         mBLEScanner.stopScan();
     }
 
+    /**
+     * 开始扫描会话，多个会话共用同一个硬件扫描，互不影响
+     * 会话超时或调用BLEScanSession.stop()后结束
+     *
+     * @param session 会话
+     */
+    public void startScanSession(BLEScanSession session) {
+        mBLEScanner.startSession(session);
+    }
+
     /**
      * 添加连接设备任务到任务队列中
      *
@@ -135,24 +377,52 @@ public class BLEWrapper {
      * @param mac 设备mac
      * @param timeoutMillis 连接超时时间，单位毫秒
      */
-    public void connect(Context context, final String mac, long timeoutMillis) {
-        if (!mDeviceMap.containsKey(mac)) {
-            mDeviceMap.put(mac, new BLEDeviceOperator(context, mac, mBluetoothAdapter));
-        }
-        BLEDeviceOperator operator = mDeviceMap.get(mac);
-        if (operator == null) {
+    public void connect(Context context, String mac, long timeoutMillis) {
+        long address = parseMac(mac);
+        if (address == MacAddress.INVALID) {
             return;
         }
-        final WrappedAsyncTask task = new ConnectTask(context, mac, timeoutMillis);
+        getOrCreateOperator(context, mac, address);
+        addTask(new ConnectTask(context, mac, timeoutMillis));
+    }
+
+    /**
+     * 添加连接设备任务到任务队列中
+     *
+     * @param context context
+     * @param address 48位设备mac，见MacAddress
+     * @param timeoutMillis 连接超时时间，单位毫秒
+     */
+    public void connect(Context context, long address, long timeoutMillis) {
+        BLEDeviceOperator operator = mDeviceMap.get(address);
+        connect(context, operator == null ? MacAddress.format(address) : operator.getMac(), timeoutMillis);
+    }
+
+    /**
+     * 获取设备操作对象，不存在时创建
+     * 新对象在设置好监听器后才通过putIfAbsent放入设备表，多个线程同时创建时只有一个生效
+     *
+     * @param context context
+     * @param mac 设备mac
+     * @param address 解析后的48位地址，不能为MacAddress.INVALID
+     * @return 设备操作对象
+     */
+    private BLEDeviceOperator getOrCreateOperator(Context context, final String mac, final long address) {
+        BLEDeviceOperator operator = mDeviceMap.get(address);
+        if (operator != null) {
+            return operator;
+        }
+        operator = new BLEDeviceOperator(context, mac, mBluetoothAdapter);
         operator.setOnStateListener(new BLEDeviceOperator.OnStateListener() {
             @Override
             public void onConnectComplete(boolean success) {
+                BLEDeviceCatalog catalog = mDeviceCatalog;
+                if (success && catalog != null) {
+                    catalog.onConnectSuccess(address);
+                }
                 if (mOnDeviceStateListener != null) {
                     mOnDeviceStateListener.onConnectComplete(mac, success);
                 }
-                if (success) {
-                    task.finishTask();
-                }
             }
 
             @Override
@@ -176,6 +446,24 @@ public class BLEWrapper {
                 }
             }
         });
+        operator.setAutoPriority(mAutoConnectionPriority);
+        operator.setAdaptiveTimeout(mTimeoutMode == TIMEOUT_MODE_ADAPTIVE);
+        operator.getCircuitBreaker().configure(mCircuitFailureThreshold, mCircuitOpenMillis);
+        Map<UUID, BLENotificationFilter> filters = mNotificationFilters.get(address);
+        if (filters != null) {
+            for (Map.Entry<UUID, BLENotificationFilter> entry : filters.entrySet()) {
+                operator.setNotificationFilter(entry.getKey(), entry.getValue());
+            }
+        }
+        operator.setOnPriorityListener(new BLEDeviceOperator.OnPriorityListener() {
+            @Override
+            public void onPriorityChanged(int priority, float minIntervalMillis, float maxIntervalMillis) {
+                OnConnectionPriorityListener listener = mOnConnectionPriorityListener;
+                if (listener != null) {
+                    listener.onConnectionPriorityChanged(mac, priority, minIntervalMillis, maxIntervalMillis);
+                }
+            }
+        });
         operator.setOnDataListener(new BLEDeviceOperator.OnDataListener() {
             @Override
             public void onWrite(boolean success) {
@@ -185,7 +473,10 @@ public class BLEWrapper {
             }
 
             @Override
-            public void onRead(boolean success, byte[] data) {
+            public void onRead(boolean success, UUID characteristicUUID, byte[] data) {
+                if (success) {
+                    mCodecRegistry.decode(mac, characteristicUUID, data);
+                }
                 if (mOnDataListener != null) {
                     mOnDataListener.onRead(mac, success, data);
                 }
@@ -193,47 +484,69 @@ public class BLEWrapper {
 
             @Override
             public void onCharacteristicChanged(UUID characteristicUUID, byte[] data) {
+                mCodecRegistry.decode(mac, characteristicUUID, data);
+                mNotificationDispatcher.dispatch(address, mac, characteristicUUID, data);
                 if (mOnDataListener != null) {
                     mOnDataListener.onCharacteristicChanged(mac, characteristicUUID, data);
                 }
             }
+
+            @Override
+            public boolean isNotificationWanted(UUID characteristicUUID) {
+                return mOnDataListener != null || mCodecRegistry.hasCodec(characteristicUUID)
+                        || mNotificationDispatcher.hasListener(address, characteristicUUID);
+            }
         });
-        mTaskExecutor.addTask(task);
+        BLEDeviceOperator existing = mDeviceMap.putIfAbsent(address, operator);
+        return existing == null ? operator : existing;
     }
 
     /**
      * 连接设备任务
      *
      */
-    private class ConnectTask extends WrappedAsyncTask {
-
-        private String mMac;
+    private class ConnectTask extends DeviceTask {
 
         private Context mContext;
 
-        private long mTimeoutMillis;
-
         ConnectTask(Context context, String mac, long timeoutMillis) {
-            mMac = mac;
+            super(mac, timeoutMillis);
             mContext = context.getApplicationContext();
-            mTimeoutMillis = timeoutMillis;
         }
 
         @Override
         public void _run() {
-            BLEDeviceOperator operator = mDeviceMap.get(mMac);
+            BLEDeviceOperator operator = mDeviceMap.get(mAddress);
             if (operator == null) {
                 finishTask();
                 return;
             }
             stopScan();
+            BLEDeviceCatalog catalog = mDeviceCatalog;
+            if (catalog != null) {
+                catalog.onConnectAttempt(mAddress);
+            }
             operator.connect(mContext, new BLEDeviceOperator.OnResultListener() {
                 @Override
                 public void onResult(boolean success, String msg) {
+                    onTaskResult(ConnectTask.this, OP_CONNECT, success);
                     finishTask();
                 }
             }, mTimeoutMillis);
         }
+
+        @Override
+        public long getEstimatedMillis() {
+            return estimateMillis(mQueuedOperator, BLERttEstimator.OP_CONNECT);
+        }
+
+        @Override
+        void onRejected(String reason) {
+            Log.d(LOG_TAG, mMac + " connect rejected, reason = " + reason);
+            if (mOnDeviceStateListener != null) {
+                mOnDeviceStateListener.onConnectComplete(mMac, false);
+            }
+        }
     }
 
     /**
@@ -246,178 +559,1364 @@ public class BLEWrapper {
      * @param timeoutMillis 超时时间，单位毫秒
      */
     public void write(String mac, UUID serviceUUID, UUID characteristicUUID, byte[] data, long timeoutMillis) {
-        if (!mDeviceMap.containsKey(mac)) {
-            return;
-        }
-        BLEDeviceOperator operator = mDeviceMap.get(mac);
+        long address = MacAddress.parse(mac);
+        BLEDeviceOperator operator = mDeviceMap.get(address);
         if (operator == null) {
             return;
         }
         // TODO: 判断数据长度
-        mTaskExecutor.addTask(new WriteTask(mac, serviceUUID, characteristicUUID, data, timeoutMillis));
+        enqueueWrite(mac, address, serviceUUID, characteristicUUID, data, timeoutMillis, 0, null);
     }
 
     /**
-     * 写任务
+     * 添加写任务到任务队列中，并指定截止时间
+     * SCHEDULING_DEADLINE下截止时间早的任务先执行，到截止时间仍未开始或预计来不及完成时不执行，按写失败回调
+     *
+     * @param mac 设备mac
+     * @param serviceUUID 服务UUID
+     * @param characteristicUUID 特征UUID
+     * @param data 写入的数据，长度不超过20字节
+     * @param timeoutMillis 超时时间，单位毫秒
+     * @param deadlineMillis 从现在起的截止时间，单位毫秒
      */
-    private class WriteTask extends WrappedAsyncTask {
-
-        private String mMac;
-
-        private UUID mServiceUUID;
-
-        private UUID mCharacteristicUUID;
-
-        private byte[] data;
-
-        private long mTimeoutMillis;
-
-        WriteTask(String mac, UUID serviceUUID, UUID characteristicUUID, byte[] data, long timeoutMillis) {
-            mMac = mac;
-            mServiceUUID = serviceUUID;
-            mCharacteristicUUID = characteristicUUID;
-            this.data = data;
-            mTimeoutMillis = timeoutMillis;
-        }
-
-        @Override
-        public void _run() {
-            BLEDeviceOperator operator = mDeviceMap.get(mMac);
-            if (operator == null) {
-                finishTask();
-                return;
-            }
-            operator.write(mServiceUUID, mCharacteristicUUID, data, new BLEDeviceOperator.OnResultListener() {
-                @Override
-                public void onResult(boolean success, String msg) {
-                    finishTask();
-                }
-            }, mTimeoutMillis);
+    public void write(String mac, UUID serviceUUID, UUID characteristicUUID, byte[] data, long timeoutMillis,
+                      long deadlineMillis) {
+        long address = MacAddress.parse(mac);
+        BLEDeviceOperator operator = mDeviceMap.get(address);
+        if (operator == null) {
+            return;
         }
+        enqueueWrite(mac, address, serviceUUID, characteristicUUID, data, timeoutMillis,
+                SystemClock.elapsedRealtime() + deadlineMillis, null);
     }
 
     /**
-     * 添加读任务到任务队列中
+     * 添加写任务到任务队列中
      *
-     * @param mac 设备mac
+     * @param address 48位设备mac，见MacAddress
      * @param serviceUUID 服务UUID
      * @param characteristicUUID 特征UUID
+     * @param data 写入的数据，长度不超过20字节
      * @param timeoutMillis 超时时间，单位毫秒
      */
-    public void read(String mac, UUID serviceUUID, UUID characteristicUUID, long timeoutMillis) {
-        if (!mDeviceMap.containsKey(mac)) {
-            return;
-        }
-        BLEDeviceOperator operator = mDeviceMap.get(mac);
+    public void write(long address, UUID serviceUUID, UUID characteristicUUID, byte[] data, long timeoutMillis) {
+        BLEDeviceOperator operator = mDeviceMap.get(address);
         if (operator == null) {
             return;
         }
-        mTaskExecutor.addTask(new ReadTask(mac, serviceUUID, characteristicUUID, timeoutMillis));
+        enqueueWrite(operator.getMac(), address, serviceUUID, characteristicUUID, data, timeoutMillis, 0, null);
     }
 
     /**
-     * 读任务
+     * 从池中取出写任务加入队列，没能加入时直接归还
      *
+     * @param deadline 截止时间，SystemClock.elapsedRealtime()，0表示按超时时间设置
+     * @return 是否成功加入任务队列
      */
-    private class ReadTask extends WrappedAsyncTask {
+    private boolean enqueueWrite(String mac, long address, UUID serviceUUID, UUID characteristicUUID, byte[] data,
+                                 long timeoutMillis, long deadline, BLEDeviceOperator.OnResultListener listener) {
+        WriteTask task = mWriteTaskPool.acquire();
+        task.init(mac, address, serviceUUID, characteristicUUID, data, timeoutMillis, listener);
+        task.mDeadline = deadline;
+        if (!addTask(task)) {
+            task.recycle();
+            return false;
+        }
+        return true;
+    }
 
-        private String mMac;
+    /**
+     * 写任务，从mWriteTaskPool取出，自身作为写操作的回调
+     * 正常结束且没有安排重试时在执行线程中归还；不在执行中时收到的回调是上一次使用留下的，忽略
+     */
+    private class WriteTask extends DeviceTask implements BLEDeviceOperator.OnResultListener {
 
         private UUID mServiceUUID;
 
         private UUID mCharacteristicUUID;
 
-        private long mTimeoutMillis;
+        private byte[] data;
+
+        /* 本次写操作结果回调，可为空，安排了重试时不回调 */
+        private BLEDeviceOperator.OnResultListener mListener;
+
+        /* 本次执行是否安排了重试，安排了重试的任务由重试流程继续使用和归还，执行线程不归还 */
+        private volatile boolean mRetryScheduled;
 
-        ReadTask(String mac, UUID serviceUUID, UUID characteristicUUID, long timeoutMillis) {
-            mMac = mac;
+        WriteTask() {
+            super(null, MacAddress.INVALID, 0);
+        }
+
+        void init(String mac, long address, UUID serviceUUID, UUID characteristicUUID, byte[] data,
+                  long timeoutMillis, BLEDeviceOperator.OnResultListener listener) {
+            reset(mac, address, timeoutMillis);
             mServiceUUID = serviceUUID;
             mCharacteristicUUID = characteristicUUID;
-            mTimeoutMillis = timeoutMillis;
+            this.data = data;
+            mListener = listener;
+            mRetryScheduled = false;
+        }
+
+        /**
+         * 清除引用并归还到池中
+         *
+         */
+        void recycle() {
+            mServiceUUID = null;
+            mCharacteristicUUID = null;
+            data = null;
+            mListener = null;
+            mWriteTaskPool.release(this);
+        }
+
+        @Override
+        public void run() {
+            int generation = mGeneration;
+            super.run();
+            // 先读重试标志再比较代数：代数不变说明读到的标志属于本次执行，重试被放弃时由重试流程归还
+            boolean retryScheduled = mRetryScheduled;
+            if (!isStalled() && !retryScheduled && generation == mGeneration) {
+                recycle();
+            }
         }
 
         @Override
         public void _run() {
-            BLEDeviceOperator operator = mDeviceMap.get(mMac);
+            mRetryScheduled = false;
+            BLEDeviceOperator operator = mDeviceMap.get(mAddress);
             if (operator == null) {
+                if (mListener != null) {
+                    mListener.onResult(false, "not connected");
+                }
                 finishTask();
                 return;
             }
-            operator.read(mServiceUUID, mCharacteristicUUID, new BLEDeviceOperator.OnResultListener() {
-                @Override
-                public void onResult(boolean success, String msg) {
-                    finishTask();
-                }
-            }, mTimeoutMillis);
+            operator.write(mServiceUUID, mCharacteristicUUID, data, this, mTimeoutMillis);
+        }
+
+        @Override
+        public void onResult(boolean success, String msg) {
+            if (!isRunning()) {
+                return;
+            }
+            mRetryScheduled = onTaskResult(this, OP_WRITE, success);
+            if (!mRetryScheduled && mListener != null) {
+                mListener.onResult(success, msg);
+            }
+            finishTask();
+        }
+
+        @Override
+        public long getEstimatedMillis() {
+            return estimateMillis(mQueuedOperator, BLERttEstimator.OP_WRITE);
+        }
+
+        @Override
+        public void onExpired(String reason) {
+            super.onExpired(reason);
+            recycle();
+        }
+
+        @Override
+        void onRejected(String reason) {
+            Log.d(LOG_TAG, mMac + " write rejected, reason = " + reason);
+            if (mOnDataListener != null) {
+                mOnDataListener.onWrite(mMac, false);
+            }
+            if (mListener != null) {
+                mListener.onResult(false, reason);
+            }
+        }
+
+        @Override
+        void onRetryDropped() {
+            recycle();
+        }
+
+        /**
+         * 卡死的任务不归还，之后可能还会收到设备回调，这里只通知请求方失败
+         *
+         */
+        @Override
+        protected void onStalled() {
+            onRejected("stalled");
         }
     }
 
     /**
-     * 打开设备通知
+     * 添加读任务到任务队列中
+     * 同一设备同一特征已有未完成的读任务时不会重复加入
      *
      * @param mac 设备mac
      * @param serviceUUID 服务UUID
      * @param characteristicUUID 特征UUID
-     * @param descriptorUUID 描述UUID
+     * @param timeoutMillis 超时时间，单位毫秒
      */
-    public void openNotification(String mac, UUID serviceUUID, UUID characteristicUUID, UUID descriptorUUID) {
-        if (!mDeviceMap.containsKey(mac)) {
-            return;
-        }
-        BLEDeviceOperator operator = mDeviceMap.get(mac);
+    public void read(String mac, UUID serviceUUID, UUID characteristicUUID, long timeoutMillis) {
+        read(mac, serviceUUID, characteristicUUID, timeoutMillis, 0, null);
+    }
+
+    /**
+     * 添加读任务到任务队列中
+     *
+     * @param address 48位设备mac，见MacAddress
+     * @param serviceUUID 服务UUID
+     * @param characteristicUUID 特征UUID
+     * @param timeoutMillis 超时时间，单位毫秒
+     */
+    public void read(long address, UUID serviceUUID, UUID characteristicUUID, long timeoutMillis) {
+        BLEDeviceOperator operator = mDeviceMap.get(address);
         if (operator == null) {
             return;
         }
-        operator.subscribe(serviceUUID, characteristicUUID, descriptorUUID);
+        read(operator.getMac(), serviceUUID, characteristicUUID, timeoutMillis, 0, null);
     }
 
     /**
-     * 关闭设备通知
+     * 读取数据，结果通过listener返回
+     * 同一设备同一特征的并发读请求合并为一次读操作，结果分发给每个请求方；
+     * maxStalenessMillis大于0时，若最近一次成功读取的结果不超过该时间，直接返回该结果，不再读设备
      *
      * @param mac 设备mac
      * @param serviceUUID 服务UUID
      * @param characteristicUUID 特征UUID
-     * @param descriptorUUID 描述UUID
+     * @param timeoutMillis 超时时间，单位毫秒
+     * @param maxStalenessMillis 可接受的结果最大时长，单位毫秒，0表示必须读设备
+     * @param listener 本次请求结果回调，可为空
      */
-    public void closeNotification(String mac, UUID serviceUUID, UUID characteristicUUID, UUID descriptorUUID) {
-        if (!mDeviceMap.containsKey(mac)) {
-            return;
-        }
-        BLEDeviceOperator operator = mDeviceMap.get(mac);
-        if (operator == null) {
-            return;
-        }
-        operator.unSubscribe(serviceUUID, characteristicUUID, descriptorUUID);
+    public void read(String mac, UUID serviceUUID, UUID characteristicUUID, long timeoutMillis,
+                     long maxStalenessMillis, OnReadListener listener) {
+        enqueueRead(mac, serviceUUID, characteristicUUID, timeoutMillis, maxStalenessMillis, listener);
     }
 
     /**
-     * 断开设备连接
+     * 轮询调度器使用的读操作
      *
-     * @param mac 设备mac地址
+     * @param mac 设备mac
+     * @param serviceUUID 服务UUID
+     * @param characteristicUUID 特征UUID
+     * @param timeoutMillis 超时时间，单位毫秒
+     * @param listener 读结果回调
+     * @return 成功加入任务队列或合并到已有读任务时返回ADD_OK，否则返回失败原因，
+     * 只有ADD_QUEUE_FULL表示任务队列饱和
      */
-    public void disconnect(String mac) {
-        if (!mDeviceMap.containsKey(mac)) {
-            return;
-        }
-        BLEDeviceOperator operator = mDeviceMap.get(mac);
-        if (operator == null) {
-            return;
-        }
-        operator.disconnect();
+    int pollRead(String mac, UUID serviceUUID, UUID characteristicUUID, long timeoutMillis,
+                 OnReadListener listener) {
+        return enqueueRead(mac, serviceUUID, characteristicUUID, timeoutMillis, 0, listener);
     }
 
     /**
-     * 停止工作
+     * 把读请求合并到未完成的读任务中，没有则新建读任务加入队列
+     * 先从池中取出任务，用任务持有的key查缓存和未完成表，合并或命中缓存时归还，稳定状态下不分配对象
+     *
+     * @param maxStalenessMillis 可接受的缓存结果最大时长，0表示必须读设备
+     * @return ADD_OK、ADD_QUEUE_FULL、ADD_CIRCUIT_OPEN或ADD_UNAVAILABLE
+     */
+    private int enqueueRead(String mac, UUID serviceUUID, UUID characteristicUUID, long timeoutMillis,
+                                long maxStalenessMillis, OnReadListener listener) {
+        long address = MacAddress.parse(mac);
+        if (address == MacAddress.INVALID) {
+            return ADD_UNAVAILABLE;
+        }
+        ReadTask task = mReadTaskPool.acquire();
+        task.init(mac, address, serviceUUID, characteristicUUID, timeoutMillis);
+        CharacteristicKey key = task.mKey;
+        if (maxStalenessMillis > 0 && listener != null) {
+            CachedRead cached = mReadCache.get(key);
+            byte[] data = cached == null ? null
+                    : cached.getIfFresh(maxStalenessMillis, SystemClock.elapsedRealtime());
+            if (data != null) {
+                task.recycle();
+                listener.onRead(mac, characteristicUUID, true, data);
+                return ADD_OK;
+            }
+        }
+        if (mTaskExecutor == null || mDeviceMap.get(address) == null) {
+            task.recycle();
+            return ADD_UNAVAILABLE;
+        }
+        while (true) {
+            ReadTask pending = mPendingReads.get(key);
+            if (pending != null) {
+                int result = pending.addRequester(key, listener);
+                if (result == ReadTask.REQUESTER_ADDED) {
+                    Log.d(LOG_TAG, mac + " coalesce read " + characteristicUUID);
+                    task.recycle();
+                    return ADD_OK;
+                }
+                if (result == ReadTask.REQUESTER_DONE) {
+                    // 已完成的任务还没从表中移除，替换掉
+                    mPendingReads.remove(key, pending);
+                }
+                continue;
+            }
+            if (mPendingReads.putIfAbsent(key, task) != null) {
+                // 其他线程先加入了任务，重新合并
+                continue;
+            }
+            task.publish(listener);
+            int result = offerTask(task);
+            if (result != ADD_OK) {
+                task.complete(false, null);
+                task.recycle();
+            }
+            return result;
+        }
+    }
+
+    /**
+     * 返回任务队列占用率
+     *
+     * @return 占用率，0~1
+     */
+    float getTaskLoad() {
+        TaskExecutor executor = mTaskExecutor;
+        if (executor == null) {
+            return 0;
+        }
+        return (float) executor.getTaskCount() / executor.getCapacity();
+    }
+
+    /**
+     * 读任务，一次读操作的结果分发给所有合并进来的请求方
+     * 从mReadTaskPool取出，正常完成后在执行线程中归还，重试被放弃时由重试流程归还；
+     * 不在执行中时收到的回调是上一次使用留下的，忽略
+     *
+     */
+    private class ReadTask extends DeviceTask implements BLEDeviceOperator.OnReadResultListener {
+
+        /* addRequester()的结果：已合并；任务刚放入未完成表还不接受请求方，需重新查表；任务已完成或已复用 */
+        static final int REQUESTER_ADDED = 0;
+        static final int REQUESTER_RETRY = 1;
+        static final int REQUESTER_DONE = 2;
+
+        /* 任务持有的key，复用时重新设置，在未完成表中期间不修改 */
+        private final CharacteristicKey mKey = new CharacteristicKey(MacAddress.INVALID, null, null);
+
+        private UUID mServiceUUID;
+
+        private UUID mCharacteristicUUID;
+
+        /* 请求方，只在持有锁时访问，复用同一个列表 */
+        private final List<OnReadListener> mRequesters = new ArrayList<>(2);
+
+        /* 是否已完成，完成后不再接受请求方 */
+        private boolean mCompleted = false;
+
+        /* 是否已放入未完成表并接受请求方 */
+        private boolean mPublished = false;
+
+        /* 本次执行是否安排了重试，安排了重试的任务由重试流程继续使用和归还，执行线程不归还 */
+        private volatile boolean mRetryScheduled;
+
+        ReadTask() {
+            super(null, MacAddress.INVALID, 0);
+        }
+
+        synchronized void init(String mac, long address, UUID serviceUUID, UUID characteristicUUID,
+                               long timeoutMillis) {
+            reset(mac, address, timeoutMillis);
+            mKey.set(address, serviceUUID, characteristicUUID);
+            mServiceUUID = serviceUUID;
+            mCharacteristicUUID = characteristicUUID;
+            mCompleted = false;
+            mPublished = false;
+            mRetryScheduled = false;
+        }
+
+        /**
+         * 清除引用并归还到池中，有请求方时只能在complete()之后调用
+         *
+         */
+        void recycle() {
+            synchronized (this) {
+                mKey.set(MacAddress.INVALID, null, null);
+                mServiceUUID = null;
+                mCharacteristicUUID = null;
+            }
+            mReadTaskPool.release(this);
+        }
+
+        /**
+         * 放入未完成表后调用，开始接受其他请求方
+         *
+         * @param listener 第一个请求方，可为空
+         */
+        synchronized void publish(OnReadListener listener) {
+            mPublished = true;
+            if (listener != null) {
+                mRequesters.add(listener);
+            }
+        }
+
+        /**
+         * 合并一个请求方
+         * 从未完成表中取到的任务可能已经完成并被复用，key不同时同样返回REQUESTER_DONE
+         *
+         * @param key 请求的key
+         * @param listener 请求方，可为空
+         * @return REQUESTER_ADDED、REQUESTER_RETRY或REQUESTER_DONE
+         */
+        synchronized int addRequester(CharacteristicKey key, OnReadListener listener) {
+            if (mCompleted || !key.equals(mKey)) {
+                return REQUESTER_DONE;
+            }
+            if (!mPublished) {
+                return REQUESTER_RETRY;
+            }
+            if (listener != null) {
+                mRequesters.add(listener);
+            }
+            return REQUESTER_ADDED;
+        }
+
+        /**
+         * 结束任务并把结果分发给所有请求方
+         *
+         * @param success 是否成功
+         * @param data 数据
+         */
+        void complete(boolean success, byte[] data) {
+            synchronized (this) {
+                if (mCompleted) {
+                    return;
+                }
+                mCompleted = true;
+            }
+            mPendingReads.remove(mKey, this);
+            if (success) {
+                // 每个特征只在第一次读成功时分配缓存项，之后原地更新
+                CachedRead cached = mReadCache.get(mKey);
+                if (cached == null) {
+                    cached = new CachedRead();
+                    CachedRead existing = mReadCache.putIfAbsent(mKey.copy(), cached);
+                    if (existing != null) {
+                        cached = existing;
+                    }
+                }
+                cached.set(data, SystemClock.elapsedRealtime());
+            }
+            // 完成后列表不再被修改，在锁外回调
+            for (int i = 0; i < mRequesters.size(); i++) {
+                mRequesters.get(i).onRead(mMac, mCharacteristicUUID, success, data);
+            }
+            mRequesters.clear();
+        }
+
+        @Override
+        public void run() {
+            int generation = mGeneration;
+            super.run();
+            // 先读重试标志和完成标志再比较代数：代数不变说明读到的标志属于本次执行
+            boolean retryScheduled = mRetryScheduled;
+            boolean completed;
+            synchronized (this) {
+                completed = mCompleted;
+            }
+            // 卡死的任务可能还会收到设备回调，不归还；安排了重试的任务由重试流程归还
+            if (!isStalled() && !retryScheduled && completed && generation == mGeneration) {
+                recycle();
+            }
+        }
+
+        @Override
+        public void onResult(boolean success, String msg, byte[] data) {
+            if (!isRunning()) {
+                return;
+            }
+            // 安排了重试时任务仍留在未完成表中，新的请求方继续合并进来
+            mRetryScheduled = onTaskResult(this, OP_READ, success);
+            if (!mRetryScheduled) {
+                complete(success, data);
+            }
+            finishTask();
+        }
+
+        @Override
+        void onRejected(String reason) {
+            Log.d(LOG_TAG, mMac + " read rejected, reason = " + reason);
+            complete(false, null);
+        }
+
+        @Override
+        void onRetryDropped() {
+            recycle();
+        }
+
+        @Override
+        public long getEstimatedMillis() {
+            return estimateMillis(mQueuedOperator, BLERttEstimator.OP_READ);
+        }
+
+        @Override
+        public void onExpired(String reason) {
+            super.onExpired(reason);
+            recycle();
+        }
+
+        @Override
+        protected void onStalled() {
+            complete(false, null);
+        }
+
+        @Override
+        public void _run() {
+            mRetryScheduled = false;
+            BLEDeviceOperator operator = mDeviceMap.get(mAddress);
+            if (operator == null) {
+                onResult(false, "no operator", null);
+                return;
+            }
+            operator.read(mServiceUUID, mCharacteristicUUID, this, mTimeoutMillis);
+        }
+    }
+
+    /**
+     * 最近一次成功读取的结果，每个设备特征一个对象，之后的结果原地更新
+     *
+     */
+    private static class CachedRead {
+
+        private byte[] mData;
+
+        private long mTime;
+
+        synchronized void set(byte[] data, long time) {
+            mData = data;
+            mTime = time;
+        }
+
+        /**
+         * @return 不超过maxStalenessMillis的结果，没有时返回null
+         */
+        synchronized byte[] getIfFresh(long maxStalenessMillis, long now) {
+            return mData != null && now - mTime <= maxStalenessMillis ? mData : null;
+        }
+    }
+
+    /**
+     * 提交GATT事务，事务的全部步骤作为一个任务执行，期间不会插入其他任务
+     *
+     * @param transaction 事务
+     * @return 是否成功加入任务队列，设备熔断时通过事务回调返回失败
+     */
+    public boolean submit(BLETransaction transaction) {
+        return addTask(transaction.newTask(this));
+    }
+
+    /**
+     * 写命令并等待设备在应答特征上的通知
+     * 应答在写命令之前就开始等待；同一设备可以有多个未完成的命令，
+     * 收到通知时按发出顺序交给第一个匹配的命令，因此不必等上一个应答就可以发下一个命令。
+     * 应答特征的通知需已通过openNotification()打开
+     *
+     * @param mac 设备mac
+     * @param serviceUUID 服务UUID
+     * @param characteristicUUID 命令特征UUID
+     * @param command 命令数据
+     * @param responseUUID 应答特征UUID
+     * @param matcher 应答匹配条件，例如序号字节或操作码，为空表示应答特征的下一个通知
+     * @param timeoutMillis 从调用开始计算的超时时间，包括排队、写命令和等待应答，单位毫秒
+     * @param listener 结果回调
+     * @return 命令是否成功加入任务队列，失败时也会回调listener
+     */
+    public boolean request(String mac, UUID serviceUUID, UUID characteristicUUID, byte[] command,
+                           UUID responseUUID, BLETransaction.Matcher matcher, long timeoutMillis,
+                           OnResponseListener listener) {
+        long address = parseMac(mac);
+        if (address == MacAddress.INVALID) {
+            if (listener != null) {
+                listener.onResponse(mac, false, "invalid mac", null);
+            }
+            return false;
+        }
+        final BLEResponseCorrelator.Pending pending = mResponseCorrelator.register(mac, responseUUID, matcher,
+                timeoutMillis, listener);
+        if (pending == null) {
+            return false;
+        }
+        if (mDeviceMap.get(address) == null) {
+            mResponseCorrelator.fail(pending, "not connected");
+            return false;
+        }
+        boolean added = enqueueWrite(mac, address, serviceUUID, characteristicUUID, command, timeoutMillis, 0,
+                new BLEDeviceOperator.OnResultListener() {
+                    @Override
+                    public void onResult(boolean success, String msg) {
+                        if (!success) {
+                            mResponseCorrelator.fail(pending, "write failed: " + msg);
+                        }
+                    }
+                });
+        if (!added) {
+            mResponseCorrelator.fail(pending, "task queue full");
+        }
+        return added;
+    }
+
+    /**
+     * 向组内设备写入同样的数据，同时写入的设备数不超过组的maxParallel
+     *
+     * @param group 设备组
+     * @param serviceUUID 服务UUID
+     * @param characteristicUUID 特征UUID
+     * @param data 写入的数据
+     * @param timeoutMillis 单个设备的超时时间，单位毫秒
+     * @param listener 全部设备结束后回调，可为空
+     * @return 是否成功加入任务队列
+     */
+    public boolean groupWrite(BLEDeviceGroup group, UUID serviceUUID, UUID characteristicUUID, byte[] data,
+                              long timeoutMillis, BLEDeviceGroup.OnGroupListener listener) {
+        return addTask(new BLEGroupOperation(this, BLEGroupOperation.OP_WRITE, group, serviceUUID,
+                characteristicUUID, null, data, timeoutMillis, listener));
+    }
+
+    /**
+     * 读取组内设备的同一特征，读到的数据在各设备结果中
+     *
+     * @param group 设备组
+     * @param serviceUUID 服务UUID
+     * @param characteristicUUID 特征UUID
+     * @param timeoutMillis 单个设备的超时时间，单位毫秒
+     * @param listener 全部设备结束后回调
+     * @return 是否成功加入任务队列
+     */
+    public boolean groupRead(BLEDeviceGroup group, UUID serviceUUID, UUID characteristicUUID,
+                             long timeoutMillis, BLEDeviceGroup.OnGroupListener listener) {
+        return addTask(new BLEGroupOperation(this, BLEGroupOperation.OP_READ, group, serviceUUID,
+                characteristicUUID, null, null, timeoutMillis, listener));
+    }
+
+    /**
+     * 订阅组内设备的同一Descriptor，描述写入完成后才算该设备成功
+     *
+     * @param group 设备组
+     * @param serviceUUID 服务UUID
+     * @param characteristicUUID 特征UUID
+     * @param descriptorUUID 描述UUID
+     * @param timeoutMillis 单个设备的超时时间，单位毫秒
+     * @param listener 全部设备结束后回调，可为空
+     * @return 是否成功加入任务队列
+     */
+    public boolean groupSubscribe(BLEDeviceGroup group, UUID serviceUUID, UUID characteristicUUID,
+                                  UUID descriptorUUID, long timeoutMillis, BLEDeviceGroup.OnGroupListener listener) {
+        return addTask(new BLEGroupOperation(this, BLEGroupOperation.OP_SUBSCRIBE, group, serviceUUID,
+                characteristicUUID, descriptorUUID, null, timeoutMillis, listener));
+    }
+
+    /**
+     * 从文件通道批量上传数据到设备特征
+     * 数据按chunkSize分块，每windowSize块为一个窗口，窗口最后一块需要设备应答；
+     * 传输中断时通过listener返回已确认的偏移量，可从该偏移量重新调用本方法续传。
+     * 调用方负责关闭通道
+     *
+     * @param mac 设备mac
+     * @param serviceUUID 服务UUID
+     * @param characteristicUUID 特征UUID
+     * @param channel 文件通道
+     * @param startOffset 起始偏移量
+     * @param chunkSize 每块字节数，大于0且不超过MTU - 3，默认MTU下为20
+     * @param windowSize 每个窗口的块数
+     * @param timeoutMillis 每块写操作超时时间，单位毫秒
+     * @param listener 进度回调
+     */
+    public void upload(String mac, UUID serviceUUID, UUID characteristicUUID, FileChannel channel,
+                       long startOffset, int chunkSize, int windowSize, long timeoutMillis,
+                       OnUploadListener listener) {
+        checkChunkSize(chunkSize);
+        long totalBytes;
+        try {
+            totalBytes = channel.size();
+            channel.position(startOffset);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, mac + " upload failed to position channel", e);
+            if (listener != null) {
+                listener.onInterrupted(mac, startOffset, "read source failed: " + e.getMessage());
+            }
+            return;
+        }
+        startUpload(new BLEUpload(this, mac, serviceUUID, characteristicUUID, channel, startOffset, totalBytes,
+                chunkSize, windowSize, timeoutMillis, listener));
+    }
+
+    /**
+     * 从文件批量上传数据到设备特征，参数同{@link #upload(String, UUID, UUID, FileChannel, long, int, int, long, OnUploadListener)}
+     * 文件在上传结束后关闭
+     *
+     */
+    public void upload(String mac, UUID serviceUUID, UUID characteristicUUID, File file,
+                       long startOffset, int chunkSize, int windowSize, long timeoutMillis,
+                       final OnUploadListener listener) {
+        checkChunkSize(chunkSize);
+        final FileInputStream in;
+        try {
+            in = new FileInputStream(file);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, mac + " upload failed to open " + file, e);
+            if (listener != null) {
+                listener.onInterrupted(mac, startOffset, "read source failed: " + e.getMessage());
+            }
+            return;
+        }
+        upload(mac, serviceUUID, characteristicUUID, in.getChannel(), startOffset, chunkSize, windowSize,
+                timeoutMillis, new OnUploadListener() {
+                    @Override
+                    public void onProgress(String mac, long ackedBytes, long totalBytes, float bytesPerSecond) {
+                        if (listener != null) {
+                            listener.onProgress(mac, ackedBytes, totalBytes, bytesPerSecond);
+                        }
+                    }
+
+                    @Override
+                    public void onComplete(String mac, long totalBytes, long elapsedMillis) {
+                        closeQuietly(in);
+                        if (listener != null) {
+                            listener.onComplete(mac, totalBytes, elapsedMillis);
+                        }
+                    }
+
+                    @Override
+                    public void onInterrupted(String mac, long resumeOffset, String reason) {
+                        closeQuietly(in);
+                        if (listener != null) {
+                            listener.onInterrupted(mac, resumeOffset, reason);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * 从输入流批量上传数据到设备特征，参数同{@link #upload(String, UUID, UUID, FileChannel, long, int, int, long, OnUploadListener)}
+     * 输入流需已定位到startOffset，调用方负责关闭输入流
+     *
+     * @param totalBytes 数据总长度，未知时传-1
+     */
+    public void upload(String mac, UUID serviceUUID, UUID characteristicUUID, InputStream in,
+                       long startOffset, long totalBytes, int chunkSize, int windowSize, long timeoutMillis,
+                       OnUploadListener listener) {
+        checkChunkSize(chunkSize);
+        startUpload(new BLEUpload(this, mac, serviceUUID, characteristicUUID, Channels.newChannel(in), startOffset,
+                totalBytes, chunkSize, windowSize, timeoutMillis, listener));
+    }
+
+    /**
+     * 取消批量上传，正在发送的窗口完成后停止，listener收到onInterrupted
+     *
+     * @param mac 设备mac
+     * @param characteristicUUID 特征UUID
+     */
+    public void cancelUpload(String mac, UUID characteristicUUID) {
+        BLEUpload upload = mUploads.get(new CharacteristicKey(MacAddress.parse(mac), characteristicUUID));
+        if (upload != null) {
+            upload.cancel();
+        }
+    }
+
+    private void startUpload(BLEUpload upload) {
+        // 不合法的mac不放入mUploads，由start()直接回调中断
+        if (parseMac(upload.getMac()) != MacAddress.INVALID) {
+            BLEUpload old = mUploads.put(upload.getKey(), upload);
+            if (old != null) {
+                old.cancel();
+            }
+        }
+        upload.start();
+    }
+
+    /**
+     * 批量上传结束时回调
+     *
+     * @param upload 上传
+     */
+    void onUploadEnd(BLEUpload upload) {
+        mUploads.remove(upload.getKey(), upload);
+    }
+
+    /**
+     * 把设备某个特征的通知直接写入文件，需要先打开该特征的通知
+     * 同一设备同一特征已有进行中的下载时，旧的下载被结束
+     *
+     * @param mac 设备mac
+     * @param characteristicUUID 特征UUID
+     * @param sink 下载接收器
+     * @return 是否成功打开文件
+     */
+    public boolean startDownload(String mac, UUID characteristicUUID, BLEDownloadSink sink) {
+        long address = parseMac(mac);
+        if (address == MacAddress.INVALID) {
+            return false;
+        }
+        try {
+            sink.open(this, mac, characteristicUUID);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, mac + " download failed to open file", e);
+            return false;
+        }
+        BLEDownloadSink old = mDownloads.put(new CharacteristicKey(address, characteristicUUID), sink);
+        if (old != null) {
+            old.stop();
+        }
+        mNotificationDispatcher.addListener(address, characteristicUUID, sink);
+        return true;
+    }
+
+    /**
+     * 结束下载，已接收的数据写入文件
+     *
+     * @param mac 设备mac
+     * @param characteristicUUID 特征UUID
+     */
+    public void stopDownload(String mac, UUID characteristicUUID) {
+        BLEDownloadSink sink = mDownloads.get(new CharacteristicKey(MacAddress.parse(mac), characteristicUUID));
+        if (sink != null) {
+            sink.stop();
+        }
+    }
+
+    /**
+     * 下载结束时回调
+     *
+     * @param sink 下载接收器
+     */
+    void onDownloadEnd(BLEDownloadSink sink) {
+        mNotificationDispatcher.removeListener(sink);
+        mDownloads.remove(new CharacteristicKey(MacAddress.parse(sink.getMac()), sink.getCharacteristicUUID()),
+                sink);
+    }
+
+    /**
+     * 获取设备操作对象
+     *
+     * @param mac 设备mac
+     * @return 设备操作对象，不存在时返回null
+     */
+    BLEDeviceOperator getOperator(String mac) {
+        return mDeviceMap.get(MacAddress.parse(mac));
+    }
+
+    BLEDeviceOperator getOperator(long address) {
+        return mDeviceMap.get(address);
+    }
+
+    /**
+     * 解析调用方传入的mac，格式不正确时打印警告
+     * 需要保存mac的接口先经过这里，不合法的mac不进入任何索引
+     *
+     * @param mac 设备mac
+     * @return 48位地址，格式不正确时返回MacAddress.INVALID
+     */
+    private long parseMac(String mac) {
+        long address = MacAddress.parse(mac);
+        if (address == MacAddress.INVALID) {
+            Log.w(LOG_TAG, "invalid mac " + mac);
+        }
+        return address;
+    }
+
+    /**
+     * 添加任务到任务队列
+     *
+     * @param task 任务
+     * @return 是否添加成功
+     */
+    boolean addTask(ITask task) {
+        return offerTask(task) == ADD_OK;
+    }
+
+    /* 加入任务队列的结果：成功；队列已满；设备已熔断；设备未连接或mac无效 */
+    static final int ADD_OK = 0;
+    static final int ADD_QUEUE_FULL = 1;
+    static final int ADD_CIRCUIT_OPEN = 2;
+    static final int ADD_UNAVAILABLE = 3;
+
+    /**
+     * 添加任务到任务队列，设备已熔断时回调任务的onRejected()
+     *
+     * @param task 任务
+     * @return ADD_OK、ADD_QUEUE_FULL或ADD_CIRCUIT_OPEN
+     */
+    private int offerTask(ITask task) {
+        TaskExecutor executor = mTaskExecutor;
+        if (executor == null) {
+            return ADD_QUEUE_FULL;
+        }
+        BLEDeviceOperator operator = null;
+        if (task instanceof DeviceTask) {
+            operator = mDeviceMap.get(((DeviceTask) task).mAddress);
+            if (operator != null && !operator.getCircuitBreaker().allowRequest()) {
+                ((DeviceTask) task).onRejected("circuit open");
+                return ADD_CIRCUIT_OPEN;
+            }
+            // 没有指定截止时间时以加入队列的时间加超时时间为截止时间，重试时沿用第一次的截止时间
+            DeviceTask deviceTask = (DeviceTask) task;
+            if (deviceTask.mDeadline == 0) {
+                deviceTask.mDeadline = SystemClock.elapsedRealtime() + deviceTask.mTimeoutMillis;
+            }
+            // 记录设备排队任务数，用于调整连接优先级
+            if (operator != null) {
+                operator.onTaskQueued();
+                ((DeviceTask) task).mQueuedOperator = operator;
+            }
+        }
+        if (executor.addTask(task)) {
+            return ADD_OK;
+        }
+        if (operator != null) {
+            ((DeviceTask) task).mQueuedOperator = null;
+            operator.onTaskDequeued();
+        }
+        return ADD_QUEUE_FULL;
+    }
+
+    /**
+     * 处理设备操作结果，更新设备熔断器，失败时按重试策略安排重试
+     * 重试的任务在退避时间后重新加入队列，等待期间不占用执行线程
+     *
+     * @param task 任务
+     * @param op 操作类型
+     * @param success 是否成功
+     * @return 是否已安排重试，已安排时调用方不应通知请求方失败
+     */
+    private boolean onTaskResult(final DeviceTask task, int op, boolean success) {
+        BLEDeviceOperator operator = mDeviceMap.get(task.mAddress);
+        if (operator != null) {
+            if (success) {
+                operator.getCircuitBreaker().onSuccess();
+            } else {
+                operator.getCircuitBreaker().onFailure();
+            }
+        }
+        if (success) {
+            return false;
+        }
+        BLERetryPolicy policy = mRetryPolicies[op];
+        Handler handler = mMainHandler;
+        if (policy == null || handler == null || task.mAttempt >= policy.getMaxAttempts()
+                || (operator != null && operator.getCircuitBreaker().isOpen())) {
+            return false;
+        }
+        long backoff = policy.getBackoffMillis(task.mAttempt, mRandom);
+        task.mAttempt++;
+        Log.d(LOG_TAG, task.mMac + " op " + op + " failed, retry attempt " + task.mAttempt + " in " + backoff + "ms");
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                int result = offerTask(task);
+                if (result == ADD_OK) {
+                    return;
+                }
+                // 熔断时offerTask()已回调onRejected()
+                if (result == ADD_QUEUE_FULL) {
+                    task.onRejected("task queue full");
+                }
+                task.onRetryDropped();
+            }
+        }, backoff);
+        return true;
+    }
+
+    /**
+     * 在主线程延时执行
+     *
+     * @return Wrapper已停止时返回false
+     */
+    boolean postDelayed(Runnable runnable, long delayMillis) {
+        Handler handler = mMainHandler;
+        return handler != null && handler.postDelayed(runnable, delayMillis);
+    }
+
+    void removeCallbacks(Runnable runnable) {
+        Handler handler = mMainHandler;
+        if (handler != null) {
+            handler.removeCallbacks(runnable);
+        }
+    }
+
+    private static void checkChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("invalid chunk size " + chunkSize);
+        }
+    }
+
+    private void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "close upload source failed", e);
+        }
+    }
+
+    /**
+     * 周期轮询读取设备特征，适用于不支持通知的设备
+     * 各轮询项的触发时间相互错开，上一次读取未完成时跳过本次，任务队列饱和时自动降低轮询频率
+     *
+     * @param mac 设备mac
+     * @param serviceUUID 服务UUID
+     * @param characteristicUUID 特征UUID
+     * @param intervalMillis 轮询周期，单位毫秒
+     * @param timeoutMillis 每次读操作超时时间，单位毫秒
+     */
+    public void startPolling(String mac, UUID serviceUUID, UUID characteristicUUID,
+                             long intervalMillis, long timeoutMillis) {
+        if (parseMac(mac) == MacAddress.INVALID) {
+            return;
+        }
+        mPollScheduler.startPolling(mac, serviceUUID, characteristicUUID, intervalMillis, timeoutMillis);
+    }
+
+    /**
+     * 停止轮询设备特征
+     *
+     * @param mac 设备mac
+     * @param characteristicUUID 特征UUID
+     */
+    public void stopPolling(String mac, UUID characteristicUUID) {
+        mPollScheduler.stopPolling(mac, characteristicUUID);
+    }
+
+    /**
+     * 打开设备通知
+     *
+     * @param mac 设备mac
+     * @param serviceUUID 服务UUID
+     * @param characteristicUUID 特征UUID
+     * @param descriptorUUID 描述UUID
+     */
+    public void openNotification(String mac, UUID serviceUUID, UUID characteristicUUID, UUID descriptorUUID) {
+        BLEDeviceOperator operator = mDeviceMap.get(MacAddress.parse(mac));
+        if (operator == null) {
+            return;
+        }
+        operator.subscribe(serviceUUID, characteristicUUID, descriptorUUID);
+    }
+
+    /**
+     * 关闭设备通知
+     *
+     * @param mac 设备mac
+     * @param serviceUUID 服务UUID
+     * @param characteristicUUID 特征UUID
+     * @param descriptorUUID 描述UUID
+     */
+    public void closeNotification(String mac, UUID serviceUUID, UUID characteristicUUID, UUID descriptorUUID) {
+        BLEDeviceOperator operator = mDeviceMap.get(MacAddress.parse(mac));
+        if (operator == null) {
+            return;
+        }
+        operator.unSubscribe(serviceUUID, characteristicUUID, descriptorUUID);
+    }
+
+    /**
+     * 设置某个设备某个特征的通知过滤条件，例如按间隔节流、每N个取一个、去掉重复数据或窗口汇总，
+     * 被过滤掉的通知不会打印日志，也不会交给解码器和任何监听器。可以在连接设备前设置
+     *
+     * @param mac 设备mac
+     * @param characteristicUUID 特征UUID
+     * @param filter 过滤条件，为空表示取消过滤
+     */
+    public void setNotificationFilter(String mac, UUID characteristicUUID, BLENotificationFilter filter) {
+        long address = parseMac(mac);
+        if (address == MacAddress.INVALID) {
+            return;
+        }
+        Map<UUID, BLENotificationFilter> filters = mNotificationFilters.get(address);
+        if (filters == null) {
+            filters = new ConcurrentHashMap<>();
+            Map<UUID, BLENotificationFilter> existing = mNotificationFilters.putIfAbsent(address, filters);
+            if (existing != null) {
+                filters = existing;
+            }
+        }
+        if (filter == null) {
+            filters.remove(characteristicUUID);
+        } else {
+            filters.put(characteristicUUID, filter);
+        }
+        BLEDeviceOperator operator = mDeviceMap.get(address);
+        if (operator != null) {
+            operator.setNotificationFilter(characteristicUUID, filter);
+        }
+    }
+
+    /**
+     * 注册某个设备某个特征的通知监听器
+     *
+     * @param mac 设备mac
+     * @param characteristicUUID 特征UUID
+     * @param listener 监听器
+     */
+    public void addNotificationListener(String mac, UUID characteristicUUID, OnNotificationListener listener) {
+        long address = parseMac(mac);
+        if (address == MacAddress.INVALID) {
+            return;
+        }
+        mNotificationDispatcher.addListener(address, characteristicUUID, listener);
+    }
+
+    /**
+     * 注册某个设备某个特征的通知监听器，并指定回调的执行方式
+     * 同一监听器只使用第一次注册时的执行方式
+     *
+     * @param mac 设备mac，为空表示所有设备
+     * @param characteristicUUID 特征UUID
+     * @param listener 监听器
+     * @param delivery 执行方式，见BLEDelivery
+     */
+    public void addNotificationListener(String mac, UUID characteristicUUID, OnNotificationListener listener,
+                                        BLEDelivery delivery) {
+        long address = mac == null ? BLENotificationDispatcher.ANY_DEVICE : parseMac(mac);
+        if (mac != null && address == MacAddress.INVALID) {
+            return;
+        }
+        if (listener == null || delivery == null || delivery.isInline()) {
+            mNotificationDispatcher.addListener(address, characteristicUUID, listener);
+            return;
+        }
+        synchronized (mDeliveredListeners) {
+            OnNotificationListener delivered = mDeliveredListeners.get(listener);
+            if (delivered == null) {
+                delivered = BLEDelivery.wrap(listener, delivery);
+                mDeliveredListeners.put(listener, delivered);
+            }
+            mNotificationDispatcher.addListener(address, characteristicUUID, delivered);
+        }
+    }
+
+    /**
+     * 注册所有设备某个特征的通知监听器
+     *
+     * @param characteristicUUID 特征UUID
+     * @param listener 监听器
+     */
+    public void addNotificationListener(UUID characteristicUUID, OnNotificationListener listener) {
+        mNotificationDispatcher.addListener(BLENotificationDispatcher.ANY_DEVICE, characteristicUUID, listener);
+    }
+
+    /**
+     * 注销某个设备某个特征的通知监听器
+     *
+     * @param mac 设备mac，为空表示注销注册到所有设备的监听器
+     * @param characteristicUUID 特征UUID
+     * @param listener 监听器
+     */
+    public void removeNotificationListener(String mac, UUID characteristicUUID, OnNotificationListener listener) {
+        long address = mac == null ? BLENotificationDispatcher.ANY_DEVICE : MacAddress.parse(mac);
+        if (mac != null && address == MacAddress.INVALID) {
+            return;
+        }
+        mNotificationDispatcher.removeListener(address, characteristicUUID, listener);
+        synchronized (mDeliveredListeners) {
+            OnNotificationListener delivered = mDeliveredListeners.get(listener);
+            if (delivered == null) {
+                return;
+            }
+            mNotificationDispatcher.removeListener(address, characteristicUUID, delivered);
+            if (!mNotificationDispatcher.isRegistered(delivered)) {
+                mDeliveredListeners.remove(listener);
+            }
+        }
+    }
+
+    /**
+     * 注销通知监听器的全部注册
+     *
+     * @param listener 监听器
+     */
+    public void removeNotificationListener(OnNotificationListener listener) {
+        mNotificationDispatcher.removeListener(listener);
+        synchronized (mDeliveredListeners) {
+            OnNotificationListener delivered = mDeliveredListeners.remove(listener);
+            if (delivered != null) {
+                mNotificationDispatcher.removeListener(delivered);
+            }
+        }
+    }
+
+    /**
+     * 为特征注册解码器，该特征的读取结果和通知数据会先经解码器解码后交给解码器的sink
+     *
+     * @param characteristicUUID 特征UUID
+     * @param codec 解码器，可使用codec包中的内置实现
+     */
+    public void registerCodec(UUID characteristicUUID, ICodec codec) {
+        mCodecRegistry.register(characteristicUUID, codec);
+    }
+
+    /**
+     * 注销特征的解码器
+     *
+     * @param characteristicUUID 特征UUID
+     */
+    public void unregisterCodec(UUID characteristicUUID) {
+        mCodecRegistry.unregister(characteristicUUID);
+    }
+
+    /**
+     * 设置是否根据排队任务数和传输速率自动调整连接优先级，默认开启，仅Android 5.0及以上有效
+     * 负载高时切换到高优先级，空闲一段时间后切换到低功耗
+     *
+     * @param enabled 是否开启
+     */
+    public void setAutoConnectionPriority(boolean enabled) {
+        mAutoConnectionPriority = enabled;
+        for (BLEDeviceOperator operator : mDeviceMap.values()) {
+            operator.setAutoPriority(enabled);
+        }
+    }
+
+    /**
+     * 设置某类操作的重试策略
+     *
+     * @param op OP_CONNECT、OP_READ或OP_WRITE
+     * @param policy 重试策略，为空表示不重试
+     */
+    public void setRetryPolicy(int op, BLERetryPolicy policy) {
+        mRetryPolicies[op] = policy;
+    }
+
+    /**
+     * 设置设备熔断器
+     * 设备连续失败failureThreshold次后熔断，openMillis内该设备的操作直接失败，不进入任务队列，
+     * 之后放行一个试探操作，成功后恢复
+     *
+     * @param failureThreshold 连续失败次数，0表示不熔断
+     * @param openMillis 熔断时长，单位毫秒
+     */
+    public void setCircuitBreaker(int failureThreshold, long openMillis) {
+        mCircuitFailureThreshold = failureThreshold;
+        mCircuitOpenMillis = openMillis;
+        for (BLEDeviceOperator operator : mDeviceMap.values()) {
+            operator.getCircuitBreaker().configure(failureThreshold, openMillis);
+        }
+    }
+
+    /**
+     * 设置超时模式
+     * TIMEOUT_MODE_ADAPTIVE下每个设备的连接、读、写超时时间由该设备同类操作的平滑往返时间估算，
+     * 能更快发现断开的连接，响应慢但正常的设备也不会误判超时
+     *
+     * @param mode TIMEOUT_MODE_FIXED或TIMEOUT_MODE_ADAPTIVE
+     */
+    public void setTimeoutMode(int mode) {
+        mTimeoutMode = mode;
+        for (BLEDeviceOperator operator : mDeviceMap.values()) {
+            operator.setAdaptiveTimeout(mode == TIMEOUT_MODE_ADAPTIVE);
+        }
+    }
+
+    /**
+     * 设置任务调度模式
+     * SCHEDULING_FAIR下频繁操作的设备不会占满任务队列，其他设备的任务也能按权重轮到执行；
+     * SCHEDULING_DEADLINE下截止时间最早的任务先执行，过期的任务不占用蓝牙，直接按失败回调，
+     * 同一设备的任务仍按加入顺序执行
+     *
+     * @param mode SCHEDULING_FIFO、SCHEDULING_FAIR或SCHEDULING_DEADLINE
+     */
+    public void setSchedulingMode(int mode) {
+        TaskExecutor executor = mTaskExecutor;
+        if (executor != null) {
+            executor.setSchedulingMode(mode);
+        }
+    }
+
+    /**
+     * 设置设备权重，SCHEDULING_FAIR下每轮连续执行该设备的任务数
+     *
+     * @param mac 设备mac
+     * @param weight 权重，默认为1
+     */
+    public void setDeviceWeight(String mac, int weight) {
+        long address = parseMac(mac);
+        TaskExecutor executor = mTaskExecutor;
+        if (executor != null && address != MacAddress.INVALID) {
+            executor.setWeight(address, weight);
+        }
+    }
+
+    /**
+     * 返回设备任务的排队统计，包括排队中的任务数和排队时间
+     *
+     * @param mac 设备mac
+     * @return 统计，该设备没有排队中的任务且没有设置权重时返回null，统计从最近一次开始排队算起
+     */
+    public TaskExecutor.QueueStats getQueueStats(String mac) {
+        TaskExecutor executor = mTaskExecutor;
+        return executor == null ? null : executor.getQueueStats(MacAddress.parse(mac));
+    }
+
+    /**
+     * 断开设备连接
+     *
+     * @param mac 设备mac地址
+     */
+    public void disconnect(String mac) {
+        BLEDeviceOperator operator = mDeviceMap.get(MacAddress.parse(mac));
+        if (operator == null) {
+            return;
+        }
+        operator.disconnect();
+    }
+
+    /**
+     * 断开设备连接
+     *
+     * @param address 48位设备mac，见MacAddress
+     */
+    public void disconnect(long address) {
+        BLEDeviceOperator operator = mDeviceMap.get(address);
+        if (operator == null) {
+            return;
+        }
+        operator.disconnect();
+    }
+
+    /**
+     * 停止工作
      *
      */
     public void stop() {
         Log.d(LOG_TAG, "BLEWrapper stop working");
-        mBLEScanner.stop();
-        for (String mac : mDeviceMap.keySet()) {
-            mDeviceMap.get(mac).stop();
+        BLEScanner scanner = mBLEScanner;
+        if (scanner != null) {
+            scanner.stop();
+        }
+        BLEPollScheduler pollScheduler = mPollScheduler;
+        if (pollScheduler != null) {
+            pollScheduler.stop();
+        }
+        mResponseCorrelator.clear();
+        mNotificationDispatcher.clear();
+        mCodecRegistry.clear();
+        for (BLEDeviceOperator operator : mDeviceMap.values()) {
+            operator.stop();
         }
         mDeviceMap.clear();
-        mTaskExecutor.stopWorking();
+        mPendingReads.clear();
+        for (BLEUpload upload : mUploads.values()) {
+            upload.cancel();
+        }
+        mUploads.clear();
+        for (BLEDownloadSink sink : mDownloads.values()) {
+            sink.stop();
+        }
+        mDownloads.clear();
+        mReadCache.clear();
+        mNotificationFilters.clear();
+        synchronized (mDeliveredListeners) {
+            mDeliveredListeners.clear();
+        }
+        if (mDeviceCatalog != null) {
+            mDeviceCatalog.close();
+            mDeviceCatalog = null;
+        }
+        if (mMainHandler != null) {
+            mMainHandler.removeCallbacksAndMessages(null);
+            mMainHandler = null;
+        }
+        TaskExecutor executor = mTaskExecutor;
+        if (executor != null) {
+            executor.stopWorking();
+        }
         release();
         mIsInit = false;
     }
@@ -429,14 +1928,24 @@ public class BLEWrapper {
     private void release() {
         Log.d(LOG_TAG, "BLEWrapper release");
         mBLEScanner = null;
-        mDeviceMap = null;
+        mPollScheduler = null;
         mInstance = null;
         mTaskExecutor = null;
     }
 
     /* --------------- Listener and setter --------------- */
     public void setOnScanListener(OnScanListener onScanListener) {
-        mBLEScanner.setOnScanListener(onScanListener);
+        setOnScanListener(onScanListener, BLEDelivery.inline());
+    }
+
+    /**
+     * 设置扫描监听器及其回调的执行方式
+     *
+     * @param onScanListener 监听器
+     * @param delivery 执行方式，见BLEDelivery
+     */
+    public void setOnScanListener(OnScanListener onScanListener, BLEDelivery delivery) {
+        mBLEScanner.setOnScanListener(BLEDelivery.wrap(onScanListener, delivery));
     }
 
     public interface OnScanListener {
@@ -445,10 +1954,20 @@ public class BLEWrapper {
         void onTimeout();
     }
 
-    private OnDeviceStateListener mOnDeviceStateListener;
+    private volatile OnDeviceStateListener mOnDeviceStateListener;
 
     public void setOnDeviceStateListener(OnDeviceStateListener onDeviceStateListener) {
-        mOnDeviceStateListener = onDeviceStateListener;
+        setOnDeviceStateListener(onDeviceStateListener, BLEDelivery.inline());
+    }
+
+    /**
+     * 设置设备状态监听器及其回调的执行方式
+     *
+     * @param onDeviceStateListener 监听器
+     * @param delivery 执行方式，见BLEDelivery
+     */
+    public void setOnDeviceStateListener(OnDeviceStateListener onDeviceStateListener, BLEDelivery delivery) {
+        mOnDeviceStateListener = BLEDelivery.wrap(onDeviceStateListener, delivery);
     }
 
     public interface OnDeviceStateListener {
@@ -461,10 +1980,20 @@ public class BLEWrapper {
         void onClose(String mac);
     }
 
-    private OnDataListener mOnDataListener;
+    private volatile OnDataListener mOnDataListener;
 
     public void setOnDataListener(OnDataListener onDataListener) {
-        mOnDataListener = onDataListener;
+        setOnDataListener(onDataListener, BLEDelivery.inline());
+    }
+
+    /**
+     * 设置数据监听器及其回调的执行方式
+     *
+     * @param onDataListener 监听器
+     * @param delivery 执行方式，见BLEDelivery
+     */
+    public void setOnDataListener(OnDataListener onDataListener, BLEDelivery delivery) {
+        mOnDataListener = BLEDelivery.wrap(onDataListener, delivery);
     }
 
     public interface OnDataListener {
@@ -474,4 +2003,44 @@ public class BLEWrapper {
 
         void onCharacteristicChanged(String mac, UUID characteristicUUID, byte[] data);
     }
+
+    private volatile OnTaskStalledListener mOnTaskStalledListener;
+
+    public void setOnTaskStalledListener(OnTaskStalledListener onTaskStalledListener) {
+        mOnTaskStalledListener = onTaskStalledListener;
+    }
+
+    public interface OnTaskStalledListener {
+        void onTaskStalled(String mac);
+    }
+
+    private volatile OnConnectionPriorityListener mOnConnectionPriorityListener;
+
+    public void setOnConnectionPriorityListener(OnConnectionPriorityListener onConnectionPriorityListener) {
+        mOnConnectionPriorityListener = onConnectionPriorityListener;
+    }
+
+    public interface OnConnectionPriorityListener {
+        void onConnectionPriorityChanged(String mac, int priority, float minIntervalMillis, float maxIntervalMillis);
+    }
+
+    public interface OnUploadListener {
+        void onProgress(String mac, long ackedBytes, long totalBytes, float bytesPerSecond);
+
+        void onComplete(String mac, long totalBytes, long elapsedMillis);
+
+        void onInterrupted(String mac, long resumeOffset, String reason);
+    }
+
+    public interface OnReadListener {
+        void onRead(String mac, UUID characteristicUUID, boolean success, byte[] data);
+    }
+
+    public interface OnNotificationListener {
+        void onNotification(String mac, UUID characteristicUUID, byte[] data);
+    }
+
+    public interface OnResponseListener {
+        void onResponse(String mac, boolean success, String msg, byte[] response);
+    }
 }
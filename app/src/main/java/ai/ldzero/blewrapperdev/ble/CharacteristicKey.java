@@ -0,0 +1,74 @@
+package ai.ldzero.blewrapperdev.ble;
+
+import java.util.UUID;
+
+/**
+ * 设备特征的索引key
+ * 设备用MacAddress解析后的48位地址表示，同一设备的mac大小写不同时得到同一个key。
+ * 池中的读任务持有可修改的key，复用时用set()重新设置，作为map的key期间不能修改；
+ * 需要长期保存在map中时用copy()复制
+ *
+ * Created on 2018/01/08.
+ *
+ * @author ldzero
+ */
+
+final class CharacteristicKey {
+
+    private long mAddress;
+
+    /* 可为空，不区分服务时为空 */
+    private UUID mServiceUUID;
+
+    private UUID mCharacteristicUUID;
+
+    CharacteristicKey(long address, UUID serviceUUID, UUID characteristicUUID) {
+        set(address, serviceUUID, characteristicUUID);
+    }
+
+    CharacteristicKey(long address, UUID characteristicUUID) {
+        this(address, null, characteristicUUID);
+    }
+
+    void set(long address, UUID serviceUUID, UUID characteristicUUID) {
+        mAddress = address;
+        mServiceUUID = serviceUUID;
+        mCharacteristicUUID = characteristicUUID;
+    }
+
+    CharacteristicKey copy() {
+        return new CharacteristicKey(mAddress, mServiceUUID, mCharacteristicUUID);
+    }
+
+    long getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CharacteristicKey)) {
+            return false;
+        }
+        CharacteristicKey other = (CharacteristicKey) o;
+        return mAddress == other.mAddress
+                && (mServiceUUID == null ? other.mServiceUUID == null : mServiceUUID.equals(other.mServiceUUID))
+                && (mCharacteristicUUID == null ? other.mCharacteristicUUID == null
+                : mCharacteristicUUID.equals(other.mCharacteristicUUID));
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (mAddress ^ (mAddress >>> 32));
+        result = 31 * result + (mServiceUUID == null ? 0 : mServiceUUID.hashCode());
+        result = 31 * result + (mCharacteristicUUID == null ? 0 : mCharacteristicUUID.hashCode());
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return (mServiceUUID == null ? "" : mServiceUUID + "/") + mCharacteristicUUID;
+    }
+}
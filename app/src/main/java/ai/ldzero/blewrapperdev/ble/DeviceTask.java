@@ -0,0 +1,136 @@
+package ai.ldzero.blewrapperdev.ble;
+
+import ai.ldzero.blewrapperdev.ble.taskqueue.IDeadlineTask;
+import ai.ldzero.blewrapperdev.ble.taskqueue.WrappedAsyncTask;
+import ai.ldzero.blewrapperdev.ble.utils.MacAddress;
+
+/**
+ * 针对单个设备的任务，截止时间为操作超时时间加上TASK_DEADLINE_GRACE_MILLIS
+ * 设备回调丢失且超时也未触发时，执行线程在截止时间后收回，不会卡住整个任务队列
+ *
+ * Created on 2017/12/26.
+ *
+ * @author ldzero
+ */
+
+abstract class DeviceTask extends WrappedAsyncTask implements IDeadlineTask {
+
+    /* 任务截止时间比操作超时时间多出的宽限，单位毫秒 */
+    static final long TASK_DEADLINE_GRACE_MILLIS = 2000;
+
+    String mMac;
+
+    /* 48位mac，用于查找设备 */
+    long mAddress;
+
+    long mTimeoutMillis;
+
+    /* 加入任务队列时所属的设备，任务开始执行时通知其出队 */
+    BLEDeviceOperator mQueuedOperator;
+
+    /* 第几次尝试，从1开始，重试时同一个任务对象重新加入队列 */
+    int mAttempt = 1;
+
+    /* 操作最迟完成时间，SystemClock.elapsedRealtime()，0表示加入队列时按超时时间设置；重试时不变 */
+    long mDeadline;
+
+    /* 是否在DeviceTaskPool中空闲，只在持有池的锁时访问 */
+    boolean mInPool = false;
+
+    /* 每次reset()加1，执行线程据此判断任务是否已被归还并重新取出 */
+    volatile int mGeneration = 0;
+
+    DeviceTask(String mac, long timeoutMillis) {
+        this(mac, MacAddress.parse(mac), timeoutMillis);
+    }
+
+    DeviceTask(String mac, long address, long timeoutMillis) {
+        reset(mac, address, timeoutMillis);
+    }
+
+    /**
+     * 重新设置任务，从DeviceTaskPool取出复用时调用
+     *
+     */
+    void reset(String mac, long address, long timeoutMillis) {
+        mMac = mac;
+        mAddress = address;
+        mTimeoutMillis = timeoutMillis;
+        mQueuedOperator = null;
+        mAttempt = 1;
+        mDeadline = 0;
+        setDeadlineMillis(timeoutMillis + TASK_DEADLINE_GRACE_MILLIS);
+        mGeneration++;
+    }
+
+    @Override
+    public void run() {
+        BLEDeviceOperator operator = mQueuedOperator;
+        mQueuedOperator = null;
+        if (operator != null) {
+            operator.onTaskDequeued();
+        }
+        super.run();
+    }
+
+    @Override
+    public long getTaskFlag() {
+        return mAddress;
+    }
+
+    @Override
+    public long getDeadline() {
+        return mDeadline;
+    }
+
+    /**
+     * 返回预计执行时间，子类按操作类型返回设备的平滑往返时间
+     *
+     * @return 单位毫秒，未知时返回0
+     */
+    @Override
+    public long getEstimatedMillis() {
+        return 0;
+    }
+
+    /**
+     * 截止时间调度模式下任务被丢弃，按没能加入队列处理
+     *
+     * @param reason 原因
+     */
+    @Override
+    public void onExpired(String reason) {
+        BLEDeviceOperator operator = mQueuedOperator;
+        mQueuedOperator = null;
+        if (operator != null) {
+            operator.onTaskDequeued();
+        }
+        onRejected(reason);
+    }
+
+    /**
+     * 返回设备某类操作的平滑往返时间，供子类估算执行时间
+     *
+     * @param operator 设备，可为空
+     * @param op 操作类型，见BLERttEstimator
+     * @return 单位毫秒，没有样本时返回0
+     */
+    static long estimateMillis(BLEDeviceOperator operator, int op) {
+        return operator == null ? 0 : Math.max(0, operator.getSmoothedRtt(op));
+    }
+
+    /**
+     * 任务没能加入队列时回调，例如设备熔断或重试时队列已满，子类在此通知调用方操作失败
+     *
+     * @param reason 原因
+     */
+    void onRejected(String reason) {
+    }
+
+    /**
+     * 重试时没能重新加入队列，onRejected()之后回调，任务不再使用，从池中取出的任务在此归还
+     *
+     */
+    void onRetryDropped() {
+    }
+}
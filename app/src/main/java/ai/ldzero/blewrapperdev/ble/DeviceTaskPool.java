@@ -0,0 +1,56 @@
+package ai.ldzero.blewrapperdev.ble;
+
+/**
+ * DeviceTask对象池
+ * 任务正常结束后归还，取出时由调用方重新设置；卡死的任务可能还会收到设备回调，不归还。
+ * 池满时归还的对象直接丢弃，重复归还会抛出IllegalStateException
+ *
+ * Created on 2018/01/05.
+ *
+ * @author ldzero
+ */
+
+abstract class DeviceTaskPool<T extends DeviceTask> {
+
+    /* 空闲对象栈 */
+    private final DeviceTask[] mFree;
+
+    private int mFreeCount = 0;
+
+    DeviceTaskPool(int capacity) {
+        mFree = new DeviceTask[capacity];
+    }
+
+    /**
+     * 取出一个任务，池空时新建
+     *
+     * @return 任务
+     */
+    @SuppressWarnings("unchecked")
+    synchronized T acquire() {
+        if (mFreeCount == 0) {
+            return create();
+        }
+        T task = (T) mFree[--mFreeCount];
+        mFree[mFreeCount] = null;
+        task.mInPool = false;
+        return task;
+    }
+
+    /**
+     * 归还任务，调用前任务需已清除对请求方和数据的引用
+     *
+     * @param task 任务
+     */
+    synchronized void release(T task) {
+        if (task.mInPool) {
+            throw new IllegalStateException("task released twice");
+        }
+        task.mInPool = true;
+        if (mFreeCount < mFree.length) {
+            mFree[mFreeCount++] = task;
+        }
+    }
+
+    abstract T create();
+}
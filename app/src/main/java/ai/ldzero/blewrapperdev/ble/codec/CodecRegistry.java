@@ -0,0 +1,81 @@
+package ai.ldzero.blewrapperdev.ble.codec;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * 按特征UUID注册解码器
+ * 注册和注销时复制整张表，解码时只读表，不加锁
+ *
+ * Created on 2017/12/25.
+ *
+ * @author ldzero
+ */
+
+public class CodecRegistry {
+
+    private volatile Map<UUID, ICodec> mCodecMap = Collections.emptyMap();
+
+    /**
+     * 注册解码器，同一特征只保留最后注册的解码器
+     *
+     * @param characteristicUUID 特征UUID
+     * @param codec 解码器
+     */
+    public synchronized void register(UUID characteristicUUID, ICodec codec) {
+        Map<UUID, ICodec> map = new HashMap<>(mCodecMap);
+        map.put(characteristicUUID, codec);
+        mCodecMap = map;
+    }
+
+    /**
+     * 注销解码器
+     *
+     * @param characteristicUUID 特征UUID
+     */
+    public synchronized void unregister(UUID characteristicUUID) {
+        if (!mCodecMap.containsKey(characteristicUUID)) {
+            return;
+        }
+        Map<UUID, ICodec> map = new HashMap<>(mCodecMap);
+        map.remove(characteristicUUID);
+        mCodecMap = map;
+    }
+
+    /**
+     * 清空全部解码器
+     *
+     */
+    public synchronized void clear() {
+        mCodecMap = Collections.emptyMap();
+    }
+
+    /**
+     * 判断特征是否注册了解码器
+     *
+     * @param characteristicUUID 特征UUID
+     * @return 是否注册
+     */
+    public boolean hasCodec(UUID characteristicUUID) {
+        return mCodecMap.containsKey(characteristicUUID);
+    }
+
+    /**
+     * 使用注册的解码器解码
+     *
+     * @param mac 设备mac
+     * @param characteristicUUID 特征UUID
+     * @param data 数据
+     * @return 是否找到解码器
+     */
+    public boolean decode(String mac, UUID characteristicUUID, byte[] data) {
+        ICodec codec = mCodecMap.get(characteristicUUID);
+        if (codec == null) {
+            return false;
+        }
+        codec.decode(mac, characteristicUUID, data);
+        return true;
+    }
+}
@@ -0,0 +1,118 @@
+package ai.ldzero.blewrapperdev.ble.codec;
+
+import java.util.UUID;
+
+/**
+ * IEEE-11073 浮点数解码器，支持16位SFLOAT和32位FLOAT，常见于健康类设备的标准特征
+ * 数据按小端存储，值 = 尾数 * 10 ^ 指数，NaN、NRes和保留值解码为Float.NaN
+ *
+ * Created on 2017/12/25.
+ *
+ * @author ldzero
+ */
+
+public class Float11073Codec implements ICodec {
+
+    /* 16位SFLOAT格式 */
+    public static final int TYPE_SFLOAT = 2;
+
+    /* 32位FLOAT格式 */
+    public static final int TYPE_FLOAT = 4;
+
+    /* 10的-128~127次方 */
+    private static final double[] POW10 = new double[256];
+
+    static {
+        for (int i = 0; i < POW10.length; i++) {
+            POW10[i] = Math.pow(10, i - 128);
+        }
+    }
+
+    private final int mType;
+
+    private final FloatSink mSink;
+
+    /* 复用的解码结果数组 */
+    private float[] mValues = new float[0];
+
+    /**
+     * @param type TYPE_SFLOAT或TYPE_FLOAT
+     * @param sink 解码结果接收者
+     */
+    public Float11073Codec(int type, FloatSink sink) {
+        if (type != TYPE_SFLOAT && type != TYPE_FLOAT) {
+            throw new IllegalArgumentException("type must be TYPE_SFLOAT or TYPE_FLOAT");
+        }
+        mType = type;
+        mSink = sink;
+    }
+
+    @Override
+    public synchronized void decode(String mac, UUID characteristicUUID, byte[] data) {
+        if (data == null) {
+            return;
+        }
+        int count = data.length / mType;
+        if (mValues.length < count) {
+            mValues = new float[count];
+        }
+        for (int i = 0; i < count; i++) {
+            int raw = IntLECodec.readInt(data, i * mType, mType, false);
+            mValues[i] = mType == TYPE_SFLOAT ? decodeSFloat(raw) : decodeFloat(raw);
+        }
+        mSink.onDecode(mac, characteristicUUID, mValues, count);
+    }
+
+    /**
+     * 解码16位SFLOAT，4位有符号指数，12位有符号尾数
+     *
+     * @param raw 原始16位值
+     * @return 浮点数
+     */
+    public static float decodeSFloat(int raw) {
+        raw &= 0xFFFF;
+        switch (raw) {
+            case 0x07FE:
+                return Float.POSITIVE_INFINITY;
+            case 0x0802:
+                return Float.NEGATIVE_INFINITY;
+            case 0x07FF:
+            case 0x0800:
+            case 0x0801:
+                return Float.NaN;
+            default:
+                break;
+        }
+        int mantissa = (raw << 20) >> 20;
+        int exponent = raw >> 12;
+        exponent = (exponent << 28) >> 28;
+        return (float) (mantissa * POW10[exponent + 128]);
+    }
+
+    /**
+     * 解码32位FLOAT，8位有符号指数，24位有符号尾数
+     *
+     * @param raw 原始32位值
+     * @return 浮点数
+     */
+    public static float decodeFloat(int raw) {
+        int mantissa = (raw << 8) >> 8;
+        int exponent = raw >> 24;
+        if (exponent != 0) {
+            return (float) (mantissa * POW10[exponent + 128]);
+        }
+        // 特殊值只在指数为0时有效，其他指数下同样的尾数是普通数值
+        switch (mantissa) {
+            case 0x007FFFFE:
+                return Float.POSITIVE_INFINITY;
+            case -0x007FFFFE:
+                return Float.NEGATIVE_INFINITY;
+            case 0x007FFFFF:
+            case -0x00800000:
+            case -0x007FFFFF:
+                return Float.NaN;
+            default:
+                return mantissa;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package ai.ldzero.blewrapperdev.ble.codec;
+
+import java.util.UUID;
+
+/**
+ * 接收float解码结果
+ * values数组由解码器复用，只在回调期间有效，有效数据为前count个
+ *
+ * Created on 2017/12/25.
+ *
+ * @author ldzero
+ */
+
+public interface FloatSink {
+
+    void onDecode(String mac, UUID characteristicUUID, float[] values, int count);
+}
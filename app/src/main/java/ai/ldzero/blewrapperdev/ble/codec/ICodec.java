@@ -0,0 +1,16 @@
+package ai.ldzero.blewrapperdev.ble.codec;
+
+import java.util.UUID;
+
+/**
+ * 特征数据解码器接口，把读取或通知得到的数据解码后交给对应的sink
+ *
+ * Created on 2017/12/25.
+ *
+ * @author ldzero
+ */
+
+public interface ICodec {
+
+    void decode(String mac, UUID characteristicUUID, byte[] data);
+}
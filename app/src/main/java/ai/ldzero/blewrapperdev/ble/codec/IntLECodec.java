@@ -0,0 +1,74 @@
+package ai.ldzero.blewrapperdev.ble.codec;
+
+import java.util.UUID;
+
+/**
+ * 小端整数解码器，把数据按固定宽度依次解码为int
+ *
+ * Created on 2017/12/25.
+ *
+ * @author ldzero
+ */
+
+public class IntLECodec implements ICodec {
+
+    /* 每个值的字节数，1~4 */
+    private final int mBytesPerValue;
+
+    private final boolean mSigned;
+
+    private final IntSink mSink;
+
+    /* 复用的解码结果数组 */
+    private int[] mValues = new int[0];
+
+    /**
+     * @param bytesPerValue 每个值的字节数，1~4
+     * @param signed 是否有符号
+     * @param sink 解码结果接收者
+     */
+    public IntLECodec(int bytesPerValue, boolean signed, IntSink sink) {
+        if (bytesPerValue < 1 || bytesPerValue > 4) {
+            throw new IllegalArgumentException("bytesPerValue must be 1~4");
+        }
+        mBytesPerValue = bytesPerValue;
+        mSigned = signed;
+        mSink = sink;
+    }
+
+    @Override
+    public synchronized void decode(String mac, UUID characteristicUUID, byte[] data) {
+        if (data == null) {
+            return;
+        }
+        int count = data.length / mBytesPerValue;
+        if (mValues.length < count) {
+            mValues = new int[count];
+        }
+        for (int i = 0; i < count; i++) {
+            mValues[i] = readInt(data, i * mBytesPerValue, mBytesPerValue, mSigned);
+        }
+        mSink.onDecode(mac, characteristicUUID, mValues, count);
+    }
+
+    /**
+     * 按小端读取整数
+     *
+     * @param data 数据
+     * @param offset 起始位置
+     * @param length 字节数，1~4
+     * @param signed 是否有符号
+     * @return 整数
+     */
+    public static int readInt(byte[] data, int offset, int length, boolean signed) {
+        int value = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        if (signed && length < 4) {
+            int shift = 32 - length * 8;
+            value = (value << shift) >> shift;
+        }
+        return value;
+    }
+}
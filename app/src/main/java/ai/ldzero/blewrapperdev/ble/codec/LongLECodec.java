@@ -0,0 +1,74 @@
+package ai.ldzero.blewrapperdev.ble.codec;
+
+import java.util.UUID;
+
+/**
+ * 小端长整数解码器，把数据按固定宽度依次解码为long，适用于时间戳、无符号32位计数等
+ *
+ * Created on 2017/12/25.
+ *
+ * @author ldzero
+ */
+
+public class LongLECodec implements ICodec {
+
+    /* 每个值的字节数，1~8 */
+    private final int mBytesPerValue;
+
+    private final boolean mSigned;
+
+    private final LongSink mSink;
+
+    /* 复用的解码结果数组 */
+    private long[] mValues = new long[0];
+
+    /**
+     * @param bytesPerValue 每个值的字节数，1~8
+     * @param signed 是否有符号
+     * @param sink 解码结果接收者
+     */
+    public LongLECodec(int bytesPerValue, boolean signed, LongSink sink) {
+        if (bytesPerValue < 1 || bytesPerValue > 8) {
+            throw new IllegalArgumentException("bytesPerValue must be 1~8");
+        }
+        mBytesPerValue = bytesPerValue;
+        mSigned = signed;
+        mSink = sink;
+    }
+
+    @Override
+    public synchronized void decode(String mac, UUID characteristicUUID, byte[] data) {
+        if (data == null) {
+            return;
+        }
+        int count = data.length / mBytesPerValue;
+        if (mValues.length < count) {
+            mValues = new long[count];
+        }
+        for (int i = 0; i < count; i++) {
+            mValues[i] = readLong(data, i * mBytesPerValue, mBytesPerValue, mSigned);
+        }
+        mSink.onDecode(mac, characteristicUUID, mValues, count);
+    }
+
+    /**
+     * 按小端读取长整数
+     *
+     * @param data 数据
+     * @param offset 起始位置
+     * @param length 字节数，1~8
+     * @param signed 是否有符号
+     * @return 长整数
+     */
+    public static long readLong(byte[] data, int offset, int length, boolean signed) {
+        long value = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        if (signed && length < 8) {
+            int shift = 64 - length * 8;
+            value = (value << shift) >> shift;
+        }
+        return value;
+    }
+}
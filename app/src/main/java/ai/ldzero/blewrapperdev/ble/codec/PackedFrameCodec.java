@@ -0,0 +1,81 @@
+package ai.ldzero.blewrapperdev.ble.codec;
+
+import java.util.UUID;
+
+/**
+ * 打包采样帧解码器
+ * 帧格式为固定长度的帧头加连续存放的采样值，采样值按位紧密排列（低位在前），多通道时交错存放，
+ * 解码结果按原顺序交错存放在values中，完整的一组通道采样才会输出
+ *
+ * Created on 2017/12/25.
+ *
+ * @author ldzero
+ */
+
+public class PackedFrameCodec implements ICodec {
+
+    /* 帧头字节数，解码时跳过 */
+    private final int mHeaderBytes;
+
+    /* 通道数 */
+    private final int mChannels;
+
+    /* 每个采样值的位数，1~32 */
+    private final int mBitsPerSample;
+
+    private final boolean mSigned;
+
+    private final IntSink mSink;
+
+    /* 复用的解码结果数组 */
+    private int[] mValues = new int[0];
+
+    /**
+     * @param headerBytes 帧头字节数
+     * @param channels 通道数
+     * @param bitsPerSample 每个采样值的位数，1~32
+     * @param signed 采样值是否有符号
+     * @param sink 解码结果接收者
+     */
+    public PackedFrameCodec(int headerBytes, int channels, int bitsPerSample, boolean signed, IntSink sink) {
+        if (headerBytes < 0 || channels < 1 || bitsPerSample < 1 || bitsPerSample > 32) {
+            throw new IllegalArgumentException("invalid frame layout");
+        }
+        mHeaderBytes = headerBytes;
+        mChannels = channels;
+        mBitsPerSample = bitsPerSample;
+        mSigned = signed;
+        mSink = sink;
+    }
+
+    @Override
+    public synchronized void decode(String mac, UUID characteristicUUID, byte[] data) {
+        if (data == null || data.length <= mHeaderBytes) {
+            return;
+        }
+        int samples = (data.length - mHeaderBytes) * 8 / mBitsPerSample;
+        int count = samples - samples % mChannels;
+        if (mValues.length < count) {
+            mValues = new int[count];
+        }
+        long mask = (1L << mBitsPerSample) - 1;
+        int shift = 32 - mBitsPerSample;
+        long bits = 0;
+        int bitCount = 0;
+        int index = mHeaderBytes;
+        for (int i = 0; i < count; i++) {
+            while (bitCount < mBitsPerSample) {
+                bits |= (long) (data[index++] & 0xFF) << bitCount;
+                bitCount += 8;
+            }
+            int value = (int) (bits & mask);
+            if (mSigned && shift > 0) {
+                value = (value << shift) >> shift;
+            }
+            mValues[i] = value;
+            bits >>>= mBitsPerSample;
+            bitCount -= mBitsPerSample;
+        }
+        mSink.onDecode(mac, characteristicUUID, mValues, count);
+    }
+}
@@ -0,0 +1,35 @@
+package ai.ldzero.blewrapperdev.ble.taskqueue;
+
+/**
+ * 带截止时间的任务
+ * 截止时间是操作最迟完成的绝对时间，与WrappedAsyncTask判断卡死用的截止时间不同。
+ * 截止时间调度模式下按截止时间先后执行，已过截止时间或预计无法按时完成的任务不执行，直接回调onExpired()
+ *
+ * Created on 2018/01/07.
+ *
+ * @author ldzero
+ */
+
+public interface IDeadlineTask extends ITask {
+
+    /**
+     * 返回截止时间
+     *
+     * @return SystemClock.elapsedRealtime()时间，0表示没有截止时间
+     */
+    long getDeadline();
+
+    /**
+     * 返回预计执行时间，用于判断开始执行后能否按时完成
+     *
+     * @return 单位毫秒，未知时返回0
+     */
+    long getEstimatedMillis();
+
+    /**
+     * 任务因截止时间被丢弃时回调，在执行线程中调用
+     *
+     * @param reason 原因
+     */
+    void onExpired(String reason);
+}
@@ -10,7 +10,15 @@ package ai.ldzero.blewrapperdev.ble.taskqueue;
 
 public interface ITask {
 
-    // TODO: 增加任务标志
+    /* 不属于任何设备的任务标志 */
+    long NO_FLAG = 0;
 
     void run();
+
+    /**
+     * 返回任务标志，相同标志的任务在队列中按加入顺序执行，公平调度时按标志轮转
+     *
+     * @return 任务标志，一般为设备的48位mac
+     */
+    long getTaskFlag();
 }
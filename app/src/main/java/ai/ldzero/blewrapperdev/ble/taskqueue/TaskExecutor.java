@@ -2,39 +2,70 @@ package ai.ldzero.blewrapperdev.ble.taskqueue;
 
 import android.util.Log;
 
-import java.util.Queue;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 任务执行器，维持着一个任务队列。
- * 开始工作后不断从队列取出任务并同步执行，若任务队列为空，阻塞线程。
+ * 执行线程在第一次添加任务时才创建，不断从队列取出任务并同步执行，
+ * 队列空闲超过空闲时间后线程退出，之后再添加任务时重新创建。
+ * 任务按任务标志分组排队，默认按加入顺序执行，可切换为各标志间按权重轮转的公平调度。
  *
  * Created on 2017/7/21.
  *
  * @author ldzero
  */
 
-public class TaskExecutor extends Thread {
+public class TaskExecutor {
 
     private final String LOG_TAG = this.getClass().getSimpleName();
 
+    /* 默认空闲时间，单位毫秒 */
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30 * 1000;
+
+    /* 调度模式：按加入顺序执行 */
+    public static final int SCHEDULING_FIFO = 0;
+
+    /* 调度模式：各任务标志间按权重轮转，单个标志最多占用一半队列容量 */
+    public static final int SCHEDULING_FAIR = 1;
+
+    /* 调度模式：各任务标志的队首任务按截止时间先后执行，过期或预计无法按时完成的IDeadlineTask被丢弃 */
+    public static final int SCHEDULING_DEADLINE = 2;
+
     public TaskExecutor(int taskCount) {
-        mTaskQueue = new ArrayBlockingQueue<>(taskCount);
+        mCapacity = taskCount;
+        mTaskQueue = new TaskQueue(taskCount);
     }
 
     /* 是否处于运行状态 */
-    private boolean mIsRunning = false;
+    private volatile boolean mIsRunning = false;
 
-    /* 是否处于挂起状态 */
-    private boolean mPause = true;
-
-    /* 锁 */
+    /* 锁，保护执行线程的创建和退出 */
     private final Object mLock = new Object();
 
+    /* 执行线程，空闲退出后为空 */
+    private Thread mWorker;
+
+    /* 队列空闲超过该时间执行线程退出，单位毫秒 */
+    private volatile long mIdleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+
     /* 任务队列 */
-    private Queue<ITask> mTaskQueue;
+    private final TaskQueue mTaskQueue;
 
-    // TODO: 增加根据任务标志移除某些任务的方法
+    /* 任务队列容量 */
+    private final int mCapacity;
+
+    /* 停止工作时放入队列，唤醒等待中的执行线程 */
+    private static final ITask STOP_TASK = new ITask() {
+        @Override
+        public void run() {
+        }
+
+        @Override
+        public long getTaskFlag() {
+            return NO_FLAG;
+        }
+    };
 
     /**
      * 添加任务到队列
@@ -44,100 +75,171 @@ public class TaskExecutor extends Thread {
      */
     public boolean addTask(ITask task) {
         Log.d(LOG_TAG, "add task");
+        if (!mIsRunning) {
+            return false;
+        }
         boolean result = mTaskQueue.offer(task);
-        resumeWorking();
+        if (result) {
+            ensureWorker();
+        }
         return result;
     }
 
-    @Override
-    public void run() {
-        Log.d(LOG_TAG, "executor start running");
-        while (mIsRunning) {
-            onPause();
-            if (!mIsRunning) {
-                break;
-            }
-            try {
-                // 取出任务，执行，若没有任务，阻塞线程
-                Log.d(LOG_TAG, "poll task");
-                ITask task = mTaskQueue.poll();
-                if (task == null) {
-                    setPauseWorking();
-                } else {
-                    Log.d(LOG_TAG, "execute task");
-                    task.run();
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-                if (!mIsRunning) {
-                    break;
-                }
-            }
-        }
-        Log.d(LOG_TAG, "executor stop running");
+    /**
+     * 返回队列中等待执行的任务数
+     *
+     * @return 任务数
+     */
+    public int getTaskCount() {
+        return mTaskQueue.size();
     }
 
     /**
-     * 开始工作
+     * 返回任务队列容量
      *
+     * @return 容量
      */
-    public void startWorking() {
-        mIsRunning = true;
-        start();
+    public int getCapacity() {
+        return mCapacity;
     }
 
     /**
-     * 回复线程
+     * 设置调度模式
      *
+     * @param mode SCHEDULING_FIFO、SCHEDULING_FAIR或SCHEDULING_DEADLINE
      */
-    private void resumeWorking() {
-        Log.d(LOG_TAG, "executor resume");
-        if (mPause) {
-            synchronized (mLock) {
-                if (mPause) {
-                    mPause = false;
-                    mLock.notifyAll();
-                    Log.d(LOG_TAG, "executor resume success");
-                }
-            }
+    public void setSchedulingMode(int mode) {
+        mTaskQueue.setMode(mode);
+    }
+
+    /**
+     * 设置任务标志的权重，公平调度时每轮连续执行该标志的任务数
+     *
+     * @param flag 任务标志
+     * @param weight 权重，默认为1
+     */
+    public void setWeight(long flag, int weight) {
+        mTaskQueue.setWeight(flag, weight);
+    }
+
+    /**
+     * 返回任务标志的排队统计
+     *
+     * @param flag 任务标志
+     * @return 统计，没有该标志排队中的任务且没有设置权重时返回null
+     */
+    public QueueStats getQueueStats(long flag) {
+        return mTaskQueue.getStats(flag);
+    }
+
+    /**
+     * 返回全部任务标志的排队统计
+     *
+     * @return 统计列表
+     */
+    public List<QueueStats> getAllQueueStats() {
+        return mTaskQueue.getAllStats();
+    }
+
+    /**
+     * 设置空闲时间，队列空闲超过该时间执行线程退出
+     *
+     * @param idleTimeoutMillis 空闲时间，单位毫秒
+     */
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        mIdleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * 返回执行线程是否存活
+     *
+     * @return 是否存活
+     */
+    public boolean isWorkerAlive() {
+        synchronized (mLock) {
+            return mWorker != null;
         }
     }
 
     /**
-     * 判断是否处于挂起状态，处于暂停状态则做进行挂起
+     * 执行线程不存在时创建
      *
      */
-    private void onPause() {
-        if (mPause) {
-            synchronized (mLock) {
-                if (mPause) {
-                    try {
-                        Log.d(LOG_TAG, "executor onPause");
-                        mLock.wait();
-                    } catch (Exception e) {
-                        e.printStackTrace();
+    private void ensureWorker() {
+        synchronized (mLock) {
+            if (mWorker == null && mIsRunning) {
+                Log.d(LOG_TAG, "executor start worker");
+                mWorker = new Thread(mWorkLoop, "TaskExecutor");
+                mWorker.start();
+            }
+        }
+    }
+
+    private final Runnable mWorkLoop = new Runnable() {
+        @Override
+        public void run() {
+            Log.d(LOG_TAG, "executor start running");
+            while (true) {
+                ITask task;
+                try {
+                    // 取出任务，若没有任务，阻塞到空闲时间
+                    task = mTaskQueue.poll(mIdleTimeoutMillis, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    task = null;
+                }
+                if (task == null) {
+                    synchronized (mLock) {
+                        // 持锁确认队列仍为空再退出，添加任务的线程会在锁释放后重新创建执行线程
+                        if (mTaskQueue.isEmpty() || !mIsRunning) {
+                            mWorker = null;
+                            break;
+                        }
                     }
+                    continue;
                 }
+                if (task == STOP_TASK || !mIsRunning) {
+                    synchronized (mLock) {
+                        mWorker = null;
+                    }
+                    break;
+                }
+                execute(task);
             }
+            Log.d(LOG_TAG, "executor stop running");
         }
-    }
+    };
 
     /**
-     * 设置设备进入挂起状态，线程下一次进入onPause时将阻塞在锁上
+     * 执行一个任务
      *
+     * @param task 任务
      */
-    private void setPauseWorking() {
-        Log.d(LOG_TAG, "set executor pause");
-        if (!mPause) {
-            synchronized (mLock) {
-                if (!mPause) {
-                    mPause = true;
-                    Log.d(LOG_TAG, "set executor pause success");
+    private void execute(ITask task) {
+        try {
+            Log.d(LOG_TAG, "execute task");
+            task.run();
+            if (task instanceof WrappedAsyncTask && ((WrappedAsyncTask) task).isStalled()) {
+                // 任务超过截止时间仍未结束，执行线程已收回，继续执行后续任务
+                Log.w(LOG_TAG, "task stalled, skip to next task");
+                OnTaskStalledListener listener = mOnTaskStalledListener;
+                if (listener != null) {
+                    listener.onTaskStalled(task);
                 }
             }
+        } catch (Exception e) {
+            e.printStackTrace();
         }
     }
 
+    /**
+     * 开始工作，执行线程在添加任务时才创建
+     *
+     */
+    public void startWorking() {
+        mTaskQueue.remove(STOP_TASK);
+        mIsRunning = true;
+    }
+
     /**
      * 停止工作
      *
@@ -145,8 +247,12 @@ public class TaskExecutor extends Thread {
     public void stopWorking() {
         Log.d(LOG_TAG, "executor stop working");
         mIsRunning = false;
-        resumeWorking();
         release();
+        synchronized (mLock) {
+            if (mWorker != null) {
+                mTaskQueue.offer(STOP_TASK);
+            }
+        }
     }
 
     /**
@@ -155,6 +261,97 @@ public class TaskExecutor extends Thread {
      */
     private void release() {
         Log.d(LOG_TAG, "executor release resources");
-        mTaskQueue = null;
+        mTaskQueue.clear();
+    }
+
+    /**
+     * 一个任务标志的排队统计快照
+     *
+     */
+    public static class QueueStats {
+
+        private final long mFlag;
+
+        private final int mQueued;
+
+        private final int mWeight;
+
+        private final long mDequeued;
+
+        private final float mMeanWaitMillis;
+
+        private final float mRecentWaitMillis;
+
+        private final long mMaxWaitMillis;
+
+        QueueStats(long flag, int queued, int weight, long dequeued, float meanWaitMillis, float recentWaitMillis,
+                   long maxWaitMillis) {
+            mFlag = flag;
+            mQueued = queued;
+            mWeight = weight;
+            mDequeued = dequeued;
+            mMeanWaitMillis = meanWaitMillis;
+            mRecentWaitMillis = recentWaitMillis;
+            mMaxWaitMillis = maxWaitMillis;
+        }
+
+        public long getFlag() {
+            return mFlag;
+        }
+
+        /**
+         * 返回正在排队的任务数
+         *
+         * @return 任务数
+         */
+        public int getQueued() {
+            return mQueued;
+        }
+
+        public int getWeight() {
+            return mWeight;
+        }
+
+        /**
+         * 返回已取出执行的任务数
+         *
+         * @return 任务数
+         */
+        public long getDequeued() {
+            return mDequeued;
+        }
+
+        /**
+         * 返回全部已执行任务的平均排队时间
+         *
+         * @return 单位毫秒
+         */
+        public float getMeanWaitMillis() {
+            return mMeanWaitMillis;
+        }
+
+        /**
+         * 返回最近任务排队时间的指数平均，反映当前排队情况
+         *
+         * @return 单位毫秒
+         */
+        public float getRecentWaitMillis() {
+            return mRecentWaitMillis;
+        }
+
+        public long getMaxWaitMillis() {
+            return mMaxWaitMillis;
+        }
+    }
+
+    /* -------------- Listener and setter -------------- */
+    private volatile OnTaskStalledListener mOnTaskStalledListener;
+
+    public void setOnTaskStalledListener(OnTaskStalledListener onTaskStalledListener) {
+        mOnTaskStalledListener = onTaskStalledListener;
+    }
+
+    public interface OnTaskStalledListener {
+        void onTaskStalled(ITask task);
     }
 }
@@ -0,0 +1,520 @@
+package ai.ldzero.blewrapperdev.ble.taskqueue;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按任务标志分组的有界任务队列
+ * 每个标志一个子队列，子队列内按加入顺序执行。
+ * FIFO模式下按全局加入顺序取任务；公平模式下按权重在有任务的子队列间轮转，
+ * 每轮从一个子队列连续取出权重个任务，且单个子队列最多占用一半容量；
+ * 截止时间模式下取各子队列队首中截止时间最早的任务，队首已过期或预计无法按时完成时丢弃。
+ * 只比较队首，同一子队列内仍按加入顺序执行。
+ * 子队列使用定长环形数组。没有设置权重的子队列在任务取完后删除，对象留待复用，
+ * 因此它们的排队统计只覆盖最近一段连续有任务排队的时间
+ *
+ * Created on 2018/01/06.
+ *
+ * @author ldzero
+ */
+
+class TaskQueue {
+
+    private final int mCapacity;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    private final Condition mNotEmpty = mLock.newCondition();
+
+    /* 以下字段只在持有锁时访问 */
+    private int mMode = TaskExecutor.SCHEDULING_FIFO;
+
+    private int mSize = 0;
+
+    /* 全局加入序号，FIFO模式按此取任务 */
+    private long mSequence = 0;
+
+    /* 有任务或设置了权重的子队列 */
+    private final Map<Long, Flow> mFlows = new HashMap<>();
+
+    /* 已删除的子队列，留待复用，最多mCapacity个 */
+    private final Flow[] mFreeFlows;
+
+    private int mFreeCount = 0;
+
+    /* 有任务的子队列，公平模式从头部取任务，用完本轮配额后移到尾部 */
+    private final Flow[] mActive;
+
+    private int mActiveHead = 0;
+
+    private int mActiveCount = 0;
+
+    /* 当前轮转到的子队列本轮已取出的任务数 */
+    private int mServed = 0;
+
+    /* 截止时间模式下本次取出的任务需要丢弃的原因 */
+    private String mExpiredReason;
+
+    TaskQueue(int capacity) {
+        mCapacity = capacity;
+        mActive = new Flow[capacity];
+        mFreeFlows = new Flow[capacity];
+    }
+
+    void setMode(int mode) {
+        mLock.lock();
+        try {
+            mMode = mode;
+            mServed = 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 设置子队列权重，公平模式下每轮连续取出的任务数
+     * 权重大于1的子队列一直保留，设回1后按普通子队列在空闲时删除
+     *
+     * @param flag 任务标志
+     * @param weight 权重，不小于1
+     */
+    void setWeight(long flag, int weight) {
+        mLock.lock();
+        try {
+            Flow flow = obtainFlow(flag);
+            flow.mWeight = Math.max(1, weight);
+            recycleIfIdle(flow);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 加入任务
+     *
+     * @param task 任务
+     * @return 队列已满或公平模式下该子队列已占满一半容量时返回false
+     */
+    boolean offer(ITask task) {
+        mLock.lock();
+        try {
+            if (mSize >= mCapacity) {
+                return false;
+            }
+            Flow flow = obtainFlow(task.getTaskFlag());
+            if (mMode == TaskExecutor.SCHEDULING_FAIR && flow.mCount >= Math.max(1, mCapacity / 2)) {
+                return false;
+            }
+            flow.push(task, now(), mSequence++);
+            if (flow.mCount == 1) {
+                mActive[(mActiveHead + mActiveCount++) % mActive.length] = flow;
+            }
+            mSize++;
+            mNotEmpty.signal();
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 取出下一个任务，没有任务时等待
+     *
+     * @param timeout 最长等待时间
+     * @param unit 时间单位
+     * @return 任务，超时返回null
+     */
+    ITask poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        while (true) {
+            ITask task;
+            String expiredReason = null;
+            mLock.lockInterruptibly();
+            try {
+                while (mSize == 0) {
+                    if (nanos <= 0) {
+                        return null;
+                    }
+                    nanos = mNotEmpty.awaitNanos(nanos);
+                }
+                long now = now();
+                Flow flow;
+                switch (mMode) {
+                    case TaskExecutor.SCHEDULING_FAIR:
+                        flow = nextFairFlow();
+                        break;
+                    case TaskExecutor.SCHEDULING_DEADLINE:
+                        flow = nextDeadlineFlow(now);
+                        expiredReason = mExpiredReason;
+                        mExpiredReason = null;
+                        break;
+                    default:
+                        flow = nextFifoFlow();
+                        break;
+                }
+                task = flow.pop(now);
+                mSize--;
+                if (flow.mCount == 0) {
+                    removeActive(flow);
+                    recycleIfIdle(flow);
+                }
+            } finally {
+                mLock.unlock();
+            }
+            if (expiredReason == null) {
+                return task;
+            }
+            // 在锁外回调，丢弃后继续取下一个任务
+            ((IDeadlineTask) task).onExpired(expiredReason);
+        }
+    }
+
+    /**
+     * 返回当前时间，与任务截止时间使用同一时钟
+     *
+     * @return SystemClock.elapsedRealtime()
+     */
+    long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * 公平模式：当前子队列用完本轮配额后轮到下一个
+     *
+     */
+    private Flow nextFairFlow() {
+        Flow flow = mActive[mActiveHead];
+        if (mServed >= flow.mWeight) {
+            // 移到尾部
+            mActive[mActiveHead] = null;
+            mActiveHead = (mActiveHead + 1) % mActive.length;
+            mActive[(mActiveHead + mActiveCount - 1) % mActive.length] = flow;
+            mServed = 0;
+            flow = mActive[mActiveHead];
+        }
+        mServed++;
+        return flow;
+    }
+
+    /**
+     * 截止时间模式：优先返回队首需要丢弃的子队列，并把原因记在mExpiredReason；
+     * 否则返回队首截止时间最早的子队列
+     *
+     */
+    private Flow nextDeadlineFlow(long now) {
+        Flow earliest = null;
+        for (int i = 0; i < mActiveCount; i++) {
+            Flow flow = mActive[(mActiveHead + i) % mActive.length];
+            String reason = flow.headExpiredReason(now);
+            if (reason != null) {
+                mExpiredReason = reason;
+                return flow;
+            }
+            if (earliest == null || flow.headDeadline() < earliest.headDeadline()) {
+                earliest = flow;
+            }
+        }
+        return earliest;
+    }
+
+    /**
+     * FIFO模式：队首任务加入最早的子队列
+     *
+     */
+    private Flow nextFifoFlow() {
+        Flow earliest = null;
+        for (int i = 0; i < mActiveCount; i++) {
+            Flow flow = mActive[(mActiveHead + i) % mActive.length];
+            if (earliest == null || flow.headSequence() < earliest.headSequence()) {
+                earliest = flow;
+            }
+        }
+        return earliest;
+    }
+
+    private void removeActive(Flow flow) {
+        int index = -1;
+        for (int i = 0; i < mActiveCount; i++) {
+            if (mActive[(mActiveHead + i) % mActive.length] == flow) {
+                index = i;
+                break;
+            }
+        }
+        if (index < 0) {
+            return;
+        }
+        if (index == 0) {
+            mServed = 0;
+        }
+        for (int i = index; i < mActiveCount - 1; i++) {
+            mActive[(mActiveHead + i) % mActive.length] = mActive[(mActiveHead + i + 1) % mActive.length];
+        }
+        mActive[(mActiveHead + mActiveCount - 1) % mActive.length] = null;
+        mActiveCount--;
+    }
+
+    private Flow obtainFlow(long flag) {
+        Flow flow = mFlows.get(flag);
+        if (flow == null) {
+            if (mFreeCount > 0) {
+                flow = mFreeFlows[--mFreeCount];
+                mFreeFlows[mFreeCount] = null;
+                flow.reset(flag);
+            } else {
+                flow = new Flow(flag, mCapacity);
+            }
+            mFlows.put(flag, flow);
+        }
+        return flow;
+    }
+
+    /**
+     * 删除没有任务且没有设置权重的子队列，对象放回复用栈
+     *
+     */
+    private void recycleIfIdle(Flow flow) {
+        if (flow.mCount > 0 || flow.mWeight > 1) {
+            return;
+        }
+        mFlows.remove(flow.mFlag);
+        if (mFreeCount < mFreeFlows.length) {
+            mFreeFlows[mFreeCount++] = flow;
+        }
+    }
+
+    boolean remove(ITask task) {
+        mLock.lock();
+        try {
+            Flow flow = mFlows.get(task.getTaskFlag());
+            if (flow == null || !flow.remove(task)) {
+                return false;
+            }
+            mSize--;
+            if (flow.mCount == 0) {
+                removeActive(flow);
+                recycleIfIdle(flow);
+            }
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    void clear() {
+        mLock.lock();
+        try {
+            List<Flow> flows = new ArrayList<>(mFlows.values());
+            for (Flow flow : flows) {
+                flow.clear();
+                recycleIfIdle(flow);
+            }
+            for (int i = 0; i < mActive.length; i++) {
+                mActive[i] = null;
+            }
+            mActiveHead = 0;
+            mActiveCount = 0;
+            mServed = 0;
+            mSize = 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    int size() {
+        mLock.lock();
+        try {
+            return mSize;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * 返回子队列统计
+     *
+     * @param flag 任务标志
+     * @return 统计，没有该子队列时返回null
+     */
+    TaskExecutor.QueueStats getStats(long flag) {
+        mLock.lock();
+        try {
+            Flow flow = mFlows.get(flag);
+            return flow == null ? null : flow.snapshot();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    List<TaskExecutor.QueueStats> getAllStats() {
+        mLock.lock();
+        try {
+            List<TaskExecutor.QueueStats> stats = new ArrayList<>();
+            for (Flow flow : mFlows.values()) {
+                stats.add(flow.snapshot());
+            }
+            return stats;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 一个任务标志的子队列，只在持有队列锁时访问
+     *
+     */
+    private static class Flow {
+
+        private long mFlag;
+
+        private final ITask[] mTasks;
+
+        private final long[] mEnqueueTimes;
+
+        private final long[] mSequences;
+
+        /* 截止时间，没有截止时间的任务按加入时间加默认时间排序 */
+        private final long[] mDeadlines;
+
+        /* 是否可以因截止时间丢弃，只有设置了截止时间的IDeadlineTask可以丢弃 */
+        private final boolean[] mDroppable;
+
+        private int mHead = 0;
+
+        private int mCount = 0;
+
+        private int mWeight = 1;
+
+        /* 排队时延统计，单位毫秒 */
+        private long mDequeued = 0;
+
+        private long mTotalWaitMillis = 0;
+
+        private long mMaxWaitMillis = 0;
+
+        /* 最近排队时延的指数平均，权重1/8 */
+        private double mAverageWaitMillis = 0;
+
+        Flow(long flag, int capacity) {
+            mFlag = flag;
+            mTasks = new ITask[capacity];
+            mEnqueueTimes = new long[capacity];
+            mSequences = new long[capacity];
+            mDeadlines = new long[capacity];
+            mDroppable = new boolean[capacity];
+        }
+
+        void push(ITask task, long now, long sequence) {
+            int i = (mHead + mCount) % mTasks.length;
+            mTasks[i] = task;
+            mEnqueueTimes[i] = now;
+            mSequences[i] = sequence;
+            long deadline = task instanceof IDeadlineTask ? ((IDeadlineTask) task).getDeadline() : 0;
+            mDroppable[i] = deadline > 0;
+            mDeadlines[i] = deadline > 0 ? deadline : now + WrappedAsyncTask.DEFAULT_DEADLINE_MILLIS;
+            mCount++;
+        }
+
+        ITask pop(long now) {
+            ITask task = mTasks[mHead];
+            long wait = now - mEnqueueTimes[mHead];
+            mTasks[mHead] = null;
+            mHead = (mHead + 1) % mTasks.length;
+            mCount--;
+            mDequeued++;
+            mTotalWaitMillis += wait;
+            mMaxWaitMillis = Math.max(mMaxWaitMillis, wait);
+            mAverageWaitMillis = mDequeued == 1 ? wait : mAverageWaitMillis + (wait - mAverageWaitMillis) / 8;
+            return task;
+        }
+
+        long headSequence() {
+            return mSequences[mHead];
+        }
+
+        long headDeadline() {
+            return mDeadlines[mHead];
+        }
+
+        /**
+         * 判断队首任务是否需要丢弃
+         *
+         * @param now 当前时间
+         * @return 丢弃原因，不需要丢弃时返回null
+         */
+        String headExpiredReason(long now) {
+            if (!mDroppable[mHead]) {
+                return null;
+            }
+            long deadline = mDeadlines[mHead];
+            if (now >= deadline) {
+                return "deadline expired";
+            }
+            if (now + ((IDeadlineTask) mTasks[mHead]).getEstimatedMillis() > deadline) {
+                return "deadline infeasible";
+            }
+            return null;
+        }
+
+        boolean remove(ITask task) {
+            for (int i = 0; i < mCount; i++) {
+                int index = (mHead + i) % mTasks.length;
+                if (mTasks[index] != task) {
+                    continue;
+                }
+                // 后面的任务前移
+                for (int j = i; j < mCount - 1; j++) {
+                    int from = (mHead + j + 1) % mTasks.length;
+                    int to = (mHead + j) % mTasks.length;
+                    mTasks[to] = mTasks[from];
+                    mEnqueueTimes[to] = mEnqueueTimes[from];
+                    mSequences[to] = mSequences[from];
+                    mDeadlines[to] = mDeadlines[from];
+                    mDroppable[to] = mDroppable[from];
+                }
+                mTasks[(mHead + mCount - 1) % mTasks.length] = null;
+                mCount--;
+                return true;
+            }
+            return false;
+        }
+
+        void clear() {
+            for (int i = 0; i < mTasks.length; i++) {
+                mTasks[i] = null;
+            }
+            mHead = 0;
+            mCount = 0;
+        }
+
+        /**
+         * 复用时清除权重和统计
+         *
+         */
+        void reset(long flag) {
+            clear();
+            mFlag = flag;
+            mWeight = 1;
+            mDequeued = 0;
+            mTotalWaitMillis = 0;
+            mMaxWaitMillis = 0;
+            mAverageWaitMillis = 0;
+        }
+
+        TaskExecutor.QueueStats snapshot() {
+            return new TaskExecutor.QueueStats(mFlag, mCount, mWeight, mDequeued,
+                    mDequeued == 0 ? 0 : (float) mTotalWaitMillis / mDequeued,
+                    (float) mAverageWaitMillis, mMaxWaitMillis);
+        }
+    }
+}
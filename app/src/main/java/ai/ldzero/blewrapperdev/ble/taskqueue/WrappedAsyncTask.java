@@ -2,10 +2,15 @@ package ai.ldzero.blewrapperdev.ble.taskqueue;
 
 import android.util.Log;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * 把异步任务封装为同步任务的类
  * run()执行完后会自动阻塞，直到被调用finishTask()才恢复
  * 一般用法在异步操作的回调中调用finishTask()，达到异步任务变同步任务的效果
+ * 阻塞时长不超过任务的截止时间，超过后任务被标记为卡死，执行线程直接恢复，之后的finishTask()被忽略
  *
  * Created on 2017/7/21.
  *
@@ -16,59 +21,103 @@ public abstract class WrappedAsyncTask implements ITask {
 
     private final String LOG_TAG = this.getClass().getSimpleName();
 
-    private final Object mLock = new Object();
+    /* 默认截止时间，单位毫秒 */
+    public static final long DEFAULT_DEADLINE_MILLIS = 30 * 1000;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_RUNNING = 1;
+    private static final int STATE_FINISHED = 2;
+    private static final int STATE_STALLED = 3;
+
+    private final AtomicInteger mState = new AtomicInteger(STATE_IDLE);
 
-    private boolean mPause = true;
+    /* 阻塞等待的执行线程 */
+    private volatile Thread mWaiter;
+
+    /* 从run()开始计算的截止时间，单位毫秒 */
+    private long mDeadlineMillis = DEFAULT_DEADLINE_MILLIS;
 
     @Override
     public void run() {
-        setPause();
+        mWaiter = Thread.currentThread();
+        mState.set(STATE_RUNNING);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mDeadlineMillis);
         _run();
-        onPause();
+        await(deadline);
     }
 
     public abstract void _run();
 
-    public void finishTask() {
-        setResume();
+    @Override
+    public long getTaskFlag() {
+        return NO_FLAG;
     }
 
-    private void onPause() {
-        if (mPause) {
-            synchronized (mLock) {
-                if (mPause) {
-                    try {
-                        Log.d(LOG_TAG, "task onPause");
-                        mLock.wait();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
+    /**
+     * 结束任务，唤醒执行线程
+     *
+     */
+    public void finishTask() {
+        if (mState.compareAndSet(STATE_RUNNING, STATE_FINISHED)) {
+            Thread waiter = mWaiter;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
             }
         }
     }
 
-    private void setResume() {
-        Log.d(LOG_TAG, "task resume");
-        if (mPause) {
-            synchronized (mLock) {
-                if (mPause) {
-                    mPause = false;
-                    mLock.notifyAll();
-                    Log.d(LOG_TAG, "task resume success");
-                }
-            }
-        }
+    /**
+     * 设置截止时间，超过截止时间仍未调用finishTask()的任务视为卡死
+     *
+     * @param deadlineMillis 从任务开始执行计算的截止时间，单位毫秒
+     */
+    public void setDeadlineMillis(long deadlineMillis) {
+        mDeadlineMillis = deadlineMillis;
     }
 
-    private void setPause() {
-        Log.d(LOG_TAG, "set task pause");
-        if (!mPause) {
-            synchronized (mLock) {
-                mPause = true;
-                Log.d(LOG_TAG, "set task pause success");
+    /**
+     * 返回任务是否正在执行，即已开始且还未结束或卡死
+     *
+     * @return 是否正在执行
+     */
+    public boolean isRunning() {
+        return mState.get() == STATE_RUNNING;
+    }
+
+    /**
+     * 返回任务是否因超过截止时间被放弃
+     *
+     * @return 是否卡死
+     */
+    public boolean isStalled() {
+        return mState.get() == STATE_STALLED;
+    }
+
+    /**
+     * 任务超过截止时间被放弃时在执行线程中回调，子类可在此释放资源
+     *
+     */
+    protected void onStalled() {
+    }
+
+    /**
+     * 阻塞直到任务结束或超过截止时间
+     *
+     * @param deadline 截止时间，System.nanoTime()
+     */
+    private void await(long deadline) {
+        while (mState.get() == STATE_RUNNING) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                if (mState.compareAndSet(STATE_RUNNING, STATE_STALLED)) {
+                    Log.w(LOG_TAG, "task stalled after " + mDeadlineMillis + "ms");
+                    onStalled();
+                }
+                break;
             }
+            LockSupport.parkNanos(this, remaining);
         }
+        mWaiter = null;
     }
 
 }
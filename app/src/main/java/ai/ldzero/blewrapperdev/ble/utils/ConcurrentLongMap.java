@@ -0,0 +1,204 @@
+package ai.ldzero.blewrapperdev.ble.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 以long为键的并发Map
+ * 开放寻址存储，读操作无锁；写操作加锁，有空位时直接写入当前表，负载超过一半时按两倍扩容，
+ * 只有扩容和删除才复制整张表，适合读多写少的设备索引；
+ * 不支持null值
+ *
+ * Created on 2017/12/29.
+ *
+ * @author ldzero
+ */
+
+public class ConcurrentLongMap<V> {
+
+    private static final int MIN_CAPACITY = 8;
+
+    /* 当前表，每次写操作后重新写入以发布修改 */
+    private volatile Table mTable = new Table(MIN_CAPACITY);
+
+    /**
+     * 获取键对应的值
+     *
+     * @param key 键
+     * @return 值，不存在时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        Entry[] entries = mTable.mEntries;
+        int mask = entries.length - 1;
+        int i = hash(key) & mask;
+        while (true) {
+            Entry entry = entries[i];
+            if (entry == null) {
+                return null;
+            }
+            if (entry.mKey == key) {
+                return (V) entry.mValue;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * 放入键值
+     *
+     * @return 原来的值，不存在时返回null
+     */
+    public synchronized V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value can not be null");
+        }
+        V old = get(key);
+        Table table = mTable;
+        if (old == null && (table.mSize + 1) * 2 > table.mEntries.length) {
+            table = copy(table, 1, key, false);
+        }
+        table.insert(key, value);
+        mTable = table;
+        return old;
+    }
+
+    /**
+     * 键不存在时放入键值
+     *
+     * @return 已存在的值，放入成功时返回null
+     */
+    public synchronized V putIfAbsent(long key, V value) {
+        V old = get(key);
+        if (old != null) {
+            return old;
+        }
+        put(key, value);
+        return null;
+    }
+
+    /**
+     * 移除键
+     *
+     * @return 被移除的值，不存在时返回null
+     */
+    public synchronized V remove(long key) {
+        V old = get(key);
+        if (old != null) {
+            mTable = copy(mTable, 0, key, true);
+        }
+        return old;
+    }
+
+    /**
+     * 键对应的值为value时移除
+     *
+     * @return 是否移除
+     */
+    public synchronized boolean remove(long key, V value) {
+        V old = get(key);
+        if (old == null || !old.equals(value)) {
+            return false;
+        }
+        mTable = copy(mTable, 0, key, true);
+        return true;
+    }
+
+    public synchronized void clear() {
+        mTable = new Table(MIN_CAPACITY);
+    }
+
+    public int size() {
+        return mTable.mSize;
+    }
+
+    /**
+     * 返回当前全部值的快照
+     *
+     * @return 值列表
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        Table table = mTable;
+        List<V> values = new ArrayList<>(table.mSize);
+        for (Entry entry : table.mEntries) {
+            if (entry != null) {
+                values.add((V) entry.mValue);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * 复制表，负载不超过一半
+     *
+     * @param extra 复制后将要放入的键数
+     * @param skipKey skip为true时不复制该键
+     */
+    private static Table copy(Table source, int extra, long skipKey, boolean skip) {
+        int needed = (source.mSize + extra) * 2;
+        int capacity = MIN_CAPACITY;
+        while (capacity < needed) {
+            capacity <<= 1;
+        }
+        Table table = new Table(capacity);
+        for (Entry entry : source.mEntries) {
+            if (entry != null && !(skip && entry.mKey == skipKey)) {
+                table.insert(entry.mKey, entry.mValue);
+            }
+        }
+        return table;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * 表项，字段为final，读线程无锁读到的表项总是完整的
+     *
+     */
+    private static final class Entry {
+
+        final long mKey;
+
+        final Object mValue;
+
+        Entry(long key, Object value) {
+            mKey = key;
+            mValue = value;
+        }
+    }
+
+    private static final class Table {
+
+        final Entry[] mEntries;
+
+        int mSize = 0;
+
+        Table(int capacity) {
+            mEntries = new Entry[capacity];
+        }
+
+        /**
+         * 放入键值，只在持有锁时调用，调用后需重新写入mTable发布
+         *
+         */
+        void insert(long key, Object value) {
+            int mask = mEntries.length - 1;
+            int i = hash(key) & mask;
+            while (mEntries[i] != null && mEntries[i].mKey != key) {
+                i = (i + 1) & mask;
+            }
+            if (mEntries[i] == null) {
+                mSize++;
+            }
+            mEntries[i] = new Entry(key, value);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package ai.ldzero.blewrapperdev.ble.utils;
+
+/**
+ * mac地址与48位long之间的转换工具类
+ * 内部索引用long表示设备，避免字符串哈希和比较
+ *
+ * Created on 2017/12/29.
+ *
+ * @author ldzero
+ */
+
+public class MacAddress {
+
+    /* 无效地址，合法地址只使用低48位，不会与之相同 */
+    public static final long INVALID = -1L;
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * 把"AA:BB:CC:DD:EE:FF"格式的mac地址转为long，大小写均可
+     *
+     * @param mac mac地址
+     * @return 低48位为地址的long，格式不正确时返回INVALID
+     */
+    public static long parse(String mac) {
+        if (mac == null || mac.length() != 17) {
+            return INVALID;
+        }
+        long address = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = mac.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') {
+                    return INVALID;
+                }
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                return INVALID;
+            }
+            address = (address << 4) | digit;
+        }
+        return address;
+    }
+
+    /**
+     * 把long转为"AA:BB:CC:DD:EE:FF"格式的mac地址
+     *
+     * @param address 低48位为地址的long
+     * @return mac地址
+     */
+    public static String format(long address) {
+        char[] chars = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int b = (int) (address >>> (40 - i * 8)) & 0xFF;
+            chars[i * 3] = HEX[b >>> 4];
+            chars[i * 3 + 1] = HEX[b & 0x0F];
+            if (i < 5) {
+                chars[i * 3 + 2] = ':';
+            }
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,81 @@
+package ai.ldzero.blewrapperdev.ble.codec;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * IEEE-11073 SFLOAT和FLOAT解码测试，包括特殊值
+ *
+ * Created on 2018/01/09.
+ *
+ * @author ldzero
+ */
+
+public class Float11073CodecTest {
+
+    private static final float DELTA = 1e-4f;
+
+    @Test
+    public void sfloat_specialValues() throws Exception {
+        assertEquals(Float.POSITIVE_INFINITY, Float11073Codec.decodeSFloat(0x07FE), 0);
+        assertEquals(Float.NEGATIVE_INFINITY, Float11073Codec.decodeSFloat(0x0802), 0);
+        assertTrue(Float.isNaN(Float11073Codec.decodeSFloat(0x07FF)));
+        assertTrue(Float.isNaN(Float11073Codec.decodeSFloat(0x0800)));
+        assertTrue(Float.isNaN(Float11073Codec.decodeSFloat(0x0801)));
+    }
+
+    @Test
+    public void sfloat_specialMantissaWithExponentIsNumber() throws Exception {
+        assertEquals(20460f, Float11073Codec.decodeSFloat(0x17FE), DELTA);
+        assertEquals(-204.6f, Float11073Codec.decodeSFloat(0xF802), DELTA);
+    }
+
+    @Test
+    public void sfloat_ordinaryValues() throws Exception {
+        assertEquals(11.4f, Float11073Codec.decodeSFloat(0xF072), DELTA);
+        assertEquals(-1f, Float11073Codec.decodeSFloat(0x0FFF), DELTA);
+        assertEquals(0f, Float11073Codec.decodeSFloat(0x0000), 0);
+    }
+
+    @Test
+    public void float_specialValues() throws Exception {
+        assertEquals(Float.POSITIVE_INFINITY, Float11073Codec.decodeFloat(0x007FFFFE), 0);
+        assertEquals(Float.NEGATIVE_INFINITY, Float11073Codec.decodeFloat(0x00800002), 0);
+        assertTrue(Float.isNaN(Float11073Codec.decodeFloat(0x007FFFFF)));
+        assertTrue(Float.isNaN(Float11073Codec.decodeFloat(0x00800000)));
+        assertTrue(Float.isNaN(Float11073Codec.decodeFloat(0x00800001)));
+    }
+
+    @Test
+    public void float_specialMantissaWithExponentIsNumber() throws Exception {
+        assertEquals(838860.6f, Float11073Codec.decodeFloat(0xFF7FFFFE), 0.1f);
+        assertEquals(-83886060f, Float11073Codec.decodeFloat(0x01800002), 10f);
+        assertFalse(Float.isNaN(Float11073Codec.decodeFloat(0x027FFFFF)));
+    }
+
+    @Test
+    public void float_ordinaryValues() throws Exception {
+        assertEquals(50f, Float11073Codec.decodeFloat(0xFF0001F4), DELTA);
+        assertEquals(-0.5f, Float11073Codec.decodeFloat(0xFFFFFFFB), DELTA);
+        assertEquals(123f, Float11073Codec.decodeFloat(0x0000007B), DELTA);
+    }
+
+    @Test
+    public void decode_littleEndianValues() throws Exception {
+        final float[][] result = new float[1][];
+        Float11073Codec codec = new Float11073Codec(Float11073Codec.TYPE_SFLOAT, new FloatSink() {
+            @Override
+            public void onDecode(String mac, UUID characteristicUUID, float[] values, int count) {
+                result[0] = new float[count];
+                System.arraycopy(values, 0, result[0], 0, count);
+            }
+        });
+        codec.decode("AA:BB:CC:DD:EE:FF", UUID.randomUUID(), new byte[]{0x72, (byte) 0xF0, (byte) 0xFE, 0x07, 0x01});
+        assertEquals(2, result[0].length);
+        assertEquals(11.4f, result[0][0], DELTA);
+        assertEquals(Float.POSITIVE_INFINITY, result[0][1], 0);
+    }
+}
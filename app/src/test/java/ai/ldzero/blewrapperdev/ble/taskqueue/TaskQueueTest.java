@@ -0,0 +1,230 @@
+package ai.ldzero.blewrapperdev.ble.taskqueue;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * TaskQueue调度测试，使用可控时钟，不依赖SystemClock
+ *
+ * Created on 2018/01/09.
+ *
+ * @author ldzero
+ */
+
+public class TaskQueueTest {
+
+    @Test
+    public void fifo_keepsGlobalOrder() throws Exception {
+        TestQueue queue = new TestQueue(16, TaskExecutor.SCHEDULING_FIFO);
+        queue.offer(new TestTask(1, 0));
+        queue.offer(new TestTask(2, 0));
+        queue.offer(new TestTask(1, 1));
+        queue.offer(new TestTask(3, 0));
+        assertEquals("1:0 2:0 1:1 3:0", queue.drain());
+    }
+
+    @Test
+    public void fair_roundRobinAcrossFlags() throws Exception {
+        TestQueue queue = new TestQueue(16, TaskExecutor.SCHEDULING_FAIR);
+        for (int i = 0; i < 3; i++) {
+            queue.offer(new TestTask(1, i));
+        }
+        for (int i = 0; i < 2; i++) {
+            queue.offer(new TestTask(2, i));
+        }
+        queue.offer(new TestTask(3, 0));
+        assertEquals("1:0 2:0 3:0 1:1 2:1 1:2", queue.drain());
+    }
+
+    @Test
+    public void fair_weightTakesConsecutiveTasks() throws Exception {
+        TestQueue queue = new TestQueue(16, TaskExecutor.SCHEDULING_FAIR);
+        queue.setWeight(1, 2);
+        for (int i = 0; i < 5; i++) {
+            queue.offer(new TestTask(1, i));
+        }
+        for (int i = 0; i < 3; i++) {
+            queue.offer(new TestTask(2, i));
+        }
+        queue.offer(new TestTask(3, 0));
+        assertEquals("1:0 1:1 2:0 3:0 1:2 1:3 2:1 1:4 2:2", queue.drain());
+    }
+
+    @Test
+    public void fair_flowLimitedToHalfCapacity() throws Exception {
+        TestQueue queue = new TestQueue(8, TaskExecutor.SCHEDULING_FAIR);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(new TestTask(1, i)));
+        }
+        assertFalse(queue.offer(new TestTask(1, 4)));
+        assertTrue(queue.offer(new TestTask(2, 0)));
+        assertEquals(5, queue.size());
+    }
+
+    @Test
+    public void offer_rejectedWhenFull() throws Exception {
+        TestQueue queue = new TestQueue(2, TaskExecutor.SCHEDULING_FIFO);
+        assertTrue(queue.offer(new TestTask(1, 0)));
+        assertTrue(queue.offer(new TestTask(2, 0)));
+        assertFalse(queue.offer(new TestTask(3, 0)));
+    }
+
+    @Test
+    public void weight_keepsIdleFlowAndStats() throws Exception {
+        TestQueue queue = new TestQueue(8, TaskExecutor.SCHEDULING_FAIR);
+        queue.setWeight(1, 3);
+        queue.offer(new TestTask(1, 0));
+        queue.offer(new TestTask(2, 0));
+        queue.mNow += 50;
+        queue.drain();
+        TaskExecutor.QueueStats stats = queue.getStats(1);
+        assertNotNull(stats);
+        assertEquals(3, stats.getWeight());
+        assertEquals(1, stats.getDequeued());
+        assertEquals(50, stats.getMaxWaitMillis());
+        // 没有设置权重的子队列取完后删除
+        assertNull(queue.getStats(2));
+        queue.setWeight(1, 1);
+        assertNull(queue.getStats(1));
+    }
+
+    @Test
+    public void deadline_earliestHeadFirst() throws Exception {
+        TestQueue queue = new TestQueue(16, TaskExecutor.SCHEDULING_DEADLINE);
+        queue.offer(new TestTask(1, 0, 5000, 0));
+        queue.offer(new TestTask(2, 0, 3000, 0));
+        queue.offer(new TestTask(3, 0, 4000, 0));
+        assertEquals("2:0 3:0 1:0", queue.drain());
+    }
+
+    @Test
+    public void deadline_onlyHeadOfFlowCompared() throws Exception {
+        TestQueue queue = new TestQueue(16, TaskExecutor.SCHEDULING_DEADLINE);
+        queue.offer(new TestTask(1, 0, 5000, 0));
+        queue.offer(new TestTask(1, 1, 2000, 0));
+        queue.offer(new TestTask(2, 0, 3000, 0));
+        assertEquals("2:0 1:0 1:1", queue.drain());
+    }
+
+    @Test
+    public void deadline_expiredTaskDropped() throws Exception {
+        TestQueue queue = new TestQueue(16, TaskExecutor.SCHEDULING_DEADLINE);
+        TestTask expired = new TestTask(1, 0, 1500, 0);
+        queue.offer(expired);
+        queue.offer(new TestTask(2, 0, 5000, 0));
+        queue.mNow = 2000;
+        assertEquals("2:0", queue.drain());
+        assertEquals("deadline expired", expired.mExpiredReason);
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void deadline_infeasibleTaskDropped() throws Exception {
+        TestQueue queue = new TestQueue(16, TaskExecutor.SCHEDULING_DEADLINE);
+        TestTask infeasible = new TestTask(1, 0, 1500, 800);
+        queue.offer(infeasible);
+        assertEquals("", queue.drain());
+        assertEquals("deadline infeasible", infeasible.mExpiredReason);
+    }
+
+    @Test
+    public void deadline_taskWithoutDeadlineNeverDropped() throws Exception {
+        TestQueue queue = new TestQueue(16, TaskExecutor.SCHEDULING_DEADLINE);
+        TestTask task = new TestTask(1, 0, 0, 0);
+        queue.offer(task);
+        queue.mNow += WrappedAsyncTask.DEFAULT_DEADLINE_MILLIS * 2;
+        assertEquals("1:0", queue.drain());
+        assertNull(task.mExpiredReason);
+    }
+
+    /**
+     * 使用可控时钟的队列
+     *
+     */
+    private static class TestQueue extends TaskQueue {
+
+        private long mNow = 1000;
+
+        TestQueue(int capacity, int mode) {
+            super(capacity);
+            setMode(mode);
+        }
+
+        @Override
+        long now() {
+            return mNow;
+        }
+
+        /**
+         * 取出全部任务，返回"标志:序号"列表
+         *
+         */
+        String drain() throws InterruptedException {
+            StringBuilder builder = new StringBuilder();
+            ITask task;
+            while ((task = poll(0, TimeUnit.MILLISECONDS)) != null) {
+                if (builder.length() > 0) {
+                    builder.append(' ');
+                }
+                builder.append(task);
+            }
+            return builder.toString();
+        }
+    }
+
+    private static class TestTask implements IDeadlineTask {
+
+        private final long mFlag;
+
+        private final int mIndex;
+
+        private final long mDeadline;
+
+        private final long mEstimatedMillis;
+
+        private String mExpiredReason;
+
+        TestTask(long flag, int index) {
+            this(flag, index, 0, 0);
+        }
+
+        TestTask(long flag, int index, long deadline, long estimatedMillis) {
+            mFlag = flag;
+            mIndex = index;
+            mDeadline = deadline;
+            mEstimatedMillis = estimatedMillis;
+        }
+
+        @Override
+        public void run() {
+        }
+
+        @Override
+        public long getTaskFlag() {
+            return mFlag;
+        }
+
+        @Override
+        public long getDeadline() {
+            return mDeadline;
+        }
+
+        @Override
+        public long getEstimatedMillis() {
+            return mEstimatedMillis;
+        }
+
+        @Override
+        public void onExpired(String reason) {
+            mExpiredReason = reason;
+        }
+
+        @Override
+        public String toString() {
+            return mFlag + ":" + mIndex;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package ai.ldzero.blewrapperdev.ble.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * MacAddress解析与格式化测试
+ *
+ * Created on 2018/01/09.
+ *
+ * @author ldzero
+ */
+
+public class MacAddressTest {
+
+    @Test
+    public void parse_formatRoundTrip() throws Exception {
+        String[] macs = {"00:00:00:00:00:00", "AA:BB:CC:DD:EE:FF", "01:23:45:67:89:AB", "FF:FF:FF:FF:FF:FF"};
+        for (String mac : macs) {
+            assertEquals(mac, MacAddress.format(MacAddress.parse(mac)));
+        }
+        long[] addresses = {0L, 1L, 0x0123456789ABL, 0xFFFFFFFFFFFFL};
+        for (long address : addresses) {
+            assertEquals(address, MacAddress.parse(MacAddress.format(address)));
+        }
+    }
+
+    @Test
+    public void parse_isCaseInsensitive() throws Exception {
+        assertEquals(0xAABBCCDDEEFFL, MacAddress.parse("aa:bb:cc:dd:ee:ff"));
+        assertEquals(MacAddress.parse("AA:BB:CC:DD:EE:FF"), MacAddress.parse("aA:Bb:cC:Dd:eE:Ff"));
+    }
+
+    @Test
+    public void parse_validAddressNeverInvalid() throws Exception {
+        assertNotEquals(MacAddress.INVALID, MacAddress.parse("FF:FF:FF:FF:FF:FF"));
+        assertNotEquals(MacAddress.INVALID, MacAddress.parse("00:00:00:00:00:00"));
+    }
+
+    @Test
+    public void parse_malformedReturnsInvalid() throws Exception {
+        String[] macs = {null, "", "AA:BB:CC:DD:EE", "AA:BB:CC:DD:EE:FF:00", "AA-BB-CC-DD-EE-FF",
+                "AA:BB:CC:DD:EE:FG", "AABBCCDDEEFF", " AA:BB:CC:DD:EE:F"};
+        for (String mac : macs) {
+            assertEquals(String.valueOf(mac), MacAddress.INVALID, MacAddress.parse(mac));
+        }
+    }
+}